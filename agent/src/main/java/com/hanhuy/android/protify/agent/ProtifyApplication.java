@@ -29,6 +29,7 @@ import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * some of this is straight up ripped off from bazelbuild's StubApplication
@@ -49,8 +50,13 @@ public class ProtifyApplication extends Application {
         Protify.installed = true;
     }
 
-    @SuppressWarnings("deprecation")
     private static Notification loadingNotification(Context c, String text) {
+        return loadingNotification(c, text, 0, 0);
+    }
+
+    /** progress is indeterminate while {@code max} is 0 */
+    @SuppressWarnings("deprecation")
+    private static Notification loadingNotification(Context c, String text, int progress, int max) {
         final Notification n;
         // R is filtered out of DEX, find the resource manually
         int icon = c.getResources().getIdentifier(
@@ -63,7 +69,7 @@ public class ProtifyApplication extends Application {
             nb
                     .setContentTitle(text)
                     .setSmallIcon(icon)
-                    .setProgress(100, 0, true)
+                    .setProgress(max, progress, max == 0)
                     .setOngoing(true);
             n = nb.getNotification();
         } else {
@@ -81,35 +87,20 @@ public class ProtifyApplication extends Application {
     }
 
     private Object stashedContentProviders;
-    private static Field getField(Object instance, String fieldName)
-            throws ClassNotFoundException {
-        for (Class<?> clazz = instance.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
-            try {
-                Field field = clazz.getDeclaredField(fieldName);
-                field.setAccessible(true);
-                return field;
-            } catch (NoSuchFieldException e) {
-                // IllegalStateException will be thrown below
-            }
-        }
-
-        throw new IllegalStateException("Field '" + fieldName + "' not found");
-    }
+    /** built while the dex installs, swapped in by onCreate */
+    private AssetManager preparedAssets;
 
     private void enableContentProviders() {
         Log.v(TAG, "enableContentProviders");
         try {
-            Class<?> activityThread = Class.forName("android.app.ActivityThread");
-            Method mCurrentActivityThread = activityThread.getMethod("currentActivityThread");
-            mCurrentActivityThread.setAccessible(true);
-            Object currentActivityThread = mCurrentActivityThread.invoke(null);
-            Object boundApplication = getField(
+            Object currentActivityThread = Reflection.currentActivityThread();
+            Object boundApplication = Reflection.findField(
                     currentActivityThread, "mBoundApplication").get(currentActivityThread);
-            getField(boundApplication, "providers").set(boundApplication, stashedContentProviders);
+            Reflection.findField(boundApplication, "providers").set(boundApplication, stashedContentProviders);
             if (stashedContentProviders != null) {
-                Method mInstallContentProviders = activityThread.getDeclaredMethod(
-                        "installContentProviders", Context.class, List.class);
-                mInstallContentProviders.setAccessible(true);
+                Method mInstallContentProviders = Reflection.findMethod(
+                        Reflection.activityThreadClass(), "installContentProviders",
+                        Context.class, List.class);
                 mInstallContentProviders.invoke(
                         currentActivityThread, realApplication, stashedContentProviders);
                 stashedContentProviders = null;
@@ -124,13 +115,10 @@ public class ProtifyApplication extends Application {
     private void disableContentProviders() {
         Log.v(TAG, "disableContentProviders");
         try {
-            Class<?> activityThread = Class.forName("android.app.ActivityThread");
-            Method mCurrentActivityThread = activityThread.getMethod("currentActivityThread");
-            mCurrentActivityThread.setAccessible(true);
-            Object currentActivityThread = mCurrentActivityThread.invoke(null);
-            Object boundApplication = getField(
+            Object currentActivityThread = Reflection.currentActivityThread();
+            Object boundApplication = Reflection.findField(
                     currentActivityThread, "mBoundApplication").get(currentActivityThread);
-            Field fProviders = getField(boundApplication, "providers");
+            Field fProviders = Reflection.findField(boundApplication, "providers");
 
             stashedContentProviders = fProviders.get(boundApplication);
             fProviders.set(boundApplication, null);
@@ -140,8 +128,9 @@ public class ProtifyApplication extends Application {
     }
 
     @Override
-    protected void attachBaseContext(Context base) {
-        NotificationManager nm = (NotificationManager) base.getSystemService(
+    protected void attachBaseContext(final Context base) {
+        int trace = StartupTrace.begin("attachBaseContext");
+        final NotificationManager nm = (NotificationManager) base.getSystemService(
                 NOTIFICATION_SERVICE);
         CharSequence name;
         try {
@@ -149,18 +138,42 @@ public class ProtifyApplication extends Application {
         } catch (Resources.NotFoundException e) {
             name = base.getPackageName();
         }
-        nm.notify(NOTIFICATION_ID, loadingNotification(
-                base, "Protifying DEX for " + name));
-        DexLoader.install(base);
+        final String title = "Protifying DEX for " + name;
+        int notify = StartupTrace.begin("postNotification");
+        nm.notify(NOTIFICATION_ID, loadingNotification(base, title));
+        StartupTrace.end(notify);
+        int install = StartupTrace.begin("installDex");
+        // the external resources do not need the dex, they are prepared here
+        // while it installs and onCreate only has to swap them in
+        preparedAssets = Bootstrap.installDex(base, Build.VERSION.SDK_INT < 14 ? null :
+                new DexLoader.ProgressListener() {
+                    @Override
+                    public void onProgress(int completed, int total) {
+                        nm.notify(NOTIFICATION_ID,
+                                loadingNotification(base, title, completed, total));
+                    }
+                }, null, new Callable<AssetManager>() {
+                    @Override
+                    public AssetManager call() {
+                        int trace = StartupTrace.begin("prepareExternalResources");
+                        AssetManager assets = prepareExternalResources(base);
+                        StartupTrace.end(trace);
+                        return assets;
+                    }
+                });
+        StartupTrace.end(install);
         nm.cancel(NOTIFICATION_ID);
+        // before the real application runs, its crashes count too
+        Bootstrap.watchStartup(base);
 
+        int create = StartupTrace.begin("createRealApplication");
         createRealApplication();
+        StartupTrace.end(create);
         super.attachBaseContext(base);
 
         try {
-            Method attachBaseContext = ContextWrapper.class.getDeclaredMethod(
+            Method attachBaseContext = Reflection.findMethod(ContextWrapper.class,
                     "attachBaseContext", Context.class);
-            attachBaseContext.setAccessible(true);
             attachBaseContext.invoke(realApplication, base);
 
             disableContentProviders();
@@ -172,15 +185,29 @@ public class ProtifyApplication extends Application {
             realApplication.registerActivityLifecycleCallbacks(
                     LifecycleListener.getInstance());
         }
+        StartupTrace.end(trace);
     }
 
     @Override
     public void onCreate() {
+        int trace = StartupTrace.begin("installRealApplication");
         installRealApplication();
-        installExternalResources(this);
+        StartupTrace.end(trace);
+        trace = StartupTrace.begin("installExternalResources");
+        if (preparedAssets != null)
+            installExternalResources(this, preparedAssets);
+        else
+            installExternalResources(this);
+        preparedAssets = null;
+        StartupTrace.end(trace);
+        trace = StartupTrace.begin("enableContentProviders");
         enableContentProviders();
+        StartupTrace.end(trace);
         super.onCreate();
+        trace = StartupTrace.begin("Application.onCreate");
         realApplication.onCreate();
+        StartupTrace.end(trace);
+        StartupTrace.writeAsync(this);
     }
 
     @SuppressWarnings("unchecked")
@@ -197,14 +224,11 @@ public class ProtifyApplication extends Application {
         // Application class.
         try {
             // Find the ActivityThread instance for the current thread
-            Class<?> activityThread = Class.forName("android.app.ActivityThread");
-            Method m = activityThread.getMethod("currentActivityThread");
-            m.setAccessible(true);
-            Object currentActivityThread = m.invoke(null);
+            Class<?> activityThread = Reflection.activityThreadClass();
+            Object currentActivityThread = Reflection.currentActivityThread();
 
             // Find the mInitialApplication field of the ActivityThread to the real application
-            Field mInitialApplication = activityThread.getDeclaredField("mInitialApplication");
-            mInitialApplication.setAccessible(true);
+            Field mInitialApplication = Reflection.findField(activityThread, "mInitialApplication");
             Application initialApplication = (Application) mInitialApplication.get(currentActivityThread);
             if (initialApplication == this) {
                 mInitialApplication.set(currentActivityThread, realApplication);
@@ -212,8 +236,7 @@ public class ProtifyApplication extends Application {
 
             // Replace all instance of the stub application in ActivityThread#mAllApplications with the
             // real one
-            Field mAllApplications = activityThread.getDeclaredField("mAllApplications");
-            mAllApplications.setAccessible(true);
+            Field mAllApplications = Reflection.findField(activityThread, "mAllApplications");
             List<Application> allApplications = (List<Application>) mAllApplications
                     .get(currentActivityThread);
             for (int i = 0; i < allApplications.size(); i++) {
@@ -225,22 +248,15 @@ public class ProtifyApplication extends Application {
             // Figure out how loaded APKs are stored.
 
             // API version 8 has PackageInfo, 10 has LoadedApk. 9, I don't know.
-            Class<?> loadedApkClass;
-            try {
-                loadedApkClass = Class.forName("android.app.LoadedApk");
-            } catch (ClassNotFoundException e) {
-                loadedApkClass = Class.forName("android.app.ActivityThread$PackageInfo");
-            }
-            Field mApplication = loadedApkClass.getDeclaredField("mApplication");
-            mApplication.setAccessible(true);
-            Field mResDir = loadedApkClass.getDeclaredField("mResDir");
-            mResDir.setAccessible(true);
+            Class<?> loadedApkClass = Reflection.loadedApkClass();
+            Field mApplication = Reflection.findField(loadedApkClass, "mApplication");
+            Field mResDir = Reflection.findField(loadedApkClass, "mResDir");
 
             // 10 doesn't have this field, 14 does. Fortunately, there are not many Honeycomb devices
             // floating around.
             Field mLoadedApk = null;
             try {
-                mLoadedApk = Application.class.getDeclaredField("mLoadedApk");
+                mLoadedApk = Reflection.findField(Application.class, "mLoadedApk");
             } catch (NoSuchFieldException e) {
                 // According to testing, it's okay to ignore this.
             }
@@ -252,8 +268,7 @@ public class ProtifyApplication extends Application {
             //     used as the asset path for new Resources objects.
             //   - Set Application#mLoadedApk to the found LoadedApk instance
             for (String fieldName : new String[] { "mPackages", "mResourcePackages" }) {
-                Field field = activityThread.getDeclaredField(fieldName);
-                field.setAccessible(true);
+                Field field = Reflection.findField(activityThread, fieldName);
                 Object value = field.get(currentActivityThread);
 
                 for (Map.Entry<String, WeakReference<?>> entry :
@@ -288,6 +303,17 @@ public class ProtifyApplication extends Application {
     }
 
     public static void installExternalResources(Context context) {
+        AssetManager assets = prepareExternalResources(context);
+        if (assets != null)
+            installExternalResources(context, assets);
+    }
+
+    /**
+     * Build the AssetManager for the external resource file, may be called
+     * on any thread
+     * @return null if there are no (up to date) external resources
+     */
+    public static AssetManager prepareExternalResources(Context context) {
         File f = ProtifyResources.getResourcesFile(context);
         ApplicationInfo info = context.getApplicationInfo();
         if (info != null && new File(info.sourceDir).lastModified() > f.lastModified()) {
@@ -295,15 +321,17 @@ public class ProtifyApplication extends Application {
             f.delete();
         }
         if (f.isFile() && f.length() > 0) {
-            Log.v(TAG, "Installing external resource file: " + f);
-            if (Build.VERSION.SDK_INT >= 24)
-                V24Resources.install(f.getAbsolutePath());
-            else if (Build.VERSION.SDK_INT >= 18)
-                V19Resources.install(f.getAbsolutePath());
-            else
-                V4Resources.install(f.getAbsolutePath());
-            resourceInstallTime = System.currentTimeMillis();
+            Log.v(TAG, "Preparing external resource file: " + f);
+            return ResourceSwapper.prepare(f.getAbsolutePath());
         }
+        return null;
+    }
+
+    /** Swap {@code assets} into all live Resources, main thread only */
+    public static void installExternalResources(Context context, AssetManager assets) {
+        Log.v(TAG, "Installing external resources");
+        ResourceSwapper.swap(context, assets);
+        resourceInstallTime = System.currentTimeMillis();
     }
 
     private static long resourceInstallTime = System.currentTimeMillis();
@@ -350,135 +378,4 @@ public class ProtifyApplication extends Application {
             throw new IllegalStateException(e);
         }
     }
-
-    private static class V24Resources {
-        @TargetApi(24)
-        static void install(String externalResourceFile) {
-            try {
-                AssetManager newAssetManager = createAssetManager(externalResourceFile);
-
-                // Find the singleton instance of ResourcesManager
-                Class<?> clazz = Class.forName("android.app.ResourcesManager");
-                Method mGetInstance = clazz.getDeclaredMethod("getInstance");
-                mGetInstance.setAccessible(true);
-                Object resourcesManager = mGetInstance.invoke(null);
-
-                // Iterate over all known Resources objects
-                Field mResourceReferences = clazz.getDeclaredField("mResourceReferences");
-                mResourceReferences.setAccessible(true);
-                @SuppressWarnings("unchecked")
-                Collection<WeakReference<Resources>> references =
-                        (Collection<WeakReference<Resources>>) mResourceReferences.get(resourcesManager);
-
-                setAssetManager(references, newAssetManager);
-            } catch (IllegalAccessException | NoSuchFieldException | NoSuchMethodException |
-                    ClassNotFoundException | InvocationTargetException | InstantiationException e) {
-                throw new IllegalStateException(e);
-            }
-        }
-    }
-    private static class V19Resources {
-        @TargetApi(19)
-        static void install(String externalResourceFile) {
-            try {
-                AssetManager newAssetManager = createAssetManager(externalResourceFile);
-
-                // Find the singleton instance of ResourcesManager
-                Class<?> clazz = Class.forName("android.app.ResourcesManager");
-                Method mGetInstance = clazz.getDeclaredMethod("getInstance");
-                mGetInstance.setAccessible(true);
-                Object resourcesManager = mGetInstance.invoke(null);
-
-                // Iterate over all known Resources objects
-                Field fMActiveResources = clazz.getDeclaredField("mActiveResources");
-                fMActiveResources.setAccessible(true);
-                @SuppressWarnings("unchecked")
-                Map<?, WeakReference<Resources>> arrayMap =
-                        (Map<?, WeakReference<Resources>>) fMActiveResources.get(resourcesManager);
-                setAssetManager(arrayMap, newAssetManager);
-            } catch (IllegalAccessException | NoSuchFieldException | NoSuchMethodException |
-                    ClassNotFoundException | InvocationTargetException | InstantiationException e) {
-                throw new IllegalStateException(e);
-            }
-        }
-    }
-    private static class V4Resources {
-        static void install(String externalResourceFile) {
-            try {
-                AssetManager newAssetManager = createAssetManager(externalResourceFile);
-
-                // Find the singleton instance of ResourcesManager
-                Class<?> clazz = Class.forName("android.app.ActivityThread");
-                Method mGetInstance = clazz.getDeclaredMethod("currentActivityThread");
-                mGetInstance.setAccessible(true);
-                Object resourcesManager = mGetInstance.invoke(null);
-
-                // Iterate over all known Resources objects
-                Field fMActiveResources = clazz.getDeclaredField("mActiveResources");
-                fMActiveResources.setAccessible(true);
-                @SuppressWarnings("unchecked")
-                Map<?, WeakReference<Resources>> arrayMap =
-                        (Map<?, WeakReference<Resources>>) fMActiveResources.get(resourcesManager);
-                setAssetManager(arrayMap, newAssetManager);
-            } catch (Exception e) {
-                throw new IllegalStateException(e);
-            }
-        }
-
-    }
-
-    private static AssetManager createAssetManager(String externalResourceFile)
-            throws InvocationTargetException, IllegalAccessException, NoSuchMethodException, InstantiationException {
-        // Create a new AssetManager instance and point it to the resources installed under
-        // /sdcard
-        AssetManager newAssetManager = AssetManager.class.getConstructor().newInstance();
-        Method mAddAssetPath = AssetManager.class.getDeclaredMethod("addAssetPath", String.class);
-        mAddAssetPath.setAccessible(true);
-        if (((int) mAddAssetPath.invoke(newAssetManager, externalResourceFile)) == 0) {
-            throw new IllegalStateException("Could not create new AssetManager");
-        }
-
-        // Kitkat needs this method call, Lollipop doesn't. However, it doesn't seem to cause any harm
-        // in L, so we do it unconditionally.
-        Method mEnsureStringBlocks = AssetManager.class.getDeclaredMethod("ensureStringBlocks");
-        mEnsureStringBlocks.setAccessible(true);
-        mEnsureStringBlocks.invoke(newAssetManager);
-        return newAssetManager;
-    }
-
-    private static void setAssetManager(Map<?,WeakReference<Resources>> arrayMap, AssetManager newAssetManager) throws IllegalAccessException, NoSuchFieldException {
-        setAssetManager(arrayMap.values(), newAssetManager);
-    }
-
-    private static void setAssetManager(Collection<WeakReference<Resources>> ress, AssetManager newAssetManager) throws IllegalAccessException, NoSuchFieldException {
-        for (WeakReference<Resources> wr : ress) {
-            Resources resources = wr.get();
-            // Set the AssetManager of the Resources instance to our brand new one
-            if (resources != null) {
-                setAssetsField(resources, newAssetManager);
-                resources.updateConfiguration(resources.getConfiguration(), resources.getDisplayMetrics());
-            }
-        }
-    }
-
-    private static void setAssetsField(Resources resources, AssetManager newAssetManager) {
-        Field mAssets;
-        try {
-            if (Build.VERSION.SDK_INT >= 24) {
-                Field mResourcesImplField;
-                mResourcesImplField = Resources.class.getDeclaredField("mResourcesImpl");
-                mResourcesImplField.setAccessible(true);
-                Object mResourceImpl = mResourcesImplField.get(resources);
-                mAssets = mResourceImpl.getClass().getDeclaredField("mAssets");
-                mAssets.setAccessible(true);
-                mAssets.set(mResourceImpl, newAssetManager);
-            } else {
-                mAssets = Resources.class.getDeclaredField("mAssets");
-                mAssets.setAccessible(true);
-                mAssets.set(resources, newAssetManager);
-            }
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
-        }
-    }
 }
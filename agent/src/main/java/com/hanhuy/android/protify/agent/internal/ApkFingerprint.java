@@ -0,0 +1,70 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The lock file of a dex dir starts with the timestamp, central directory
+ * crc, size and inode of the apk the extracted files came from. The crc is
+ * only recomputed when any of the cheaper values no longer match. Plain
+ * java, it is tested on the JVM.
+ * @author pfnguyen
+ */
+final class ApkFingerprint {
+    /* Keep value away from 0 because it is a too probable time stamp value */
+    static final long NO_VALUE = -1L;
+
+    private ApkFingerprint() { }
+
+    interface Crc {
+        /** the crc of the central directory of {@code apk} */
+        long of(File apk) throws IOException;
+    }
+
+    /**
+     * Compare {@code apk} to the apk recorded at the start of {@code lock},
+     * which the caller holds the lock of, and record it in its place.
+     * @param inode of the apk, {@link #NO_VALUE} where it cannot be read
+     * @return whether the extracted files must be extracted again
+     */
+    static boolean check(RandomAccessFile lock, File apk, long inode, Crc crc) throws IOException {
+        final long timeStamp = getTimeStamp(apk);
+        final long size = apk.length();
+        long currentCrc = NO_VALUE;
+        try {
+            long length = lock.length();
+            lock.seek(0);
+            long l = length >= (Long.SIZE / 8) ? lock.readLong() : 0;
+            long c = length >= 2 * (Long.SIZE / 8) ? lock.readLong() : 0;
+            long s = length >= 3 * (Long.SIZE / 8) ? lock.readLong() : NO_VALUE;
+            long i = length >= 4 * (Long.SIZE / 8) ? lock.readLong() : NO_VALUE;
+            if (l == timeStamp && s == size && i == inode && c != 0 && c != NO_VALUE) {
+                currentCrc = c;
+                return false;
+            }
+            currentCrc = crc.of(apk);
+            if (currentCrc == NO_VALUE) {
+                // never record NO_VALUE
+                currentCrc--;
+            }
+            return c != currentCrc || l != timeStamp;
+        } finally {
+            // a crc that could not be computed is NO_VALUE, it is retried next time
+            lock.seek(0);
+            lock.writeLong(timeStamp);
+            lock.writeLong(currentCrc);
+            lock.writeLong(size);
+            lock.writeLong(inode);
+        }
+    }
+
+    private static long getTimeStamp(File archive) {
+        long timeStamp = archive.lastModified();
+        if (timeStamp == NO_VALUE) {
+            // never return NO_VALUE
+            timeStamp--;
+        }
+        return timeStamp;
+    }
+}
@@ -0,0 +1,120 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Installs the dex at startup, and keeps the books on the installed dex
+ * generation.
+ * @author pfnguyen
+ */
+public final class Bootstrap {
+    private final static String TAG = "ProtifyBootstrap";
+
+    /** how long the app has to stay up for its dex generation to be kept */
+    private final static long HEALTHY_DELAY_MS = 5000;
+
+    private static volatile boolean healthy;
+
+    private Bootstrap() { }
+
+    /**
+     * Install the dex on a bootstrap thread while {@code meanwhile} runs on
+     * the calling thread, then wait for the install: the real application
+     * cannot be created before its classes are loadable, only the work that
+     * does not need them can overlap.
+     * @param executor runs the extraction workers, null for a pool of their own
+     * @return what {@code meanwhile} returned, null if it failed
+     */
+    public static <T> T installDex(final Context context,
+                                   final DexLoader.ProgressListener listener,
+                                   final Executor executor, Callable<T> meanwhile) {
+        final Throwable[] failure = new Throwable[1];
+        Thread installer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DexLoader.install(context, listener, executor);
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        }, "protify-bootstrap");
+        installer.start();
+
+        T result = null;
+        try {
+            result = meanwhile.call();
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to prepare while installing dex", e);
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                installer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        // join publishes the installer's failure
+        if (failure[0] instanceof RuntimeException)
+            throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error)
+            throw (Error) failure[0];
+        if (failure[0] != null)
+            throw new RuntimeException(failure[0]);
+        return result;
+    }
+
+    /**
+     * Mark the installed dex generation as good once an activity resumes or
+     * the process has been up for a while; an uncaught exception before
+     * then counts against the generation, which is rolled back on a later
+     * start if it keeps crashing. Only crashes count, so background and
+     * secondary processes that start and exit cleanly never trigger one.
+     */
+    public static void watchStartup(final Context context) {
+        final Thread.UncaughtExceptionHandler previous =
+                Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                if (!healthy) {
+                    try {
+                        DexGenerations.crashed(DexLoader.getDexExtractionDir(context));
+                    } catch (Throwable t) {
+                        Log.w(TAG, "Unable to record crash of dex generation", t);
+                    }
+                }
+                if (previous != null)
+                    previous.uncaughtException(thread, e);
+            }
+        });
+        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                healthy(context);
+            }
+        }, HEALTHY_DELAY_MS);
+    }
+
+    /** main thread only */
+    static void healthy(Context context) {
+        if (healthy) return;
+        healthy = true;
+        try {
+            DexGenerations.healthy(DexLoader.getDexExtractionDir(context));
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to mark dex generation healthy", e);
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.hanhuy.android.protify.agent.internal;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import java.io.*;
@@ -12,9 +15,7 @@ import java.lang.reflect.Method;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Executor;
 
 /**
  * @author pfnguyen
@@ -22,23 +23,16 @@ import java.util.zip.ZipOutputStream;
 public class DexExtractor {
     private static final String TAG = DexLoader.TAG;
 
-    private static final String PROTIFY_DEX_PREFIX = "protify-dex/";
-    private static final String DEX_SUFFIX = ".dex";
-
-    static final String ZIP_SUFFIX = ".zip";
+    static final String ZIP_SUFFIX = ShardExtractor.ZIP_SUFFIX;
     private static final int MAX_EXTRACT_ATTEMPTS = 3;
+    private static final int MAX_EXTRACT_THREADS = 4;
 
     private static final String PREFS_FILE = "protify.version";
     private static final String KEY_TIME_STAMP = "timestamp";
     private static final String KEY_CRC = "crc";
     private static final String LOCK_FILE = "protify.extraction.lock";
 
-    /**
-     * Size of reading buffers.
-     */
-    private static final int BUFFER_SIZE = 0x4000;
-    /* Keep value away from 0 because it is a too probable time stamp value */
-    private static final long NO_VALUE = -1L;
+    private static final long NO_VALUE = ApkFingerprint.NO_VALUE;
 
     /**
      * Extracts application secondary dexes into files in the application data
@@ -49,10 +43,12 @@ public class DexExtractor {
      * @throws IOException if encounters a problem while reading or writing
      *         secondary dex files
      */
-    static List<File> load(Context context, ApplicationInfo applicationInfo, File dexDir) throws IOException {
-        return load(context, applicationInfo, dexDir, false);
+    static List<File> load(Context context, ApplicationInfo applicationInfo, File dexDir,
+                           DexLoader.ProgressListener listener, Executor executor) throws IOException {
+        return load(context, applicationInfo, dexDir, false, listener, executor);
     }
-    static List<File> load(final Context context, final ApplicationInfo applicationInfo, final File dexDir, final boolean force) throws IOException {
+    static List<File> load(final Context context, final ApplicationInfo applicationInfo, final File dexDir, final boolean force,
+                           final DexLoader.ProgressListener listener, final Executor executor) throws IOException {
         Log.i(TAG, "DexExtractor.load(" + applicationInfo.sourceDir + ")");
         final File sourceApk = new File(applicationInfo.sourceDir);
 
@@ -61,12 +57,15 @@ public class DexExtractor {
             public List<File> run(boolean dirty) throws IOException {
                 List<File> files;
                 if (!force && !dirty) {
-                    files = loadExistingExtractions(dexDir);
+                    DexGenerations.startup(dexDir);
+                    File active = DexGenerations.active(dexDir);
+                    files = active == null ?
+                            Collections.<File>emptyList() : loadExistingExtractions(active);
                     if (files.isEmpty())
-                        files = performExtractions(sourceApk, dexDir);
+                        files = performExtractions(sourceApk, dexDir, listener, executor);
                 } else {
                     Log.i(TAG, "Detected that extraction must be performed.");
-                    files = performExtractions(sourceApk, dexDir);
+                    files = performExtractions(sourceApk, dexDir, listener, executor);
                 }
 
                 Log.i(TAG, "load found " + files.size() + " secondary dex files");
@@ -79,8 +78,11 @@ public class DexExtractor {
         T run(boolean dirty) throws IOException;
     }
 
+    /**
+     * Hold the lock file while {@code r} runs, it is dirty if the apk is not
+     * the one the extracted files came from, see {@link ApkFingerprint}
+     */
     private static <T> T withBlockingLock(File dexDir, File sourceApk, RunnableIO<T> r) throws IOException {
-        final long currentCrc = getZipCrc(sourceApk);
         File lockFile = new File(dexDir, LOCK_FILE);
         RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw");
         FileChannel lockChannel = null;
@@ -88,15 +90,25 @@ public class DexExtractor {
         try {
             lockChannel = lockRaf.getChannel();
             Log.v(TAG, "Waiting for lock on: " + lockFile.getAbsolutePath());
+            int trace = StartupTrace.begin("lockWait");
             cacheLock = lockChannel.lock();
+            StartupTrace.end(trace);
             Log.v(TAG, "Locked " + lockFile.getPath());
-            long l = lockRaf.length() >= (Long.SIZE / 8) ? lockRaf.readLong() : 0;
-            long c = lockRaf.length() >= 2 * (Long.SIZE / 8) ? lockRaf.readLong() : 0;
-            return r.run(c != currentCrc || l != getTimeStamp(sourceApk));
+            boolean dirty = ApkFingerprint.check(lockRaf, sourceApk, getInode(sourceApk),
+                    new ApkFingerprint.Crc() {
+                        @Override
+                        public long of(File apk) throws IOException {
+                            long start = System.currentTimeMillis();
+                            int trace = StartupTrace.begin("zipCrc");
+                            long crc = ZipUtil.getZipCrc(apk);
+                            StartupTrace.end(trace);
+                            Log.v(TAG, "APK changed, central directory crc took " +
+                                    (System.currentTimeMillis() - start) + "ms");
+                            return crc;
+                        }
+                    });
+            return r.run(dirty);
         } finally {
-            lockRaf.seek(0);
-            lockRaf.writeLong(getTimeStamp(sourceApk));
-            lockRaf.writeLong(currentCrc);
             if (cacheLock != null)
                 cacheLock.release();
             if (lockChannel != null)
@@ -106,82 +118,74 @@ public class DexExtractor {
         }
     }
 
-    private static List<File> loadExistingExtractions(File dexDir) {
+    private static List<File> loadExistingExtractions(File dexDir) throws IOException {
         Log.i(TAG, "loading existing secondary dex files");
-
-        File[] files = dexDir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File file, String s) {
-                return Build.VERSION.SDK_INT >= 14 ?
-                        s.endsWith(DEX_SUFFIX) : s.endsWith(ZIP_SUFFIX);
-            }
-        });
-        Arrays.sort(files, new Comparator<File>() {
-            @Override
-            public int compare(File f1, File f2) {
-                return (int) (f2.lastModified() - f1.lastModified());
-            }
-        });
-
-        if (files == null) files = new File[0];
-
-        return Arrays.asList(files);
-    }
-
-    private static long getTimeStamp(File archive) {
-        long timeStamp = archive.lastModified();
-        if (timeStamp == NO_VALUE) {
-            // never return NO_VALUE
-            timeStamp--;
-        }
-        return timeStamp;
+        return DexGenerations.shards(dexDir);
     }
 
-
-    private static long getZipCrc(File archive) throws IOException {
-        long computedValue = ZipUtil.getZipCrc(archive);
-        if (computedValue == NO_VALUE) {
-            // never return NO_VALUE
-            computedValue--;
-        }
-        return computedValue;
+    private static long getInode(File archive) {
+        return Build.VERSION.SDK_INT >= 21 ? V21.getInode(archive) : NO_VALUE;
     }
 
-    private static List<File> performExtractions(File sourceApk, File dexDir)
+    private static List<File> performExtractions(final File sourceApk, final File dexDir,
+                                                 DexLoader.ProgressListener listener,
+                                                 Executor executor)
             throws IOException {
 
         // Ensure that whatever deletions happen in prepareDexDir only happen if the zip that
         // contains a secondary dex file in there is not consistent with the latest apk.  Otherwise,
         // multi-process race conditions can cause a crash loop where one process deletes the zip
         // while another had created it.
+        int trace = StartupTrace.begin("extract");
         prepareDexDir(dexDir);
-
-        List<File> files = new ArrayList<File>();
-
-        final ZipFile apk = new ZipFile(sourceApk);
+        File staging = DexGenerations.stage(dexDir);
+        boolean committed = false;
         try {
-            for (Enumeration<? extends ZipEntry> e = apk.entries(); e.hasMoreElements();) {
-                ZipEntry entry = e.nextElement();
-                String name = entry.getName();
-                if (name.startsWith(PROTIFY_DEX_PREFIX) && name.endsWith(DEX_SUFFIX)) {
-                    String fname = name.substring(name.lastIndexOf("/") + 1);
-                    File extractedFile = new File(dexDir,
-                            Build.VERSION.SDK_INT < 14 ? fname + ZIP_SUFFIX : fname);
-                    if (Build.VERSION.SDK_INT < 14) {
-                        extractV4(apk, entry, extractedFile, "protify-extraction");
-                    } else
-                        extractV14(apk, entry, extractedFile, "protify-extraction");
-                    files.add(extractedFile);
-                }
+            List<File> files = extractGeneration(sourceApk, staging, listener, executor);
+            List<String> order = new ArrayList<String>(files.size());
+            for (File f : files) {
+                order.add(f.getName());
             }
+            DexGenerations.commit(dexDir, staging, order, false);
+            committed = true;
+            File active = DexGenerations.active(dexDir);
+            List<File> loadable = new ArrayList<File>(files.size());
+            for (File f : files) {
+                loadable.add(new File(active, f.getName()));
+            }
+            return loadable;
         } finally {
+            if (!committed)
+                DexGenerations.discard(staging);
+            StartupTrace.end(trace);
+        }
+    }
+
+    private static List<File> extractGeneration(final File sourceApk, final File dexDir,
+                                                final DexLoader.ProgressListener listener,
+                                                Executor executor)
+            throws IOException {
+        List<ShardExtractor.Entry> entries = ShardExtractor.entries(sourceApk);
+        if (Build.VERSION.SDK_INT >= 14) {
             try {
-                apk.close();
+                ShardExtractor.findStored(sourceApk, entries);
             } catch (IOException e) {
-                Log.w(TAG, "Failed to close resource", e);
+                Log.w(TAG, "Unable to locate stored entries, extracting through ZipFile", e);
             }
         }
 
+        int workers = Math.min(MAX_EXTRACT_THREADS, Runtime.getRuntime().availableProcessors());
+        long start = System.currentTimeMillis();
+        List<File> files = ShardExtractor.extract(sourceApk, dexDir, entries,
+                Build.VERSION.SDK_INT < 14, workers, executor, listener == null ? null :
+                        new ShardExtractor.Listener() {
+                            @Override
+                            public void onProgress(int completed, int total) {
+                                listener.onProgress(completed, total);
+                            }
+                        });
+        Log.i(TAG, "Extracted " + files.size() + " secondary dex files on up to " + workers +
+                " threads in " + (System.currentTimeMillis() - start) + "ms");
         return files;
     }
 
@@ -194,91 +198,23 @@ public class DexExtractor {
         }
         for (File oldFile : files) {
             if (!LOCK_FILE.equals(oldFile.getName())) {
-                if (!oldFile.delete()) {
+                DexGenerations.delete(oldFile);
+                if (oldFile.exists()) {
                     Log.w(TAG, "Failed to delete old file " + oldFile.getPath());
                 }
             }
         }
     }
 
-    private static void extractV14(ZipFile apk, ZipEntry dexFile, File extractTo,
-                                String extractedFilePrefix) throws IOException {
-
-        InputStream in = apk.getInputStream(dexFile);
-        File tmp = File.createTempFile(extractedFilePrefix, DEX_SUFFIX,
-                extractTo.getParentFile());
-        try {
-            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
-            try {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int length = in.read(buffer);
-                while (length != -1) {
-                    out.write(buffer, 0, length);
-                    length = in.read(buffer);
-                }
-            } finally {
-                out.close();
-            }
-            if (!tmp.renameTo(extractTo)) {
-                throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
-                        "\" to \"" + extractTo.getAbsolutePath() + "\"");
-            }
-            Log.i(TAG, "Extracted " + extractTo.getPath());
-        } finally {
-            closeQuietly(in);
-            tmp.delete(); // return status ignored
-        }
-        if (!extractTo.isFile()) {
-            throw new IOException("Failed to extract to: " + extractTo);
-        }
-    }
-    private static void extractV4(ZipFile apk, ZipEntry dexFile, File extractTo,
-                                String extractedFilePrefix) throws IOException, FileNotFoundException {
-
-        InputStream in = apk.getInputStream(dexFile);
-        ZipOutputStream out = null;
-        File tmp = File.createTempFile(extractedFilePrefix, ZIP_SUFFIX,
-                extractTo.getParentFile());
-        Log.i(TAG, "Extracting " + tmp.getPath());
-        try {
-            out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    @TargetApi(21)
+    private static final class V21 {
+        static long getInode(File archive) {
             try {
-                ZipEntry classesDex = new ZipEntry("classes.dex");
-                // keep zip entry time since it is the criteria used by Dalvik
-                classesDex.setTime(dexFile.getTime());
-                out.putNextEntry(classesDex);
-
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int length = in.read(buffer);
-                while (length != -1) {
-                    out.write(buffer, 0, length);
-                    length = in.read(buffer);
-                }
-                out.closeEntry();
-            } finally {
-                out.close();
-            }
-            Log.i(TAG, "Renaming to " + extractTo.getPath());
-            if (!tmp.renameTo(extractTo)) {
-                throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
-                        "\" to \"" + extractTo.getAbsolutePath() + "\"");
+                return Os.stat(archive.getAbsolutePath()).st_ino;
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Unable to stat " + archive, e);
+                return NO_VALUE;
             }
-        } finally {
-            closeQuietly(in);
-            tmp.delete(); // return status ignored
-        }
-    }
-
-
-        /**
-         * Closes the given {@code Closeable}. Suppresses any IO exceptions.
-         */
-    private static void closeQuietly(Closeable closeable) {
-        try {
-            closeable.close();
-        } catch (IOException e) {
-            Log.w(TAG, "Failed to close resource", e);
         }
     }
 }
-
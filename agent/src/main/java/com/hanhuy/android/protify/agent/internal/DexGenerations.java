@@ -0,0 +1,408 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Dex shards live in numbered generation directories under the extraction
+ * dir. {@code generation} names the current and previous generations and is
+ * only ever replaced by a rename, so switching generations is a single step.
+ * A deployment stages a complete new generation next to the current one and
+ * commits it; the previous generation is kept until the next commit and is
+ * restored when the new one crashes {@link #MAX_ATTEMPTS} times in a row
+ * before it becomes healthy. A rollback leaves a marker that fails every
+ * deploy but a full one, so the plugin stops diffing against the rolled
+ * back shards.
+ *
+ * Each generation has an index of its shards in class path order, with
+ * their sizes, written before it is committed. Loading reads the index and
+ * a single directory listing instead of stat-ing and sorting the shards.
+ *
+ * Since Lollipop the shards are loaded through the {@code live} symlink so
+ * that their paths, and with them ART's compiled output, stay the same
+ * from one generation to the next.
+ * @author pfnguyen
+ */
+final class DexGenerations {
+    private final static String TAG = DexLoader.TAG;
+    private final static String STATE = "generation";
+    private final static String ATTEMPTS = "attempts";
+    private final static String ROLLED_BACK = "rolled-back";
+    private final static String LIVE = "live";
+    private final static String PREFIX = "gen-";
+    private final static String INDEX = "shards";
+    /** consecutive crashes before becoming healthy that cause a rollback */
+    final static int MAX_ATTEMPTS = 3;
+
+    private DexGenerations() { }
+
+    /** @return the directory to load shards from, null if no generation exists */
+    static File active(File extractDir) throws IOException {
+        State s = State.read(extractDir);
+        if (s.current == null) return null;
+        if (Build.VERSION.SDK_INT >= 21) {
+            V21.link(extractDir, s.current);
+            return new File(extractDir, LIVE);
+        }
+        return new File(extractDir, s.current);
+    }
+
+    /** the real directory of the current generation, null if none */
+    static File current(File extractDir) throws IOException {
+        State s = State.read(extractDir);
+        return s.current == null ? null : new File(extractDir, s.current);
+    }
+
+    /**
+     * Roll back to the previous generation when the current one has
+     * crashed {@link #MAX_ATTEMPTS} times without becoming healthy. Called
+     * with the extraction lock held.
+     */
+    static void startup(File extractDir) throws IOException {
+        State s = State.read(extractDir);
+        if (s.current == null || s.previous == null) return;
+        File attempts = new File(extractDir, ATTEMPTS);
+        int count = failures(attempts, s.current);
+        if (count >= MAX_ATTEMPTS) {
+            Log.w(TAG, s.current + " crashed " + count +
+                    " times, rolling back to " + s.previous +
+                    "; deploy again after fixing the crash");
+            File failed = new File(extractDir, s.current);
+            writeLine(new File(extractDir, ROLLED_BACK), s.current, false);
+            new State(s.previous, null).write(extractDir);
+            attempts.delete();
+            delete(failed);
+        }
+    }
+
+    /** the current generation crashed before it became healthy */
+    static void crashed(File extractDir) throws IOException {
+        State s = State.read(extractDir);
+        if (s.current == null || s.previous == null) return;
+        File attempts = new File(extractDir, ATTEMPTS);
+        writeLine(attempts, s.current + " " + (failures(attempts, s.current) + 1), false);
+    }
+
+    private static int failures(File attempts, String generation) throws IOException {
+        String[] recorded = readLine(attempts).split(" ");
+        if (recorded.length == 2 && recorded[0].equals(generation)) {
+            try {
+                return Integer.parseInt(recorded[1]);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /** the current generation started successfully */
+    static void healthy(File extractDir) {
+        if (new File(extractDir, ATTEMPTS).delete())
+            Log.v(TAG, "Dex generation started successfully");
+    }
+
+    /** whether the last committed generation was rolled back */
+    static boolean rolledBack(File extractDir) {
+        return new File(extractDir, ROLLED_BACK).isFile();
+    }
+
+    /** @return a new, empty generation directory to fill and {@link #commit} */
+    static File stage(File extractDir) throws IOException {
+        int next = 0;
+        String[] names = extractDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX)) {
+                    try {
+                        next = Math.max(next, Integer.parseInt(name.substring(PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        File staging = new File(extractDir, PREFIX + (next + 1));
+        delete(staging);
+        if (!staging.mkdirs())
+            throw new IOException("Unable to create " + staging);
+        return staging;
+    }
+
+    /**
+     * @return the shards of {@code generation} in class path order, empty if
+     *         it has no index or a shard in the index is missing
+     */
+    static List<File> shards(File generation) throws IOException {
+        List<Shard> index = readIndex(generation);
+        if (index == null) {
+            Log.w(TAG, "No shard index in " + generation);
+            return Collections.emptyList();
+        }
+        String[] listed = generation.list();
+        Set<String> present = new HashSet<String>();
+        if (listed != null)
+            present.addAll(Arrays.asList(listed));
+        List<File> files = new ArrayList<File>(index.size());
+        for (Shard shard : index) {
+            if (!present.remove(shard.name)) {
+                Log.w(TAG, "Shard " + shard.name + " is missing from " + generation);
+                return Collections.emptyList();
+            }
+            files.add(new File(generation, shard.name));
+        }
+        present.remove(INDEX);
+        if (!present.isEmpty())
+            Log.w(TAG, "Ignoring files not in the shard index of " + generation + ": " + present);
+        return files;
+    }
+
+    /**
+     * Carry the shards of {@code from} that are not yet in {@code staging}
+     * over, appending them to {@code order}. Committed generations are never
+     * written to, so they are hard linked where possible.
+     * @throws IOException if a shard does not have its indexed size
+     */
+    static void fill(File from, File staging, List<String> order) throws IOException {
+        List<Shard> index = readIndex(from);
+        if (index == null)
+            throw new IOException("No shard index in " + from);
+        for (Shard shard : index) {
+            File f = new File(from, shard.name);
+            File dest = new File(staging, shard.name);
+            if (dest.exists()) continue;
+            if (f.length() != shard.size)
+                throw new IOException("Shard " + f + " is " + f.length() +
+                        " bytes, expected " + shard.size);
+            if (Build.VERSION.SDK_INT < 21 || !V21.hardLink(f, dest)) {
+                copy(f, dest);
+                dest.setLastModified(f.lastModified());
+            }
+            order.add(shard.name);
+        }
+    }
+
+    /**
+     * Index, flush {@code staging} to disk and make it the current generation
+     * @param order the shards of {@code staging}, in class path order
+     * @param keepPrevious whether the replaced generation is kept for rollback
+     */
+    static void commit(File extractDir, File staging, List<String> order,
+                       boolean keepPrevious) throws IOException {
+        writeIndex(staging, order);
+        File[] files = staging.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                sync(f);
+            }
+        }
+        State old = State.read(extractDir);
+        State s = new State(staging.getName(), keepPrevious ? old.current : null);
+        s.write(extractDir);
+        new File(extractDir, ATTEMPTS).delete();
+        new File(extractDir, ROLLED_BACK).delete();
+        if (Build.VERSION.SDK_INT >= 21)
+            V21.link(extractDir, s.current);
+
+        String[] names = extractDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && !name.equals(s.current) &&
+                        !name.equals(s.previous))
+                    delete(new File(extractDir, name));
+            }
+        }
+        Log.v(TAG, "Committed dex generation " + s.current +
+                (s.previous != null ? ", keeping " + s.previous : ""));
+    }
+
+    private static List<Shard> readIndex(File generation) throws IOException {
+        File f = new File(generation, INDEX);
+        if (!f.isFile()) return null;
+        List<Shard> shards = new ArrayList<Shard>();
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int space = line.lastIndexOf(' ');
+                if (space < 1) return null;
+                try {
+                    shards.add(new Shard(line.substring(0, space),
+                            Long.parseLong(line.substring(space + 1))));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return shards;
+    }
+
+    private static void writeIndex(File generation, List<String> order) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String name : order) {
+            File f = new File(generation, name);
+            if (!f.isFile())
+                throw new IOException("Shard " + f + " does not exist");
+            sb.append(name).append(' ').append(f.length()).append('\n');
+        }
+        Writer w = new OutputStreamWriter(
+                new FileOutputStream(new File(generation, INDEX)), "utf-8");
+        try {
+            w.write(sb.toString());
+        } finally {
+            w.close();
+        }
+    }
+
+    /** remove a generation that was staged but not committed */
+    static void discard(File staging) {
+        delete(staging);
+    }
+
+    /** delete {@code f} and everything under it, without following symlinks */
+    static void delete(File f) {
+        File[] files = isLink(f) ? null : f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    private static boolean isLink(File f) {
+        try {
+            File parent = f.getParentFile();
+            File resolved = parent == null ? f : new File(parent.getCanonicalFile(), f.getName());
+            return !resolved.getCanonicalFile().equals(resolved.getAbsoluteFile());
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[0x4000];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void sync(File f) throws IOException {
+        FileOutputStream out = new FileOutputStream(f, true);
+        try {
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readLine(File f) throws IOException {
+        if (!f.isFile()) return "";
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        try {
+            String line = r.readLine();
+            return line == null ? "" : line.trim();
+        } finally {
+            r.close();
+        }
+    }
+
+    /** write {@code line} to {@code f}, through a synced temporary file if atomic */
+    private static void writeLine(File f, String line, boolean atomic) throws IOException {
+        File target = atomic ? new File(f.getPath() + ".tmp") : f;
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            out.write((line + "\n").getBytes("utf-8"));
+            if (atomic) out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (atomic && !target.renameTo(f))
+            throw new IOException("Unable to replace " + f);
+    }
+
+    private final static class Shard {
+        final String name;
+        final long size;
+
+        Shard(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    private final static class State {
+        final String current;
+        final String previous;
+
+        State(String current, String previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+
+        static State read(File extractDir) throws IOException {
+            String[] names = readLine(new File(extractDir, STATE)).split(" ");
+            String current = names[0].length() > 0 &&
+                    new File(extractDir, names[0]).isDirectory() ? names[0] : null;
+            String previous = names.length > 1 &&
+                    new File(extractDir, names[1]).isDirectory() ? names[1] : null;
+            return new State(current, current == null ? null : previous);
+        }
+
+        void write(File extractDir) throws IOException {
+            writeLine(new File(extractDir, STATE),
+                    previous == null ? current : current + " " + previous, true);
+        }
+    }
+
+    @TargetApi(21)
+    private final static class V21 {
+        static boolean hardLink(File from, File to) {
+            try {
+                Os.link(from.getPath(), to.getPath());
+                return true;
+            } catch (ErrnoException e) {
+                return false;
+            }
+        }
+
+        /** point the live symlink at {@code generation}, replacing it by rename */
+        static void link(File extractDir, String generation) throws IOException {
+            File live = new File(extractDir, LIVE);
+            try {
+                if (generation.equals(Os.readlink(live.getPath())))
+                    return;
+            } catch (ErrnoException e) {
+                // missing, recreate below
+            }
+            File tmp = new File(extractDir, LIVE + ".tmp");
+            tmp.delete();
+            try {
+                Os.symlink(generation, tmp.getPath());
+                Os.rename(tmp.getPath(), live.getPath());
+            } catch (ErrnoException e) {
+                IOException ioe = new IOException("Unable to link " + live + " to " + generation);
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Executor;
 import java.util.zip.ZipFile;
 
 /**
@@ -26,7 +27,23 @@ public class DexLoader {
     private static final String CODE_CACHE_NAME = "protify-code-cache";
     private static final String CODE_CACHE_PROTIFY_FOLDER_NAME = PROTIFY_DEX_FOLDER_NAME;
 
+    /**
+     * Receives extraction progress, called in order on the thread that
+     * calls {@link #install(Context, ProgressListener, Executor)}
+     */
+    public interface ProgressListener {
+        void onProgress(int completed, int total);
+    }
+
     public static void install(Context context) {
+        install(context, null, null);
+    }
+
+    /**
+     * @param executor runs the extraction workers, e.g. inline to make
+     *                 extraction deterministic; null for a pool of their own
+     */
+    public static void install(Context context, ProgressListener listener, Executor executor) {
         Log.i(TAG, "install");
         long start = System.currentTimeMillis();
 
@@ -69,11 +86,13 @@ public class DexLoader {
 
             File dexDir = getDexDir(context, applicationInfo);
             File extractDir = getDexExtractionDir(context);
-            List<File> dexes = DexExtractor.load(context, applicationInfo, extractDir);
+            List<File> dexes = DexExtractor.load(context, applicationInfo, extractDir, listener, executor);
             // nothing to install if not present
             if (!dexes.isEmpty()) {
                 Log.v(TAG, "Loading secondary dexes");
+                int trace = StartupTrace.begin("makeDexElements");
                 installSecondaryDexes(loader, dexDir, dexes);
+                StartupTrace.end(trace);
             }
 
         } catch (Exception e) {
@@ -84,6 +103,18 @@ public class DexLoader {
         Log.i(TAG, "install done " + elapsed + "ms");
     }
 
+    /**
+     * Add a hot swap patch to the running process. Its classes are named
+     * uniquely per patch, so it may go in front of the installed dexes.
+     */
+    static void installPatch(Context context, File dex) throws Exception {
+        ApplicationInfo applicationInfo = getApplicationInfo(context);
+        if (applicationInfo == null)
+            throw new IllegalStateException("No application info");
+        installSecondaryDexes(context.getClassLoader(),
+                getDexDir(context, applicationInfo), Collections.singletonList(dex));
+    }
+
     public static File getDexExtractionDir(Context context)
             throws IOException, PackageManager.NameNotFoundException {
         ApplicationInfo applicationInfo = getApplicationInfo(context);
@@ -112,7 +143,7 @@ public class DexLoader {
     private static void expandFieldArray(Object instance, String fieldName,
                                          Object[] extraElements) throws NoSuchFieldException, IllegalArgumentException,
             IllegalAccessException {
-        Field jlrField = findField(instance, fieldName);
+        Field jlrField = Reflection.findField(instance, fieldName);
         Object[] original = (Object[]) jlrField.get(instance);
         Object[] combined = (Object[]) Array.newInstance(
                 original.getClass().getComponentType(), original.length + extraElements.length);
@@ -198,63 +229,6 @@ public class DexLoader {
         }
     }
 
-    /**
-     * Locates a given field anywhere in the class inheritance hierarchy.
-     *
-     * @param instance an object to search the field into.
-     * @param name field name
-     * @return a field object
-     * @throws NoSuchFieldException if the field cannot be located
-     */
-    private static Field findField(Object instance, String name) throws NoSuchFieldException {
-        for (Class<?> clazz = instance.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
-            try {
-                Field field = clazz.getDeclaredField(name);
-
-
-                if (!field.isAccessible()) {
-                    field.setAccessible(true);
-                }
-
-                return field;
-            } catch (NoSuchFieldException e) {
-                // ignore and search next
-            }
-        }
-
-        throw new NoSuchFieldException("Field " + name + " not found in " + instance.getClass());
-    }
-
-    /**
-     * Locates a given method anywhere in the class inheritance hierarchy.
-     *
-     * @param instance an object to search the method into.
-     * @param name method name
-     * @param parameterTypes method parameter types
-     * @return a method object
-     * @throws NoSuchMethodException if the method cannot be located
-     */
-    private static Method findMethod(Object instance, String name, Class<?>... parameterTypes)
-            throws NoSuchMethodException {
-        for (Class<?> clazz = instance.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
-            try {
-                Method method = clazz.getDeclaredMethod(name, parameterTypes);
-
-
-                if (!method.isAccessible()) {
-                    method.setAccessible(true);
-                }
-
-                return method;
-            } catch (NoSuchMethodException e) {
-                // ignore and search next
-            }
-        }
-
-        throw new NoSuchMethodException("Method " + name + " with parameters " +
-                Arrays.asList(parameterTypes) + " not found in " + instance.getClass());
-    }
-
     private static final class V19 {
 
         private static void install(ClassLoader loader, List<File> additionalClassPathEntries,
@@ -266,7 +240,7 @@ public class DexLoader {
              * dalvik.system.DexPathList pathList field to append additional DEX
              * file entries.
              */
-            Field pathListField = findField(loader, "pathList");
+            Field pathListField = Reflection.findField(loader, "pathList");
             Object dexPathList = pathListField.get(loader);
             ArrayList<IOException> suppressedExceptions = new ArrayList<IOException>();
             expandFieldArray(dexPathList, "dexElements", makeDexElements(dexPathList,
@@ -277,7 +251,7 @@ public class DexLoader {
                     Log.w(TAG, "Exception in makeDexElement", e);
                 }
                 Field suppressedExceptionsField =
-                        findField(loader, "dexElementsSuppressedExceptions");
+                        Reflection.findField(loader, "dexElementsSuppressedExceptions");
                 IOException[] dexElementsSuppressedExceptions =
                         (IOException[]) suppressedExceptionsField.get(loader);
 
@@ -312,7 +286,7 @@ public class DexLoader {
             boolean v23 = Build.VERSION.SDK_INT >= 23;
             Class<?> listType = v23 ? List.class : ArrayList.class;
             Method makeDexElements =
-                    findMethod(dexPathList, v23 ? "makePathElements" : "makeDexElements",
+                    Reflection.findMethod(dexPathList, v23 ? "makePathElements" : "makeDexElements",
                             listType, File.class, listType);
 
             return (Object[]) makeDexElements.invoke(dexPathList, files, optimizedDirectory,
@@ -334,7 +308,7 @@ public class DexLoader {
              * dalvik.system.DexPathList pathList field to append additional DEX
              * file entries.
              */
-            Field pathListField = findField(loader, "pathList");
+            Field pathListField = Reflection.findField(loader, "pathList");
             Object dexPathList = pathListField.get(loader);
             expandFieldArray(dexPathList, "dexElements", makeDexElements(dexPathList,
                     new ArrayList<File>(additionalClassPathEntries), optimizedDirectory));
@@ -349,7 +323,7 @@ public class DexLoader {
                 throws IllegalAccessException, InvocationTargetException,
                 NoSuchMethodException {
             Method makeDexElements =
-                    findMethod(dexPathList, "makeDexElements", ArrayList.class, File.class);
+                    Reflection.findMethod(dexPathList, "makeDexElements", ArrayList.class, File.class);
 
             return (Object[]) makeDexElements.invoke(dexPathList, files, optimizedDirectory);
         }
@@ -369,7 +343,7 @@ public class DexLoader {
              */
             int extraSize = additionalClassPathEntries.size();
 
-            Field pathField = findField(loader, "path");
+            Field pathField = Reflection.findField(loader, "path");
 
             StringBuilder path = new StringBuilder((String) pathField.get(loader));
             String[] extraPaths = new String[extraSize];
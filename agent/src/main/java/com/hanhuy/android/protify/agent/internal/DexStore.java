@@ -0,0 +1,102 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import android.content.Context;
+import android.util.Log;
+import com.hanhuy.android.protify.DexStoreIndex;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+
+/**
+ * Content-addressed copies of deployed dex shards, named by their
+ * {@link DexStoreIndex#key}. Lives outside the extraction dir so that it
+ * survives a changed apk, the plugin only sends the key of a shard version
+ * it believes is still in here; a miss fails the deploy and the plugin
+ * pushes the shard instead.
+ * @author pfnguyen
+ */
+final class DexStore {
+    private final static String TAG = "DexStore";
+    private final static String INDEX = "index.txt";
+
+    private final File dir;
+    private final DexStoreIndex index;
+
+    private DexStore(File dir) throws IOException {
+        this.dir = dir;
+        this.index = DexStoreIndex.read(new File(dir, INDEX));
+    }
+
+    static DexStore open(Context context) throws IOException {
+        return new DexStore(getStoreDir(context));
+    }
+
+    static File getStoreDir(Context context) throws IOException {
+        File dir = new File(context.getFilesDir(), "protify-dex-store");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        return dir;
+    }
+
+    /** @return the stored shard with {@code key} */
+    File get(String key) throws FileNotFoundException {
+        File f = new File(dir, key + ".dex");
+        if (!f.isFile())
+            throw new FileNotFoundException("DEX " + key + " is no longer in the store");
+        return f;
+    }
+
+    /** keep a copy of {@code dex} as the current version of {@code shard} */
+    void put(String shard, String key, File dex) throws IOException {
+        File f = new File(dir, key + ".dex");
+        if (!f.isFile() && !f.equals(dex)) {
+            File tmp = new File(dir, key + ".tmp");
+            FileChannel in = new FileInputStream(dex).getChannel();
+            FileChannel out = new FileOutputStream(tmp).getChannel();
+            try {
+                long size = in.size();
+                long pos = 0;
+                while (pos < size)
+                    pos += in.transferTo(pos, size - pos, out);
+            } finally {
+                in.close();
+                out.close();
+            }
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("Unable to store " + f);
+            }
+        }
+        index.record(shard, key);
+    }
+
+    /** persist the index and drop versions that fell out of it */
+    void commit() throws IOException {
+        index.write(new File(dir, INDEX));
+        Set<String> live = index.keys();
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        int evicted = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.equals(INDEX)) continue;
+            int dot = name.lastIndexOf('.');
+            if (dot == -1 || !live.contains(name.substring(0, dot))) {
+                f.delete();
+                evicted++;
+            }
+        }
+        if (evicted > 0)
+            Log.v(TAG, "Evicted " + evicted + " stored DEX");
+    }
+
+    static void clear(Context context) throws IOException {
+        File[] files = getStoreDir(context).listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import android.content.Context;
+import android.util.Log;
+import com.hanhuy.android.protify.IncrementalChange;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hot swap patch, the {@code $override} classes of the classes whose
+ * method bodies changed. Setting them in the {@code $change} fields of
+ * those classes makes the running process use the new bodies, the new
+ * shards are only loaded on the next start.
+ * @author pfnguyen
+ */
+final class HotSwap {
+    private final static String TAG = "ProtifyHotSwap";
+    private final static String PATCH_DIR = "protify-patches";
+    private final static String OVERRIDE = "$override$";
+    private final static String CHANGE_FIELD = "$change";
+
+    /** the fields set by the last patch applied, main thread only */
+    private final static Set<Field> swapped = new HashSet<Field>();
+
+    private final Map<Field,IncrementalChange> changes;
+
+    private HotSwap(Map<Field,IncrementalChange> changes) {
+        this.changes = changes;
+    }
+
+    /**
+     * Load a patch into the app's class loader, nothing is swapped until
+     * {@link #apply()}. API 14+, off the main thread
+     * @param classes the {@code $override} classes in the patch, comma separated
+     */
+    static HotSwap load(Context context, File patch, String classes) throws Exception {
+        File dir = context.getDir(PATCH_DIR, Context.MODE_PRIVATE);
+        File[] old = dir.listFiles();
+        if (old != null) {
+            // earlier patches stay loaded until the process exits
+            for (File f : old) {
+                f.delete();
+            }
+        }
+        File dex = new File(dir, patch.getName());
+        copy(patch, dex);
+        DexLoader.installPatch(context, dex);
+
+        ClassLoader loader = context.getClassLoader();
+        Map<Field,IncrementalChange> changes = new LinkedHashMap<Field,IncrementalChange>();
+        for (String name : classes.split(",")) {
+            int i = name.indexOf(OVERRIDE);
+            if (i == -1)
+                throw new IllegalArgumentException("Not a hot swap class: " + name);
+            Field change = Class.forName(name.substring(0, i), false, loader).getField(CHANGE_FIELD);
+            changes.put(change, (IncrementalChange) Class.forName(name, true, loader).newInstance());
+        }
+        Log.v(TAG, "Loaded hot swap patch for " + changes.size() + " classes");
+        return new HotSwap(changes);
+    }
+
+    /**
+     * main thread only, classes swapped by an earlier patch but unchanged
+     * in this one are back to their installed bodies
+     * @return the number of classes swapped
+     */
+    int apply() {
+        try {
+            for (Field f : swapped) {
+                if (!changes.containsKey(f)) f.set(null, null);
+            }
+            for (Map.Entry<Field,IncrementalChange> e : changes.entrySet()) {
+                e.getKey().set(null, e.getValue());
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        swapped.clear();
+        swapped.addAll(changes.keySet());
+        return changes.size();
+    }
+
+    private static void copy(File source, File dest) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(dest);
+            try {
+                byte[] buffer = new byte[0x4000];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import android.app.Activity;
+import android.content.Context;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ContextThemeWrapper;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Records the layouts each activity inflates so that a resource swap which
+ * only changed layouts recreates just the activities that used them.
+ *
+ * Layouts pulled in through {@code <include>} never pass through
+ * {@link LayoutInflater#inflate(int, ViewGroup, boolean)}; a changed layout
+ * that no activity was seen inflating therefore recreates everything.
+ * A change is checked against the live activities when it is noted, so
+ * nothing is kept for activities created after it.
+ * Must be used from the main thread.
+ * @author pfnguyen
+ */
+public final class LayoutTracker {
+    private final static String TAG = "LayoutTracker";
+
+    private final static Map<Activity,Tracked> inflated =
+            new WeakHashMap<Activity,Tracked>();
+    /** every layout seen inflated in this process */
+    private final static Set<Integer> seen = new HashSet<Integer>();
+    /** when the last change was noted */
+    private static long changed = Long.MIN_VALUE;
+
+    private LayoutTracker() { }
+
+    /** start recording the layouts inflated by {@code activity} */
+    static void track(Activity activity) {
+        Tracked tracked = new Tracked();
+        Set<Integer> layouts = tracked.layouts;
+        inflated.put(activity, tracked);
+        try {
+            Field mInflater = Reflection.findField(ContextThemeWrapper.class, "mInflater");
+            LayoutInflater inflater = (LayoutInflater) activity.getSystemService(
+                    Context.LAYOUT_INFLATER_SERVICE);
+            mInflater.set(activity, new RecordingInflater(inflater, activity, layouts));
+
+            Object window = activity.getWindow();
+            Field mLayoutInflater = Reflection.findField(window, "mLayoutInflater");
+            LayoutInflater windowInflater = (LayoutInflater) mLayoutInflater.get(window);
+            if (windowInflater != null)
+                mLayoutInflater.set(window, new RecordingInflater(
+                        windowInflater, windowInflater.getContext(), layouts));
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to track layouts of " + activity, e);
+            // an untracked activity is always considered stale
+            inflated.remove(activity);
+        }
+    }
+
+    static void untrack(Activity activity) {
+        inflated.remove(activity);
+    }
+
+    /**
+     * Note a resource swap, marking the activities it affects
+     * @param layouts the changed layouts, null if anything else changed
+     */
+    public static void resourcesChanged(Set<Integer> layouts) {
+        changed = System.currentTimeMillis();
+        for (Tracked t : inflated.values()) {
+            t.stale = t.stale || affects(t.layouts, layouts);
+        }
+    }
+
+    private static boolean affects(Set<Integer> inflated, Set<Integer> changed) {
+        if (changed == null)
+            return true;
+        for (Integer id : changed) {
+            if (inflated.contains(id) || !seen.contains(id))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * whether resources installed at {@code installed} affect {@code activity}
+     */
+    static boolean affects(Activity activity, long installed) {
+        Tracked t = inflated.get(activity);
+        // resources were installed without a recorded change
+        return t == null || t.stale || changed < installed;
+    }
+
+    private final static class Tracked {
+        final Set<Integer> layouts = new HashSet<Integer>();
+        boolean stale;
+    }
+
+    private final static class RecordingInflater extends LayoutInflater {
+        private final static String[] PREFIXES = {
+                "android.widget.",
+                "android.webkit.",
+                "android.app."
+        };
+        private final Set<Integer> layouts;
+
+        RecordingInflater(LayoutInflater original, Context context, Set<Integer> layouts) {
+            super(original, context);
+            this.layouts = layouts;
+        }
+
+        @Override
+        public LayoutInflater cloneInContext(Context newContext) {
+            return new RecordingInflater(this, newContext, layouts);
+        }
+
+        @Override
+        public View inflate(int resource, ViewGroup root, boolean attachToRoot) {
+            layouts.add(resource);
+            seen.add(resource);
+            return super.inflate(resource, root, attachToRoot);
+        }
+
+        // same lookup as the platform's PhoneLayoutInflater
+        @Override
+        protected View onCreateView(String name, AttributeSet attrs) throws ClassNotFoundException {
+            for (String prefix : PREFIXES) {
+                try {
+                    View view = createView(name, prefix, attrs);
+                    if (view != null) {
+                        return view;
+                    }
+                } catch (ClassNotFoundException e) {
+                    // try the next prefix
+                }
+            }
+            return super.onCreateView(name, attrs);
+        }
+    }
+}
@@ -33,6 +33,7 @@ public class LifecycleListener implements Application.ActivityLifecycleCallbacks
 
     @Override public void onActivityCreated(Activity activity, Bundle bundle) {
         activities.put(activity, System.currentTimeMillis());
+        LayoutTracker.track(activity);
     }
     @Override public void onActivityStarted(Activity activity) { }
     @Override public void onActivityStopped(Activity activity) { }
@@ -40,6 +41,7 @@ public class LifecycleListener implements Application.ActivityLifecycleCallbacks
     @Override public void onActivityDestroyed(Activity activity) {
         if (activity == top) top = null;
         activities.remove(activity);
+        LayoutTracker.untrack(activity);
     }
     // no corollary onActivityPaused because resuming from home results in weird behavior
     @Override public void onActivityPaused(Activity activity) { }
@@ -47,10 +49,17 @@ public class LifecycleListener implements Application.ActivityLifecycleCallbacks
     @Override
     public void onActivityResumed(Activity activity) {
         top = activity;
+        Bootstrap.healthy(activity);
+        if (isStale(activity))
+            activity.recreate();
+    }
+
+    /** whether resources installed since {@code activity} was created affect it */
+    public boolean isStale(Activity activity) {
         // should never be null
         long l = activities.get(activity);
-        if (l < ProtifyApplication.getResourceInstallTime())
-            activity.recreate();
+        long installed = ProtifyApplication.getResourceInstallTime();
+        return l < installed && LayoutTracker.affects(activity, installed);
     }
 
 
@@ -7,17 +7,27 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.*;
+import android.content.res.AssetManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Process;
 import android.util.Log;
+import com.hanhuy.android.protify.BinaryDelta;
+import com.hanhuy.android.protify.ContentHash;
+import com.hanhuy.android.protify.DeployManifest;
+import com.hanhuy.android.protify.DexStoreIndex;
 import com.hanhuy.android.protify.Intents;
 import com.hanhuy.android.protify.agent.ProtifyApplication;
 
 import java.io.*;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 /**
@@ -29,21 +39,181 @@ public class ProtifyReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         final String action = intent == null ? null : intent.getAction();
         Log.v(TAG, "Received action: " + action);
+        if (Intents.PROTIFY_INTENT.equals(action) || Intents.INSTALL_INTENT.equals(action)) {
+            if (Build.VERSION.SDK_INT >= 11) {
+                installAsync(context, action, intent.getExtras());
+            } else {
+                try {
+                    InstallState result = install(intent.getExtras(), context);
+                    setResult(installedCode(action, result), installed(context, action, result,
+                            result.resources ? ProtifyApplication.prepareExternalResources(context) : null,
+                            intent.getStringExtra(Intents.EXTRA_CHANGED_LAYOUTS)), null);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to install update", e);
+                    failed(e);
+                    setResult(Intents.RESULT_FAILED, describe(e), null);
+                }
+            }
+        } else if (Intents.CLEAN_INTENT.equals(action)) {
+            boolean ltV14 = Build.VERSION.SDK_INT < 14;
+            Activity top = ltV14 ? null : LifecycleListener.getInstance().getTopActivity();
+            Log.v(TAG, "Clearing resources and dex from cache");
+            try {
+                ProtifyResources.getResourcesFile(context).delete();
+                DexStore.clear(context);
+                File[] files = DexLoader.getDexExtractionDir(context).listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        DexGenerations.delete(f);
+                    }
+                }
+            } catch (Throwable t) {
+                // noop don't care
+            }
+            if (top != null) {
+                restartApp(context);
+            } else {
+                Process.killProcess(Process.myPid());
+            }
+        }
+    }
+
+    /**
+     * Copy files and build the new AssetManager on a worker thread, then
+     * swap resources and restart or recreate on the main thread. The
+     * plugin only records the deploy once the result says it was installed
+     */
+    @TargetApi(11)
+    private void installAsync(final Context context, final String action, final Bundle extras) {
+        final PendingResult pending = goAsync();
+        final Handler main = new Handler(Looper.getMainLooper());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final InstallState result;
+                final AssetManager assets;
+                try {
+                    long start = System.currentTimeMillis();
+                    result = install(extras, context);
+                    assets = result.resources ?
+                            ProtifyApplication.prepareExternalResources(context) : null;
+                    Log.v(TAG, "Prepared update off the main thread in " +
+                            (System.currentTimeMillis() - start) + "ms");
+                } catch (final RuntimeException e) {
+                    // an uncaught exception here would take the app down
+                    // with it, report the failure and leave the app as is
+                    Log.e(TAG, "Unable to install update", e);
+                    main.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                failed(e);
+                            } finally {
+                                pending.setResult(Intents.RESULT_FAILED, describe(e), null);
+                                pending.finish();
+                            }
+                        }
+                    });
+                    return;
+                }
+                main.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            pending.setResult(installedCode(action, result),
+                                    installed(context, action, result, assets, extras == null ?
+                                            null : extras.getString(Intents.EXTRA_CHANGED_LAYOUTS)),
+                                    null);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Unable to apply update", e);
+                            failed(e);
+                            pending.setResult(Intents.RESULT_FAILED, describe(e), null);
+                        } finally {
+                            pending.finish();
+                        }
+                    }
+                });
+            }
+        }, "protify-install").start();
+    }
+
+    /** main thread only */
+    private static void failed(RuntimeException e) {
+        Activity top = Build.VERSION.SDK_INT < 14 ?
+                null : LifecycleListener.getInstance().getTopActivity();
+        if (top != null) {
+            Restarter.showToast(top, "Protify update failed: " + e.getMessage());
+        }
+    }
+
+    /** the result code for an update that was applied */
+    private static int installedCode(String action, InstallState result) {
+        return Intents.PROTIFY_INTENT.equals(action) && result.swap != null ?
+                Intents.RESULT_HOTSWAPPED : Intents.RESULT_INSTALLED;
+    }
+
+    /** the result data for a failure, on a single line */
+    private static String describe(RuntimeException e) {
+        String message = e.getMessage() == null ? e.toString() : e.getMessage();
+        return message.replace('\n', ' ');
+    }
+
+    /**
+     * main thread only, a restart or kill is left to a later message so
+     * that the result of the broadcast is delivered first
+     * @return how the update was applied
+     */
+    private String installed(final Context context, String action, InstallState result,
+                             AssetManager assets, String changedLayouts) {
+        Handler handler = new Handler(Looper.getMainLooper());
+        Runnable kill = new Runnable() {
+            @Override
+            public void run() {
+                Process.killProcess(Process.myPid());
+            }
+        };
         boolean ltV14 = Build.VERSION.SDK_INT < 14;
         Activity top = ltV14 ? null : LifecycleListener.getInstance().getTopActivity();
+        if (assets != null) {
+            ProtifyApplication.installExternalResources(context, assets);
+            LayoutTracker.resourcesChanged(changedLayouts(context, changedLayouts));
+        }
         if (Intents.PROTIFY_INTENT.equals(action)) {
-            InstallState result = install(intent.getExtras(), context);
-            if (result.dex || (result.resources && ltV14)) {
+            if ((result.dex && result.swap == null) || (result.resources && ltV14)) {
                 Log.v(TAG, "Updated dex, restarting process, top non-null: " +
                         (top != null));
                 if (top != null || ltV14) {
-                    restartApp(context);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            restartApp(context);
+                        }
+                    });
+                    return result.dex ? "process restarted, dex updated" :
+                            "process restarted, resources cannot be swapped before API 14";
+                } else {
+                    handler.post(kill);
+                    return "process killed, no activity in front";
+                }
+            } else if (result.resources || result.swap != null) {
+                String how;
+                if (result.swap != null) {
+                    int swapped = result.swap.apply();
+                    how = swapped + (swapped == 1 ? " class" : " classes") + " hot swapped" +
+                            (result.resources ? ", resources swapped" : "");
                 } else {
-                    Process.killProcess(Process.myPid());
+                    how = "resources swapped";
+                }
+                // a hot swap only shows once the activity runs its new code
+                if (top != null && (result.swap != null ||
+                        LifecycleListener.getInstance().isStale(top))) {
+                    Log.v(TAG, how + ", recreating activities");
+                    recreateActivity(top);
+                    how += ", activity recreated";
+                } else {
+                    Log.v(TAG, how + ", top activity unaffected");
+                    how += " in place";
                 }
-            } else if (result.resources) {
-                Log.v(TAG, "Updated resources, recreating activities");
-                recreateActivity(top);
                 if (top == null) {
                     ApplicationInfo info = context.getApplicationInfo();
                     PackageManager pm = context.getPackageManager();
@@ -64,32 +234,16 @@ public class ProtifyReceiver extends BroadcastReceiver {
                     bringToFront.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
                     context.startActivity(bringToFront);
                 }
+                return how;
             }
         } else if (Intents.INSTALL_INTENT.equals(action)) {
-            InstallState result = install(intent.getExtras(), context);
             if (result.dex || result.resources) {
                 Log.v(TAG, "Installed new resources or dex, restarting process");
-                Process.killProcess(Process.myPid());
-            }
-        } else if (Intents.CLEAN_INTENT.equals(action)) {
-            Log.v(TAG, "Clearing resources and dex from cache");
-            try {
-                ProtifyResources.getResourcesFile(context).delete();
-                File[] files = DexLoader.getDexExtractionDir(context).listFiles();
-                if (files != null) {
-                    for (File f : files) {
-                        f.delete();
-                    }
-                }
-            } catch (Throwable t) {
-                // noop don't care
-            }
-            if (top != null) {
-                restartApp(context);
-            } else {
-                Process.killProcess(Process.myPid());
+                handler.post(kill);
+                return "process killed, update applies on next start";
             }
         }
+        return "nothing to update";
     }
 
     private void restartApp(Context context) {
@@ -108,71 +262,200 @@ public class ProtifyReceiver extends BroadcastReceiver {
             File dexInfoFile = dexInfo == null ? null : new File(dexInfo);
             boolean hasDex = dexInfoFile != null && dexInfoFile.isFile() && dexInfoFile.length() > 0;
             boolean hasRes = ProtifyResources.updateResourcesFile(context, resources);
-            if (hasRes) ProtifyApplication.installExternalResources(context);
             if (hasDex) {
                 try {
-                    StringWriter sw = new StringWriter();
-                    BufferedReader r = new BufferedReader(
-                            new InputStreamReader(new FileInputStream(dexInfoFile), "utf-8"));
-                    String line;
-                    while ((line = r.readLine()) != null) {
-                        sw.write(line + "\n");
-                    }
-                    String[] lines = sw.toString().split("\n");
-                    for (String l : lines) {
-                        String[] ls = l.split(":");
-                        String dex = ls[0];
-                        String dexName = ls[1];
-                        Log.v(TAG, "Loading DEX from " + dex + " to " + dexName);
-                        File dexDir = DexLoader.getDexExtractionDir(context);
-                        if (Build.VERSION.SDK_INT >= 14) {
-                            File dexfile = new File(dex);
-                            FileChannel ch = new FileInputStream(dexfile).getChannel();
-                            File dest = new File(dexDir, dexName);
-                            FileChannel ch2 = new FileOutputStream(dest, false).getChannel();
-                            ch.transferTo(0, dexfile.length(), ch2);
-                            ch.close();
-                            ch2.close();
-                        } else {
-                            File dexfile = new File(dex);
-                            File dest = new File(dexDir, dexName + DexExtractor.ZIP_SUFFIX);
-                            ZipOutputStream zout = new ZipOutputStream(
-                                    new BufferedOutputStream(new FileOutputStream(dest)));
-                            FileInputStream fin = new FileInputStream(dexfile);
-                            try {
-                                ZipEntry classesDex = new ZipEntry("classes.dex");
-                                classesDex.setTime(dexfile.lastModified());
-                                zout.putNextEntry(classesDex);
-                                byte[] buffer = new byte[0x4000];
-                                int read;
-                                while ((read = fin.read(buffer)) != -1) {
-                                    zout.write(buffer, 0, read);
-                                }
-                                zout.closeEntry();
-                            } finally {
-                                fin.close();
-                                zout.close();
-                            }
+                    List<DeployManifest.Entry> entries = DeployManifest.read(dexInfoFile);
+                    File extractDir = DexLoader.getDexExtractionDir(context);
+                    File current = DexGenerations.current(extractDir);
+                    boolean full = extras.getBoolean(Intents.EXTRA_FULL);
+                    if (current == null && !full)
+                        throw new IOException("No extracted DEX to update");
+                    if (DexGenerations.rolledBack(extractDir) && !full)
+                        throw new IOException("DEX was rolled back after repeated crashes");
+                    DexStore store = DexStore.open(context);
+                    // a complete new generation goes live in one step, only
+                    // once every shard in it is verified and synced
+                    File staging = DexGenerations.stage(extractDir);
+                    boolean committed = false;
+                    try {
+                        // deployed shards first, ahead of the ones carried over
+                        List<String> order = new ArrayList<String>();
+                        for (DeployManifest.Entry e : entries) {
+                            order.add(prepareShard(current, staging, store, e));
                         }
+                        if (!full)
+                            DexGenerations.fill(current, staging, order);
+                        DexGenerations.commit(extractDir, staging, order, true);
+                        committed = true;
+                    } finally {
+                        if (!committed)
+                            DexGenerations.discard(staging);
                     }
-                    r.close();
+                    store.commit();
                 } catch (Exception e) {
                     throw new RuntimeException("Cannot copy DEX: " + e.getMessage(), e);
                 }
             }
-            return new InstallState(hasRes, hasDex);
+            HotSwap swap = null;
+            String patch = extras.getString(Intents.EXTRA_HOTSWAP);
+            String classes = extras.getString(Intents.EXTRA_HOTSWAP_CLASSES);
+            if (hasDex && patch != null && classes != null && Build.VERSION.SDK_INT >= 14) {
+                // the new generation is installed either way, a patch that
+                // does not load falls back to a restart
+                try {
+                    swap = HotSwap.load(context, new File(patch), classes);
+                } catch (Exception e) {
+                    Log.w(TAG, "Unable to load hot swap patch, restarting instead", e);
+                } catch (LinkageError e) {
+                    Log.w(TAG, "Unable to load hot swap patch, restarting instead", e);
+                }
+            }
+            return new InstallState(hasRes, hasDex, swap);
         }
         return InstallState.NONE;
     }
 
+    /**
+     * Copy the shard described by {@code e} into the staged generation,
+     * checking its size and hash on the way
+     * @return the name of the shard's file in the generation
+     */
+    private static String prepareShard(File current, File staging, DexStore store,
+                                     DeployManifest.Entry e) throws IOException {
+        File source;
+        File patched = null;
+        if (e.kind == DeployManifest.STORED) {
+            source = store.get(DexStoreIndex.key(e.hashHex(), e.size));
+            Log.v(TAG, "Loading DEX " + e + " from store");
+        } else {
+            File pushed = new File(e.path);
+            if (pushed.length() != e.length)
+                throw new IOException("Incomplete push of " + e.name + ", " +
+                        pushed.length() + " of " + e.length + " bytes");
+            Log.v(TAG, "Loading DEX from " + pushed + " to " + e.name);
+            source = pushed;
+            if (e.kind == DeployManifest.DELTA && current == null)
+                throw new IOException("No installed DEX to apply the delta of " + e.name + " to");
+            if (e.kind == DeployManifest.DELTA)
+                source = patched = applyDelta(current, staging, e.name, pushed);
+        }
+        try {
+            if (source.length() != e.size)
+                throw new IOException("Size mismatch for " + e.name + ", " +
+                        source.length() + " bytes, expected " + e.size);
+            String fileName = Build.VERSION.SDK_INT >= 14 ?
+                    e.name : e.name + DexExtractor.ZIP_SUFFIX;
+            copyVerified(source, new File(staging, fileName), e);
+            store.put(e.name, DexStoreIndex.key(e.hashHex(), e.size), source);
+            return fileName;
+        } finally {
+            if (patched != null) patched.delete();
+        }
+    }
+
+    /** copy {@code source} to {@code dest}, hashing it as it is read */
+    private static void copyVerified(File source, File dest, DeployManifest.Entry e)
+            throws IOException {
+        ContentHash hash = new ContentHash();
+        InputStream in = new FileInputStream(source);
+        OutputStream out;
+        ZipOutputStream zout = null;
+        if (Build.VERSION.SDK_INT >= 14) {
+            out = new FileOutputStream(dest);
+        } else {
+            out = zout = new ZipOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(dest)));
+            ZipEntry classesDex = new ZipEntry("classes.dex");
+            classesDex.setTime(source.lastModified());
+            zout.putNextEntry(classesDex);
+        }
+        try {
+            byte[] buffer = new byte[0x4000];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                hash.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+            }
+            if (zout != null) zout.closeEntry();
+        } finally {
+            in.close();
+            out.close();
+        }
+        if (hash.value() != e.hash)
+            throw new IOException("Hash mismatch for " + e.name + ", " +
+                    hash.toHex() + ", expected " + e.hashHex());
+    }
+
+    /**
+     * Rebuild a shard from a delta against the copy currently installed in
+     * dexDir, the caller is responsible for deleting the returned file
+     * which is created in tmpDir
+     */
+    private static File applyDelta(File dexDir, File tmpDir, String dexName, File patch)
+            throws IOException {
+        Log.v(TAG, "Applying DEX delta to " + dexName);
+        File base;
+        if (Build.VERSION.SDK_INT >= 14) {
+            base = new File(dexDir, dexName);
+        } else {
+            base = File.createTempFile("protify-base", ".tmp", tmpDir);
+            ZipFile zip = new ZipFile(new File(dexDir, dexName + DexExtractor.ZIP_SUFFIX));
+            try {
+                InputStream in = zip.getInputStream(zip.getEntry("classes.dex"));
+                OutputStream out = new FileOutputStream(base);
+                try {
+                    byte[] buffer = new byte[0x4000];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                    out.close();
+                }
+            } finally {
+                zip.close();
+            }
+        }
+        File patched = File.createTempFile("protify-patched", ".tmp", tmpDir);
+        try {
+            BinaryDelta.apply(base, patch, patched);
+        } catch (IOException e) {
+            patched.delete();
+            throw e;
+        } finally {
+            if (Build.VERSION.SDK_INT < 14) base.delete();
+        }
+        return patched;
+    }
+
+    /**
+     * @return the ids of the named layouts, null if the update was not
+     *         limited to layouts or a layout cannot be resolved
+     */
+    private static Set<Integer> changedLayouts(Context context, String names) {
+        if (names == null || names.length() == 0) return null;
+        Set<Integer> ids = new HashSet<Integer>();
+        for (String name : names.split(",")) {
+            int id = context.getResources().getIdentifier(
+                    name, "layout", context.getPackageName());
+            if (id == 0) return null;
+            ids.add(id);
+        }
+        return ids;
+    }
+
     final static class InstallState {
-        public final static InstallState NONE = new InstallState(false, false);
+        public final static InstallState NONE = new InstallState(false, false, null);
         public final boolean resources;
         public final boolean dex;
+        /** the hot swap for the new dex, null to restart */
+        public final HotSwap swap;
 
-        public InstallState(boolean resources, boolean dex) {
+        public InstallState(boolean resources, boolean dex, HotSwap swap) {
             this.resources = resources;
             this.dex = dex;
+            this.swap = swap;
         }
     }
 
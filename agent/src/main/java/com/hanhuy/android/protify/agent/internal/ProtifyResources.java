@@ -1,6 +1,8 @@
 package com.hanhuy.android.protify.agent.internal;
 
 import android.content.Context;
+import android.util.Log;
+import com.hanhuy.android.protify.ResourcePatch;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -12,11 +14,25 @@ import java.nio.channels.FileChannel;
  * @author pfnguyen
  */
 public class ProtifyResources {
+    private final static String TAG = "ProtifyResources";
     public static boolean updateResourcesFile(Context ctx, String resourcePath) {
         if (resourcePath == null) return false;
         File resapk = new File(resourcePath);
         File cacheres = getResourcesFile(ctx);
-        if (resapk.isFile() && resapk.length() > 0) {
+        if (resapk.isFile() && resapk.length() > 0 &&
+                resourcePath.endsWith(ResourcePatch.PATCH_SUFFIX)) {
+            Log.v(TAG, "Applying resource patch to " + cacheres);
+            File patched = new File(cacheres.getParentFile(), cacheres.getName() + ".tmp");
+            try {
+                ResourcePatch.apply(cacheres, resapk, patched);
+                if (!patched.renameTo(cacheres))
+                    throw new IOException("Unable to replace " + cacheres);
+            } catch (IOException e) {
+                patched.delete();
+                throw new RuntimeException("Cannot patch resource apk: " + e.getMessage(), e);
+            }
+            return true;
+        } else if (resapk.isFile() && resapk.length() > 0) {
             try {
                 FileChannel ch = new FileInputStream(resapk).getChannel();
                 FileChannel ch2 = new FileOutputStream(cacheres, false).getChannel();
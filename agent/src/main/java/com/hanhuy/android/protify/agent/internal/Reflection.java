@@ -0,0 +1,176 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import android.annotation.TargetApi;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.os.Build;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Framework classes, fields and methods used to patch the running app.
+ * Every handle is resolved, made accessible and cached on first use, later
+ * lookups are a map hit. Lookups walk the class hierarchy.
+ * @author pfnguyen
+ */
+public final class Reflection {
+    private final static ConcurrentHashMap<String,Class<?>> CLASSES =
+            new ConcurrentHashMap<String,Class<?>>();
+    private final static ConcurrentHashMap<Key,Field> FIELDS =
+            new ConcurrentHashMap<Key,Field>();
+    private final static ConcurrentHashMap<Key,Method> METHODS =
+            new ConcurrentHashMap<Key,Method>();
+
+    private Reflection() { }
+
+    public static Class<?> classForName(String name) throws ClassNotFoundException {
+        Class<?> c = CLASSES.get(name);
+        if (c == null) {
+            c = Class.forName(name);
+            CLASSES.putIfAbsent(name, c);
+        }
+        return c;
+    }
+
+    public static Field findField(Object instance, String name) throws NoSuchFieldException {
+        return findField(instance.getClass(), name);
+    }
+
+    /**
+     * Locates a given field anywhere in the class inheritance hierarchy.
+     * @throws NoSuchFieldException if the field cannot be located
+     */
+    public static Field findField(Class<?> type, String name) throws NoSuchFieldException {
+        Key key = new Key(type, name, null);
+        Field f = FIELDS.get(key);
+        if (f != null) return f;
+        for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+            try {
+                Field field = clazz.getDeclaredField(name);
+                if (!field.isAccessible()) {
+                    field.setAccessible(true);
+                }
+                FIELDS.putIfAbsent(key, field);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // ignore and search next
+            }
+        }
+
+        throw new NoSuchFieldException("Field " + name + " not found in " + type);
+    }
+
+    public static Method findMethod(Object instance, String name, Class<?>... parameterTypes)
+            throws NoSuchMethodException {
+        return findMethod(instance.getClass(), name, parameterTypes);
+    }
+
+    /**
+     * Locates a given method anywhere in the class inheritance hierarchy.
+     * @throws NoSuchMethodException if the method cannot be located
+     */
+    public static Method findMethod(Class<?> type, String name, Class<?>... parameterTypes)
+            throws NoSuchMethodException {
+        Key key = new Key(type, name, parameterTypes);
+        Method m = METHODS.get(key);
+        if (m != null) return m;
+        for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+            try {
+                Method method = clazz.getDeclaredMethod(name, parameterTypes);
+                if (!method.isAccessible()) {
+                    method.setAccessible(true);
+                }
+                METHODS.putIfAbsent(key, method);
+                return method;
+            } catch (NoSuchMethodException e) {
+                // ignore and search next
+            }
+        }
+
+        throw new NoSuchMethodException("Method " + name + " with parameters " +
+                Arrays.asList(parameterTypes) + " not found in " + type);
+    }
+
+    public static Class<?> activityThreadClass() throws ClassNotFoundException {
+        return classForName("android.app.ActivityThread");
+    }
+
+    public static Object currentActivityThread() throws ClassNotFoundException,
+            NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        return findMethod(activityThreadClass(), "currentActivityThread").invoke(null);
+    }
+
+    /** API version 8 has PackageInfo, 10 has LoadedApk. 9, I don't know. */
+    public static Class<?> loadedApkClass() throws ClassNotFoundException {
+        try {
+            return classForName("android.app.LoadedApk");
+        } catch (ClassNotFoundException e) {
+            return classForName("android.app.ActivityThread$PackageInfo");
+        }
+    }
+
+    /** the object holding the active Resources: ResourcesManager on 19+, else ActivityThread */
+    public static Object resourcesOwner() throws ClassNotFoundException,
+            NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        return Build.VERSION.SDK_INT >= 19 ? V19.resourcesManager() : currentActivityThread();
+    }
+
+    public static void setAssets(Resources resources, AssetManager assets)
+            throws NoSuchFieldException, IllegalAccessException {
+        if (Build.VERSION.SDK_INT >= 24) {
+            V24.setAssets(resources, assets);
+        } else {
+            findField(Resources.class, "mAssets").set(resources, assets);
+        }
+    }
+
+    @TargetApi(19)
+    private final static class V19 {
+        static Object resourcesManager() throws ClassNotFoundException,
+                NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+            return findMethod(classForName("android.app.ResourcesManager"),
+                    "getInstance").invoke(null);
+        }
+    }
+
+    @TargetApi(24)
+    private final static class V24 {
+        static void setAssets(Resources resources, AssetManager assets)
+                throws NoSuchFieldException, IllegalAccessException {
+            Object impl = findField(Resources.class, "mResourcesImpl").get(resources);
+            findField(impl, "mAssets").set(impl, assets);
+        }
+    }
+
+    private final static class Key {
+        private final Class<?> type;
+        private final String name;
+        private final Class<?>[] parameterTypes;
+        private final int hash;
+
+        Key(Class<?> type, String name, Class<?>[] parameterTypes) {
+            this.type = type;
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+            this.hash = (type.hashCode() * 31 + name.hashCode()) * 31 +
+                    Arrays.hashCode(parameterTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return type == k.type && name.equals(k.name) &&
+                    Arrays.equals(parameterTypes, k.parameterTypes);
+        }
+    }
+}
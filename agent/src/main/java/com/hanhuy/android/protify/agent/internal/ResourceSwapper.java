@@ -0,0 +1,187 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.os.Build;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Replaces the AssetManager of every live Resources object that belongs to
+ * this application. Building the AssetManager ({@link #prepare}) may happen
+ * on any thread; the swap itself ({@link #swap}) is a single pass on the
+ * main thread. Resources whose key points at another package's apk are
+ * left alone, and an unchanged resource file reuses the previous
+ * AssetManager for as long as some Resources still hold it.
+ * @author pfnguyen
+ */
+public final class ResourceSwapper {
+    private final static String TAG = "ResourceSwapper";
+
+    private static WeakReference<AssetManager> current;
+    private static String currentPath;
+    private static long currentLength;
+    private static long currentModified;
+
+    private ResourceSwapper() { }
+
+    /** an AssetManager for {@code externalResourceFile}, safe off the main thread */
+    public static synchronized AssetManager prepare(String externalResourceFile) {
+        File f = new File(externalResourceFile);
+        AssetManager previous = current == null ? null : current.get();
+        if (previous != null && externalResourceFile.equals(currentPath) &&
+                f.length() == currentLength && f.lastModified() == currentModified) {
+            Log.v(TAG, "Resource file unchanged, reusing AssetManager");
+            return previous;
+        }
+        long start = System.currentTimeMillis();
+        AssetManager assets = createAssetManager(externalResourceFile);
+        current = new WeakReference<AssetManager>(assets);
+        currentPath = externalResourceFile;
+        currentLength = f.length();
+        currentModified = f.lastModified();
+        Log.v(TAG, "Created AssetManager in " + (System.currentTimeMillis() - start) + "ms");
+        return assets;
+    }
+
+    /** install {@code assets} into all of this application's Resources, main thread only */
+    public static void swap(Context context, AssetManager assets) {
+        long start = System.currentTimeMillis();
+        Set<String> ours = new HashSet<String>();
+        ApplicationInfo info = context.getApplicationInfo();
+        if (info != null) {
+            ours.add(info.sourceDir);
+            if (info.publicSourceDir != null)
+                ours.add(info.publicSourceDir);
+        }
+        ours.add(ProtifyResources.getResourcesFile(context).getAbsolutePath());
+
+        int[] counts = new int[2];
+        try {
+            if (Build.VERSION.SDK_INT >= 24) {
+                V24.swap(assets, ours, counts);
+            } else {
+                Object owner = Reflection.resourcesOwner();
+                @SuppressWarnings("unchecked")
+                Map<Object, WeakReference<Resources>> active =
+                        (Map<Object, WeakReference<Resources>>) Reflection.findField(
+                                owner, "mActiveResources").get(owner);
+                for (Map.Entry<Object, WeakReference<Resources>> e : active.entrySet()) {
+                    Resources resources = e.getValue().get();
+                    if (resources == null) continue;
+                    if (!isOurs(e.getKey(), ours) || resources.getAssets() == assets) {
+                        counts[1]++;
+                        continue;
+                    }
+                    Reflection.setAssets(resources, assets);
+                    resources.updateConfiguration(
+                            resources.getConfiguration(), resources.getDisplayMetrics());
+                    counts[0]++;
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        Log.v(TAG, "Swapped " + counts[0] + " Resources, skipped " + counts[1] +
+                " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * keys without a readable resource dir are assumed to be ours, only
+     * keys known to reference another apk are skipped
+     */
+    private static boolean isOurs(Object key, Set<String> ours) {
+        if (key == null || key instanceof String) {
+            return key == null || ours.contains(key);
+        }
+        try {
+            Object resDir = Reflection.findField(key, "mResDir").get(key);
+            return resDir == null || ours.contains(resDir);
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    @TargetApi(24)
+    private final static class V24 {
+        /**
+         * Resources share ResourcesImpl per key since N, the assets live on
+         * the impl so each impl is swapped and reconfigured only once
+         */
+        static void swap(AssetManager assets, Set<String> ours, int[] counts) throws Exception {
+            Object manager = Reflection.resourcesOwner();
+            @SuppressWarnings("unchecked")
+            Map<Object, WeakReference<?>> impls = (Map<Object, WeakReference<?>>)
+                    Reflection.findField(manager, "mResourceImpls").get(manager);
+            Set<Object> swapped = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+            for (Map.Entry<Object, WeakReference<?>> e : impls.entrySet()) {
+                Object impl = e.getValue().get();
+                if (impl == null) continue;
+                if (isOurs(e.getKey(), ours)) {
+                    Field mAssets = Reflection.findField(impl, "mAssets");
+                    if (mAssets.get(impl) != assets) {
+                        mAssets.set(impl, assets);
+                        swapped.add(impl);
+                    }
+                }
+            }
+
+            // reconfigure each swapped impl itself, not only those reached
+            // through a live Resources, so none is left with stale string blocks
+            for (Object impl : swapped) {
+                Method update = Reflection.findMethod(impl, "updateConfiguration",
+                        Configuration.class, DisplayMetrics.class,
+                        Reflection.classForName("android.content.res.CompatibilityInfo"));
+                update.invoke(impl, Reflection.findMethod(impl, "getConfiguration").invoke(impl),
+                        Reflection.findMethod(impl, "getDisplayMetrics").invoke(impl),
+                        Reflection.findMethod(impl, "getCompatibilityInfo").invoke(impl));
+            }
+
+            @SuppressWarnings("unchecked")
+            Collection<WeakReference<Resources>> references = (Collection<WeakReference<Resources>>)
+                    Reflection.findField(manager, "mResourceReferences").get(manager);
+            Field mResourcesImpl = Reflection.findField(Resources.class, "mResourcesImpl");
+            for (WeakReference<Resources> wr : references) {
+                Resources resources = wr.get();
+                if (resources == null) continue;
+                if (swapped.contains(mResourcesImpl.get(resources))) {
+                    counts[0]++;
+                } else {
+                    counts[1]++;
+                }
+            }
+        }
+    }
+
+    private static AssetManager createAssetManager(String externalResourceFile) {
+        try {
+            // Create a new AssetManager instance and point it to the resources installed under
+            // /sdcard
+            AssetManager newAssetManager = AssetManager.class.getConstructor().newInstance();
+            Method mAddAssetPath = Reflection.findMethod(AssetManager.class, "addAssetPath", String.class);
+            if (((int) mAddAssetPath.invoke(newAssetManager, externalResourceFile)) == 0) {
+                throw new IllegalStateException("Could not create new AssetManager");
+            }
+
+            // Kitkat needs this method call, Lollipop doesn't. However, it doesn't seem to cause any harm
+            // in L, so we do it unconditionally.
+            Method mEnsureStringBlocks = Reflection.findMethod(AssetManager.class, "ensureStringBlocks");
+            mEnsureStringBlocks.invoke(newAssetManager);
+            return newAssetManager;
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -158,10 +158,9 @@ public class Restarter {
     public static List<Activity> getActivities(@Nullable Context context, boolean foregroundOnly) {
         List<Activity> list = new ArrayList<Activity>();
         try {
-            Class activityThreadClass = Class.forName("android.app.ActivityThread");
+            Class activityThreadClass = Reflection.activityThreadClass();
             Object activityThread = getActivityThread(context, activityThreadClass);
-            Field activitiesField = activityThreadClass.getDeclaredField("mActivities");
-            activitiesField.setAccessible(true);
+            Field activitiesField = Reflection.findField(activityThreadClass, "mActivities");
 
             // TODO: On older platforms, cast this to a HashMap
 
@@ -182,14 +181,12 @@ public class Restarter {
             for (Object activityRecord : c) {
                 Class activityRecordClass = activityRecord.getClass();
                 if (foregroundOnly) {
-                    Field pausedField = activityRecordClass.getDeclaredField("paused");
-                    pausedField.setAccessible(true);
+                    Field pausedField = Reflection.findField(activityRecordClass, "paused");
                     if (pausedField.getBoolean(activityRecord)) {
                         continue;
                     }
                 }
-                Field activityField = activityRecordClass.getDeclaredField("activity");
-                activityField.setAccessible(true);
+                Field activityField = Reflection.findField(activityRecordClass, "activity");
                 Activity activity = (Activity) activityField.get(activityRecord);
                 if (activity != null) {
                     list.add(activity);
@@ -205,20 +202,17 @@ public class Restarter {
                                             @Nullable Class<?> activityThread) {
         try {
             if (activityThread == null) {
-                activityThread = Class.forName("android.app.ActivityThread");
+                activityThread = Reflection.activityThreadClass();
             }
-            Method m = activityThread.getMethod("currentActivityThread");
-            m.setAccessible(true);
-            Object currentActivityThread = m.invoke(null);
+            Object currentActivityThread = Reflection.findMethod(
+                    activityThread, "currentActivityThread").invoke(null);
             if (currentActivityThread == null && context != null) {
                 // In older versions of Android (prior to frameworks/base 66a017b63461a22842)
                 // the currentActivityThread was built on thread locals, so we'll need to try
                 // even harder
-                Field mLoadedApk = context.getClass().getField("mLoadedApk");
-                mLoadedApk.setAccessible(true);
+                Field mLoadedApk = Reflection.findField(context, "mLoadedApk");
                 Object apk = mLoadedApk.get(context);
-                Field mActivityThreadField = apk.getClass().getDeclaredField("mActivityThread");
-                mActivityThreadField.setAccessible(true);
+                Field mActivityThreadField = Reflection.findField(apk, "mActivityThread");
                 currentActivityThread = mActivityThreadField.get(apk);
             }
             return currentActivityThread;
@@ -0,0 +1,332 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import com.hanhuy.android.protify.RawZip;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Extracts the {@code protify-dex/} shards of an apk, on a few workers.
+ * Plain java, {@link DexExtractor} decides what the platform can load and
+ * logs, this runs and is benchmarked on the JVM.
+ * @author pfnguyen
+ */
+final class ShardExtractor {
+    private static final String PROTIFY_DEX_PREFIX = "protify-dex/";
+    private static final String DEX_SUFFIX = ".dex";
+    static final String ZIP_SUFFIX = ".zip";
+
+    /**
+     * Size of reading buffers.
+     */
+    private static final int BUFFER_SIZE = 0x4000;
+
+    private ShardExtractor() { }
+
+    /** called in order on the thread that extracts */
+    interface Listener {
+        void onProgress(int completed, int total);
+    }
+
+    final static class Entry {
+        final ZipEntry entry;
+        /** set when the entry is stored and its data can be copied straight out of the apk */
+        RawZip.Entry stored;
+
+        Entry(ZipEntry entry) {
+            this.entry = entry;
+        }
+    }
+
+    /** the shards in {@code apk}, in the order they are loaded */
+    static List<Entry> entries(File apk) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        ZipFile zip = new ZipFile(apk);
+        try {
+            Enumeration<? extends ZipEntry> all = zip.entries();
+            while (all.hasMoreElements()) {
+                ZipEntry e = all.nextElement();
+                String name = e.getName();
+                if (name.startsWith(PROTIFY_DEX_PREFIX) && name.endsWith(DEX_SUFFIX)) {
+                    entries.add(new Entry(e));
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Locate the data of the stored entries. RawZip only reads a plain
+     * central directory, for anything it cannot read, or reads differently
+     * than ZipFile (zip64, more than 65535 entries), the entries are left to
+     * be streamed through ZipFile.
+     * @throws IOException when RawZip cannot read the apk, the entries
+     *         located until then can still be copied
+     */
+    static void findStored(File apk, List<Entry> entries) throws IOException {
+        boolean any = false;
+        for (Entry e : entries) {
+            any |= e.entry.getMethod() == ZipEntry.STORED;
+        }
+        if (!any) return;
+        RawZip.Reader raw = new RawZip.Reader(apk);
+        try {
+            for (Entry e : entries) {
+                if (e.entry.getMethod() != ZipEntry.STORED) continue;
+                RawZip.Entry r = raw.getEntry(e.entry.getName());
+                if (r != null && r.method == RawZip.STORED && r.size == e.entry.getSize() &&
+                        r.crc == e.entry.getCrc() && r.localHeaderOffset != 0xffffffffL)
+                    e.stored = r;
+            }
+        } finally {
+            closeQuietly(raw);
+        }
+    }
+
+    /**
+     * Extract {@code entries} into {@code dir} on up to {@code workers}
+     * threads, stored entries are copied straight out of the apk and
+     * everything else is inflated through ZipFile.
+     * @param zipped wrap each shard in a zip as {@code classes.dex}, for
+     *               platforms that only load dex from a zip
+     * @param executor runs the workers, a pool of {@code workers} threads
+     *                 that is shut down afterwards if null; it must not run
+     *                 them on a thread that waits for this call
+     * @return the extracted files, in the order of {@code entries}
+     */
+    static List<File> extract(final File apk, final File dir, final List<Entry> entries,
+                              final boolean zipped, int workers, Executor executor,
+                              Listener listener)
+            throws IOException {
+        final File[] files = new File[entries.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final Progress progress = new Progress(listener, entries.size());
+        workers = Math.min(entries.size(), workers);
+        if (workers <= 1) {
+            extractEntries(apk, dir, entries, zipped, files, next, progress);
+            return Arrays.asList(files);
+        }
+
+        // workers hand each completed entry, or their failure, back to this
+        // thread, which reports progress so that the listener sees it in order
+        final BlockingQueue<Object> completions = new LinkedBlockingQueue<Object>();
+        final Progress handoff = new Progress(null, entries.size()) {
+            @Override
+            void step() {
+                completions.add(this);
+            }
+        };
+        ExecutorService pool = null;
+        if (executor == null)
+            executor = pool = Executors.newFixedThreadPool(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            extractEntries(apk, dir, entries, zipped, files, next, handoff);
+                        } catch (Throwable t) {
+                            completions.add(t);
+                        }
+                    }
+                });
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                Object completion;
+                try {
+                    completion = completions.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while extracting secondary dex files");
+                }
+                if (completion instanceof IOException)
+                    throw (IOException) completion;
+                if (completion instanceof RuntimeException)
+                    throw (RuntimeException) completion;
+                if (completion instanceof Error)
+                    throw (Error) completion;
+                progress.step();
+            }
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Extract entries until none remain, each worker has its own apk handles
+     * and claims the next entry through {@code next}.
+     */
+    private static void extractEntries(File apk, File dir, List<Entry> entries, boolean zipped,
+                                       File[] files, AtomicInteger next, Progress progress)
+            throws IOException {
+        ZipFile zip = null;
+        FileInputStream raw = null;
+        try {
+            int i;
+            while ((i = next.getAndIncrement()) < entries.size()) {
+                Entry entry = entries.get(i);
+                String name = entry.entry.getName();
+                String fname = name.substring(name.lastIndexOf("/") + 1);
+                File extractedFile = new File(dir, zipped ? fname + ZIP_SUFFIX : fname);
+                if (entry.stored != null && !zipped) {
+                    if (raw == null) raw = new FileInputStream(apk);
+                    extractStored(raw.getChannel(), entry.stored, extractedFile, "protify-extraction");
+                } else {
+                    if (zip == null) zip = new ZipFile(apk);
+                    ZipEntry zipEntry = zip.getEntry(name);
+                    if (zipped) {
+                        extractZipped(zip, zipEntry, extractedFile, "protify-extraction");
+                    } else
+                        extract(zip, zipEntry, extractedFile, "protify-extraction");
+                }
+                files[i] = extractedFile;
+                progress.step();
+            }
+        } finally {
+            if (raw != null)
+                closeQuietly(raw);
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    // only read
+                }
+            }
+        }
+    }
+
+    /** reports on the thread that calls {@link #step} */
+    private static class Progress {
+        private final Listener listener;
+        private final int total;
+        private int done;
+
+        Progress(Listener listener, int total) {
+            this.listener = listener;
+            this.total = total;
+        }
+
+        void step() {
+            done++;
+            if (listener != null)
+                listener.onProgress(done, total);
+        }
+    }
+
+    private static void extract(ZipFile apk, ZipEntry dexFile, File extractTo,
+                                String extractedFilePrefix) throws IOException {
+
+        InputStream in = apk.getInputStream(dexFile);
+        File tmp = File.createTempFile(extractedFilePrefix, DEX_SUFFIX,
+                extractTo.getParentFile());
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int length = in.read(buffer);
+                while (length != -1) {
+                    out.write(buffer, 0, length);
+                    length = in.read(buffer);
+                }
+            } finally {
+                out.close();
+            }
+            rename(tmp, extractTo);
+        } finally {
+            closeQuietly(in);
+            tmp.delete(); // return status ignored
+        }
+        if (!extractTo.isFile()) {
+            throw new IOException("Failed to extract to: " + extractTo);
+        }
+    }
+
+    private static void extractStored(FileChannel apk, RawZip.Entry dexFile, File extractTo,
+                                      String extractedFilePrefix) throws IOException {
+        long offset = RawZip.dataOffset(apk, dexFile);
+        File tmp = File.createTempFile(extractedFilePrefix, DEX_SUFFIX,
+                extractTo.getParentFile());
+        try {
+            FileChannel out = new FileOutputStream(tmp).getChannel();
+            try {
+                long remaining = dexFile.size;
+                while (remaining > 0) {
+                    long n = apk.transferTo(offset + dexFile.size - remaining, remaining, out);
+                    if (n <= 0) {
+                        throw new EOFException("Truncated entry " + dexFile.name);
+                    }
+                    remaining -= n;
+                }
+            } finally {
+                out.close();
+            }
+            rename(tmp, extractTo);
+        } finally {
+            tmp.delete(); // return status ignored
+        }
+        if (!extractTo.isFile()) {
+            throw new IOException("Failed to extract to: " + extractTo);
+        }
+    }
+
+    private static void extractZipped(ZipFile apk, ZipEntry dexFile, File extractTo,
+                                      String extractedFilePrefix) throws IOException {
+
+        InputStream in = apk.getInputStream(dexFile);
+        ZipOutputStream out;
+        File tmp = File.createTempFile(extractedFilePrefix, ZIP_SUFFIX,
+                extractTo.getParentFile());
+        try {
+            out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                ZipEntry classesDex = new ZipEntry("classes.dex");
+                // keep zip entry time since it is the criteria used by Dalvik
+                classesDex.setTime(dexFile.getTime());
+                out.putNextEntry(classesDex);
+
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int length = in.read(buffer);
+                while (length != -1) {
+                    out.write(buffer, 0, length);
+                    length = in.read(buffer);
+                }
+                out.closeEntry();
+            } finally {
+                out.close();
+            }
+            rename(tmp, extractTo);
+        } finally {
+            closeQuietly(in);
+            tmp.delete(); // return status ignored
+        }
+    }
+
+    private static void rename(File tmp, File extractTo) throws IOException {
+        if (!tmp.renameTo(extractTo)) {
+            throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
+                    "\" to \"" + extractTo.getAbsolutePath() + "\"");
+        }
+    }
+
+    /**
+     * Closes the given {@code Closeable}. Suppresses any IO exceptions.
+     */
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // only read
+        }
+    }
+}
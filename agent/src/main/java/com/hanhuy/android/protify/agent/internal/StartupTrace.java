@@ -0,0 +1,101 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the phases of the agent's startup into preallocated slots, a phase
+ * costs two clock reads and no allocation. Once the application is up the
+ * phases are written as Chrome trace JSON, one event per line, to
+ * {@link #FILE} in the files dir; the plugin pulls and summarises it after
+ * protify:run, it also opens in chrome://tracing and Perfetto.
+ * @author pfnguyen
+ */
+public final class StartupTrace {
+    private final static String TAG = "StartupTrace";
+    public final static String FILE = "protify-trace.json";
+    private final static int MAX_EVENTS = 64;
+
+    private final static String[] names = new String[MAX_EVENTS];
+    private final static int[] tids = new int[MAX_EVENTS];
+    private final static long[] starts = new long[MAX_EVENTS];
+    /**
+     * set last, by the thread that began the slot; its volatile store
+     * publishes the rest of the slot to the thread that writes the trace
+     */
+    private final static AtomicLongArray ends = new AtomicLongArray(MAX_EVENTS);
+    private final static AtomicInteger count = new AtomicInteger();
+    /** the agent is the first code to run in the process */
+    private final static long origin = System.nanoTime();
+
+    private StartupTrace() { }
+
+    /**
+     * @param name a constant, it is kept as-is
+     * @return the token to pass to {@link #end}, -1 once all slots are used
+     */
+    public static int begin(String name) {
+        int slot = count.getAndIncrement();
+        if (slot >= MAX_EVENTS) return -1;
+        names[slot] = name;
+        tids[slot] = Process.myTid();
+        starts[slot] = System.nanoTime();
+        return slot;
+    }
+
+    public static void end(int slot) {
+        if (slot >= 0) ends.set(slot, System.nanoTime());
+    }
+
+    /** write the trace on a background thread */
+    public static void writeAsync(final Context context) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(new File(context.getFilesDir(), FILE));
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to write startup trace", e);
+                }
+            }
+        }, "protify-trace").start();
+    }
+
+    static void write(File f) throws IOException {
+        int n = Math.min(count.get(), MAX_EVENTS);
+        int pid = Process.myPid();
+        StringBuilder sb = new StringBuilder(n * 96 + 32);
+        sb.append("{\"traceEvents\":[\n");
+        boolean first = true;
+        for (int i = 0; i < n; i++) {
+            long end = ends.get(i);
+            if (end == 0) continue;
+            if (!first) sb.append(",\n");
+            first = false;
+            sb.append("{\"name\":\"").append(names[i])
+                    .append("\",\"ph\":\"X\",\"ts\":").append((starts[i] - origin) / 1000)
+                    .append(",\"dur\":").append((end - starts[i]) / 1000)
+                    .append(",\"pid\":").append(pid)
+                    .append(",\"tid\":").append(tids[i]).append('}');
+        }
+        sb.append("\n]}\n");
+
+        File tmp = new File(f.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(sb.toString().getBytes("utf-8"));
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f))
+            throw new IOException("Unable to write " + f);
+    }
+}
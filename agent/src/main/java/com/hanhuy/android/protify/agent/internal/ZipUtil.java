@@ -24,6 +24,8 @@ package com.hanhuy.android.protify.agent.internal;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.CRC32;
 import java.util.zip.ZipException;
 
@@ -40,6 +42,11 @@ final class ZipUtil {
      * constants defined in ZipFile */
     private static final int ENDHDR = 22;
     private static final int ENDSIG = 0x6054b50;
+    private static final int ZIP64_LOCHDR = 20;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+    private static final int ZIP64_ENDHDR = 56;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int MAX_COMMENT = 0xffff;
 
     /**
      * Size of reading buffers.
@@ -49,7 +56,7 @@ final class ZipUtil {
     /**
      * Compute crc32 of the central directory of an apk. The central directory contains
      * the crc32 of each entries in the zip so the computed result is considered valid for the whole
-     * zip file. Does not support zip64 nor multidisk but it should be OK for now since ZipFile does
+     * zip file. Does not support multidisk but it should be OK for now since ZipFile does
      * not either.
      */
     static long getZipCrc(File apk) throws IOException {
@@ -66,62 +73,88 @@ final class ZipUtil {
     /* Package visible for testing */
     static CentralDirectory findCentralDirectory(RandomAccessFile raf) throws IOException,
             ZipException {
-        long scanOffset = raf.length() - ENDHDR;
-        if (scanOffset < 0) {
-            throw new ZipException("File too short to be a zip file: " + raf.length());
+        long length = raf.length();
+        if (length < ENDHDR) {
+            throw new ZipException("File too short to be a zip file: " + length);
         }
 
-        long stopOffset = scanOffset - 0x10000 /* ".ZIP file comment"'s max length */;
-        if (stopOffset < 0) {
-            stopOffset = 0;
-        }
-
-        int endSig = Integer.reverseBytes(ENDSIG);
-        while (true) {
-            raf.seek(scanOffset);
-            if (raf.readInt() == endSig) {
-                break;
-            }
+        // the EOCD, its comment and a zip64 locator all fit in one read
+        int tailLength = (int) Math.min(length, ZIP64_LOCHDR + ENDHDR + MAX_COMMENT);
+        long tailOffset = length - tailLength;
+        byte[] tail = new byte[tailLength];
+        raf.seek(tailOffset);
+        raf.readFully(tail);
 
-            scanOffset--;
-            if (scanOffset < stopOffset) {
+        int end = tailLength - ENDHDR;
+        int stop = Math.max(0, end - MAX_COMMENT);
+        while (readInt(tail, end) != ENDSIG) {
+            end--;
+            if (end < stop) {
                 throw new ZipException("End Of Central Directory signature not found");
             }
         }
-        // Read the End Of Central Directory. ENDHDR includes the signature
-        // bytes,
-        // which we've already read.
-
-        // Pull out the information we need.
-        raf.skipBytes(2); // diskNumber
-        raf.skipBytes(2); // diskWithCentralDir
-        raf.skipBytes(2); // numEntries
-        raf.skipBytes(2); // totalNumEntries
+
         CentralDirectory dir = new CentralDirectory();
-        dir.size = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
-        dir.offset = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
+        dir.size = readInt(tail, end + 12) & 0xFFFFFFFFL;
+        dir.offset = readInt(tail, end + 16) & 0xFFFFFFFFL;
+
+        int locator = end - ZIP64_LOCHDR;
+        if ((dir.size == 0xFFFFFFFFL || dir.offset == 0xFFFFFFFFL ||
+                readShort(tail, end + 10) == 0xFFFF) &&
+                locator >= 0 && readInt(tail, locator) == ZIP64_LOCSIG) {
+            long zip64End = readLong(tail, locator + 8);
+            byte[] header = new byte[ZIP64_ENDHDR];
+            raf.seek(zip64End);
+            raf.readFully(header);
+            if (readInt(header, 0) != ZIP64_ENDSIG) {
+                throw new ZipException("Zip64 End Of Central Directory signature not found");
+            }
+            dir.size = readLong(header, 40);
+            dir.offset = readLong(header, 48);
+        }
         return dir;
     }
 
-    /* Package visible for testing */
+    /*
+     * Package visible for testing. Reads only the central directory range,
+     * through the channel rather than a mapping: a MappedByteBuffer cannot
+     * be released before it is collected and this runs on every start.
+     */
     static long computeCrcOfCentralDir(RandomAccessFile raf, CentralDirectory dir)
             throws IOException {
+        FileChannel channel = raf.getChannel();
+        if (dir.offset < 0 || dir.size < 0 || dir.offset + dir.size > channel.size()) {
+            throw new ZipException("Central directory outside of file: " +
+                    dir.offset + "+" + dir.size);
+        }
         CRC32 crc = new CRC32();
-        long stillToRead = dir.size;
-        raf.seek(dir.offset);
-        int length = (int) Math.min(BUFFER_SIZE, stillToRead);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        length = raf.read(buffer, 0, length);
-        while (length != -1) {
-            crc.update(buffer, 0, length);
-            stillToRead -= length;
-            if (stillToRead == 0) {
-                break;
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, dir.size))];
+        ByteBuffer b = ByteBuffer.wrap(buffer);
+        long position = dir.offset;
+        long end = dir.offset + dir.size;
+        while (position < end) {
+            b.clear();
+            b.limit((int) Math.min(buffer.length, end - position));
+            int read = channel.read(b, position);
+            if (read <= 0) {
+                throw new ZipException("Truncated central directory");
             }
-            length = (int) Math.min(BUFFER_SIZE, stillToRead);
-            length = raf.read(buffer, 0, length);
+            crc.update(buffer, 0, read);
+            position += read;
         }
         return crc.getValue();
     }
-}
 
+    private static int readShort(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 |
+                (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static long readLong(byte[] b, int off) {
+        return (readInt(b, off) & 0xFFFFFFFFL) | (long) readInt(b, off + 4) << 32;
+    }
+}
@@ -0,0 +1,134 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+public class ApkFingerprintTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final static long TIME = 1262304000000L;
+    private final static long INODE = 1234;
+
+    private File apk;
+    private File lock;
+    private long crc = 0x12345678L;
+    private int computed;
+
+    private final ApkFingerprint.Crc counting = new ApkFingerprint.Crc() {
+        @Override
+        public long of(File apk) {
+            computed++;
+            return crc;
+        }
+    };
+
+    @Before
+    public void setup() throws IOException {
+        apk = tmp.newFile("base.apk");
+        write(apk, "apk contents");
+        lock = tmp.newFile("protify.extraction.lock");
+    }
+
+    private static void write(File f, String contents) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "utf-8");
+        try {
+            w.write(contents);
+        } finally {
+            w.close();
+        }
+        f.setLastModified(TIME);
+    }
+
+    private boolean check(long inode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(lock, "rw");
+        try {
+            return ApkFingerprint.check(raf, apk, inode, counting);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void unchangedApkSkipsCrc() throws IOException {
+        assertTrue("nothing recorded yet", check(INODE));
+        assertEquals(1, computed);
+        assertFalse(check(INODE));
+        assertFalse(check(INODE));
+        assertEquals(1, computed);
+        assertEquals(32, lock.length());
+    }
+
+    @Test
+    public void changedTimestampRecomputesCrc() throws IOException {
+        check(INODE);
+        apk.setLastModified(TIME + 1000);
+        assertTrue(check(INODE));
+        assertEquals(2, computed);
+        assertFalse(check(INODE));
+        assertEquals(2, computed);
+    }
+
+    @Test
+    public void changedSizeRecomputesCrc() throws IOException {
+        check(INODE);
+        write(apk, "more apk contents");
+        crc++;
+        assertTrue(check(INODE));
+        assertEquals(2, computed);
+    }
+
+    @Test
+    public void changedInodeRecomputesCrc() throws IOException {
+        check(INODE);
+        // replaced in place by an identical apk
+        assertFalse(check(INODE + 1));
+        assertEquals(2, computed);
+        crc++;
+        assertTrue(check(INODE + 2));
+        assertEquals(3, computed);
+        assertFalse(check(INODE + 2));
+        assertEquals(3, computed);
+    }
+
+    @Test
+    public void legacyHeaderFallsBackToCrc() throws IOException {
+        // only the timestamp and crc, as written before the size and inode were added
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(lock));
+        try {
+            out.writeLong(TIME);
+            out.writeLong(crc);
+        } finally {
+            out.close();
+        }
+        assertFalse("same crc, nothing to extract", check(INODE));
+        assertEquals(1, computed);
+        assertFalse(check(INODE));
+        assertEquals(1, computed);
+    }
+
+    @Test
+    public void failedCrcIsRetried() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(lock, "rw");
+        try {
+            ApkFingerprint.check(raf, apk, INODE, new ApkFingerprint.Crc() {
+                @Override
+                public long of(File apk) throws IOException {
+                    throw new IOException("unreadable");
+                }
+            });
+            fail("crc failure was swallowed");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            raf.close();
+        }
+        assertTrue(check(INODE));
+        assertEquals(1, computed);
+    }
+}
@@ -0,0 +1,188 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ShardExtractorTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final static Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    /** shard name to contents, odd shards are stored */
+    private static Map<String,byte[]> shards(int count) {
+        Random r = new Random(count);
+        Map<String,byte[]> shards = new LinkedHashMap<String,byte[]>();
+        for (int i = 0; i < count; i++) {
+            byte[] b = new byte[1 + r.nextInt(20000)];
+            r.nextBytes(b);
+            shards.put(i + ".dex", b);
+        }
+        return shards;
+    }
+
+    private File apk(Map<String,byte[]> shards) throws IOException {
+        File f = tmp.newFile("base.apk");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f));
+        try {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(new byte[] { 1, 2, 3 });
+            int i = 0;
+            for (Map.Entry<String,byte[]> e : shards.entrySet()) {
+                ZipEntry entry = new ZipEntry("protify-dex/" + e.getKey());
+                if (i++ % 2 == 1) {
+                    CRC32 crc = new CRC32();
+                    crc.update(e.getValue());
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(e.getValue().length);
+                    entry.setCompressedSize(e.getValue().length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(e.getValue());
+            }
+            out.putNextEntry(new ZipEntry("protify-dex/notes.txt"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private static byte[] bytes(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int) raf.length()];
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private final static class Recording implements ShardExtractor.Listener {
+        final List<String> calls = new ArrayList<String>();
+        final Set<Thread> threads = new HashSet<Thread>();
+
+        @Override
+        public void onProgress(int completed, int total) {
+            calls.add(completed + "/" + total);
+            threads.add(Thread.currentThread());
+        }
+    }
+
+    private static List<String> inOrder(int total) {
+        List<String> calls = new ArrayList<String>();
+        for (int i = 1; i <= total; i++) {
+            calls.add(i + "/" + total);
+        }
+        return calls;
+    }
+
+    private void assertExtracted(Map<String,byte[]> shards, List<File> files) throws IOException {
+        assertEquals(shards.size(), files.size());
+        Iterator<Map.Entry<String,byte[]>> expected = shards.entrySet().iterator();
+        for (File f : files) {
+            Map.Entry<String,byte[]> e = expected.next();
+            assertEquals(e.getKey(), f.getName());
+            assertArrayEquals(e.getKey(), e.getValue(), bytes(f));
+        }
+    }
+
+    @Test
+    public void inlineExecutorExtractsOnTheCallingThread() throws IOException {
+        Map<String,byte[]> shards = shards(12);
+        File apk = apk(shards);
+        List<ShardExtractor.Entry> entries = ShardExtractor.entries(apk);
+        ShardExtractor.findStored(apk, entries);
+        int stored = 0;
+        for (ShardExtractor.Entry e : entries) {
+            if (e.stored != null) stored++;
+        }
+        assertEquals(6, stored);
+
+        Recording progress = new Recording();
+        List<File> files = ShardExtractor.extract(apk, tmp.newFolder(), entries,
+                false, 4, INLINE, progress);
+        assertExtracted(shards, files);
+        assertEquals(inOrder(12), progress.calls);
+        assertEquals(Collections.singleton(Thread.currentThread()), progress.threads);
+    }
+
+    @Test
+    public void pooledMatchesInline() throws IOException {
+        Map<String,byte[]> shards = shards(20);
+        File apk = apk(shards);
+        List<ShardExtractor.Entry> entries = ShardExtractor.entries(apk);
+        ShardExtractor.findStored(apk, entries);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Recording progress = new Recording();
+            assertExtracted(shards, ShardExtractor.extract(apk, tmp.newFolder(), entries,
+                    false, 4, pool, progress));
+            assertEquals("reported in order", inOrder(20), progress.calls);
+            assertEquals(Collections.singleton(Thread.currentThread()), progress.threads);
+        } finally {
+            pool.shutdownNow();
+        }
+        // and on a pool of its own
+        assertExtracted(shards, ShardExtractor.extract(apk, tmp.newFolder(), entries,
+                false, 4, null, null));
+    }
+
+    @Test
+    public void zippedShardsHoldClassesDex() throws IOException {
+        Map<String,byte[]> shards = shards(3);
+        File apk = apk(shards);
+        List<ShardExtractor.Entry> entries = ShardExtractor.entries(apk);
+        ShardExtractor.findStored(apk, entries);
+        List<File> files = ShardExtractor.extract(apk, tmp.newFolder(), entries,
+                true, 1, INLINE, null);
+        Iterator<byte[]> expected = shards.values().iterator();
+        for (File f : files) {
+            assertTrue(f.getName().endsWith(ShardExtractor.ZIP_SUFFIX));
+            ZipFile zip = new ZipFile(f);
+            try {
+                InputStream in = zip.getInputStream(zip.getEntry("classes.dex"));
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                assertArrayEquals(expected.next(), out.toByteArray());
+            } finally {
+                zip.close();
+            }
+        }
+    }
+
+    @Test
+    public void workerFailureIsRethrown() throws IOException {
+        File apk = apk(shards(8));
+        List<ShardExtractor.Entry> entries = ShardExtractor.entries(apk);
+        File missing = new File(tmp.getRoot(), "missing");
+        try {
+            ShardExtractor.extract(apk, missing, entries, false, 4, INLINE, null);
+            fail("extracted into a missing directory");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -41,6 +41,12 @@ class ResourcesTest {
        res.getString(TestR.string.search_suggest_authority))
     assertEquals("KeepShare Lite Form Filler",
        res.getString(TestR.string.accessibility_service_label))
+
+    val ids = ResourceTableIds.read(f)
+    assertEquals(1474, ids.size)
+    assertTrue(ids.get(TestR.layout.pin_setup))
+    assertTrue(ids.get(TestR.string.appname))
+    assertFalse(ids.get(android.R.string.ok))
   }
   private type PrivateAssetManager = {
     def addAssetPath(s: java.lang.String): Unit
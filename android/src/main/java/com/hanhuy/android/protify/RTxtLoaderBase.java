@@ -4,11 +4,54 @@ package com.hanhuy.android.protify;
 import android.util.Log;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
-public abstract class RTxtLoaderBase {
+/**
+ * Applies resource ids to the viewer's R classes, from either an
+ * {@link RTable} or a plain {@code R.txt}. A table is mapped rather than
+ * read and only the entries that changed since the last table are applied.
+ *
+ * The generated subclass numbers every R field it can patch and supplies
+ * the displacements of a {@link PerfectHash} from {@code class/name} to
+ * that ordinal. Entries are looked up straight from the table's bytes.
+ */
+public abstract class RTxtLoaderBase implements RTable.Target {
 
     private final static String TAG = "RTxtLoader";
     private String lasthash;
+    /** the last table applied, a heap copy since the pushed file goes away */
+    private ByteBuffer lasttable;
+
+    /** utf-8 {@code class/name} by ordinal */
+    private final byte[][] keys;
+    /** displacement by bucket */
+    private final String displacements;
+
+    /**
+     * @param keys {@code class/name} by ordinal, separated by newlines
+     * @param displacements one char per bucket
+     */
+    protected RTxtLoaderBase(String[] keys, String[] displacements) {
+        StringBuilder sb = new StringBuilder();
+        for (String chunk : keys) {
+            sb.append(chunk);
+        }
+        String[] names = sb.length() == 0 ? new String[0] : sb.toString().split("\n");
+        this.keys = new byte[names.length][];
+        try {
+            for (int i = 0; i < names.length; i++) {
+                this.keys[i] = names[i].getBytes("utf-8");
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        sb.setLength(0);
+        for (String chunk : displacements) {
+            sb.append(chunk);
+        }
+        this.displacements = sb.toString();
+    }
 
     private static boolean eq(Object o1, Object o2) {
         return o1 == null ? o2 == null : o1.equals(o2);
@@ -19,42 +62,18 @@ public abstract class RTxtLoaderBase {
             if (rtxt != null) {
                 File f = new File(rtxt);
                 if (f.isFile()) {
-
-                    BufferedReader r = null;
                     try {
-                        r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "utf-8"));
-                        String line;
-                        while ((line = r.readLine()) != null) {
-                            String[] parts = line.split(" ");
-                            switch (parts[0]) {
-                                case "int": {
-                                    String clazz = parts[1];
-                                    String name = parts[2];
-                                    int value = asInt(parts[3]);
-                                    setInt(clazz, name, value);
-                                    break;
-                                }
-                                case "int[]": {
-                                    String clazz = parts[1];
-                                    String name = parts[2];
-                                    int[] value = new int[parts.length - 5];
-                                    for (int i = 0, j = 4; i < value.length; i++, j++) {
-                                        value[i] = asInt(parts[j].replaceAll(",",""));
-                                    }
-                                    setIntArray(clazz, name, value);
-                                    break;
-                                }
-                            }
+                        ByteBuffer table = map(f);
+                        if (RTable.isTable(table)) {
+                            loadTable(table);
+                        } else {
+                            lasttable = null;
+                            loadText(f);
                         }
-
                     } catch (IOException e) {
-                        // swallow
-                    } finally {
-                        try {
-                            if (r != null) r.close();
-                        } catch (IOException ex) {
-                            // swallow
-                        }
+                        Log.w(TAG, "Unable to load " + rtxt, e);
+                        lasttable = null;
+                        hash = null;
                     }
                 }
             }
@@ -65,10 +84,102 @@ public abstract class RTxtLoaderBase {
         lasthash = hash;
     }
 
+    private static ByteBuffer map(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel ch = in.getChannel();
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void loadTable(ByteBuffer table) throws IOException {
+        int applied = RTable.apply(table, lasttable, this);
+        ByteBuffer copy = lasttable != null && lasttable.capacity() >= table.remaining() ?
+                lasttable : ByteBuffer.allocate(table.remaining());
+        copy.clear();
+        copy.put(table.duplicate());
+        copy.flip();
+        lasttable = copy;
+        Log.v(TAG, "Applied " + applied + " changed R entries");
+    }
+
+    @Override
+    public void set(ByteBuffer table, int clazz, int name, int value) {
+        int ordinal = ordinal(table, clazz, name);
+        if (ordinal == -1) return;
+        if (RTable.kind(table, value) == RTable.INT)
+            setInt(ordinal, RTable.intValue(table, value));
+        else
+            setIntArray(ordinal, RTable.arrayValue(table, value));
+    }
+
+    private void loadText(File f) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "utf-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] parts = line.split(" ");
+                switch (parts[0]) {
+                    case "int": {
+                        int ordinal = ordinal(parts[1], parts[2]);
+                        if (ordinal != -1)
+                            setInt(ordinal, asInt(parts[3]));
+                        break;
+                    }
+                    case "int[]": {
+                        int ordinal = ordinal(parts[1], parts[2]);
+                        if (ordinal == -1) break;
+                        int[] value = new int[parts.length - 5];
+                        for (int i = 0, j = 4; i < value.length; i++, j++) {
+                            String v = parts[j];
+                            value[i] = asInt(v.endsWith(",") ? v.substring(0, v.length() - 1) : v);
+                        }
+                        setIntArray(ordinal, value);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
     private static int asInt(String s) {
         return s.startsWith("0x") ? Integer.parseInt(s.substring(2), 16) : Integer.parseInt(s);
     }
 
-    public abstract void setInt(String clazz, String name, int value);
-    public abstract void setIntArray(String clazz, String name, int[] value);
+    /** lay the names out as in a table, the text path is only a fallback */
+    private int ordinal(String clazz, String name) throws IOException {
+        byte[] c = clazz.getBytes("utf-8");
+        byte[] n = name.getBytes("utf-8");
+        ByteBuffer b = ByteBuffer.allocate(4 + c.length + n.length);
+        b.putShort((short) c.length).put(c).putShort((short) n.length).put(n);
+        return ordinal(b, 0, 2 + c.length);
+    }
+
+    /** @return the ordinal of the names at {@code clazz} and {@code name}, -1 if not patchable */
+    final int ordinal(ByteBuffer b, int clazz, int name) {
+        int count = keys.length;
+        if (count == 0) return -1;
+        long h = PerfectHash.hash(b, clazz, name);
+        int d = displacements.charAt(PerfectHash.bucket(h, displacements.length()));
+        int slot = PerfectHash.slot(h, d, count);
+
+        byte[] key = keys[slot];
+        int clen = RTable.nameLength(b, clazz);
+        int nlen = RTable.nameLength(b, name);
+        if (key.length != clen + 1 + nlen || key[clen] != '/') return -1;
+        for (int i = 0; i < clen; i++) {
+            if (key[i] != b.get(clazz + 2 + i)) return -1;
+        }
+        for (int i = 0; i < nlen; i++) {
+            if (key[clen + 1 + i] != b.get(name + 2 + i)) return -1;
+        }
+        return slot;
+    }
+
+    public abstract void setInt(int ordinal, int value);
+    public abstract void setIntArray(int ordinal, int[] value);
 }
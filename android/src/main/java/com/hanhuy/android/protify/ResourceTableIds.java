@@ -0,0 +1,130 @@
+package com.hanhuy.android.protify;
+
+import android.util.SparseBooleanArray;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the ids of every entry defined, in any configuration, by the
+ * {@code resources.arsc} of an apk. Only the chunk headers and entry offset
+ * arrays are read, values are never decoded.
+ */
+final class ResourceTableIds {
+    private final static int RES_TABLE_TYPE = 0x0002;
+    private final static int RES_TABLE_PACKAGE_TYPE = 0x0200;
+    private final static int RES_TABLE_TYPE_TYPE = 0x0201;
+
+    private final static int FLAG_SPARSE = 0x01;
+    private final static int FLAG_OFFSET16 = 0x02;
+    private final static int NO_ENTRY = 0xffffffff;
+    private final static int NO_ENTRY16 = 0xffff;
+
+    private ResourceTableIds() { }
+
+    /** @return every id in the resource table of {@code apk}, mapped to true */
+    static SparseBooleanArray read(File apk) throws IOException {
+        ZipFile zip = new ZipFile(apk);
+        try {
+            ZipEntry e = zip.getEntry("resources.arsc");
+            if (e == null)
+                throw new IOException("No resources.arsc in " + apk);
+            InputStream in = zip.getInputStream(e);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    e.getSize() > 0 ? (int) e.getSize() : 0x10000);
+            try {
+                byte[] buffer = new byte[0x4000];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            return ids(ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN));
+        } finally {
+            zip.close();
+        }
+    }
+
+    static SparseBooleanArray ids(ByteBuffer arsc) throws IOException {
+        try {
+            if ((arsc.getShort(0) & 0xffff) != RES_TABLE_TYPE)
+                throw new IOException("Not a resource table");
+            SparseBooleanArray ids = new SparseBooleanArray();
+            int end = Math.min(arsc.getInt(4), arsc.limit());
+            for (int pos = arsc.getShort(2) & 0xffff; pos < end; pos += chunkSize(arsc, pos)) {
+                if ((arsc.getShort(pos) & 0xffff) == RES_TABLE_PACKAGE_TYPE)
+                    readPackage(arsc, pos, ids);
+            }
+            return ids;
+        } catch (IndexOutOfBoundsException e) {
+            // IOException(String, Throwable) is API 9+
+            IOException ioe = new IOException("Truncated resource table");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private static void readPackage(ByteBuffer arsc, int pkg, SparseBooleanArray ids)
+            throws IOException {
+        int id = arsc.getInt(pkg + 8);
+        int end = pkg + chunkSize(arsc, pkg);
+        // entries present by type id, across all configurations
+        boolean[][] types = new boolean[256][];
+        for (int pos = pkg + (arsc.getShort(pkg + 2) & 0xffff); pos < end; pos += chunkSize(arsc, pos)) {
+            if ((arsc.getShort(pos) & 0xffff) != RES_TABLE_TYPE_TYPE)
+                continue;
+            int type = arsc.get(pos + 8) & 0xff;
+            int flags = arsc.get(pos + 9) & 0xff;
+            int count = arsc.getInt(pos + 12);
+            int offsets = pos + (arsc.getShort(pos + 2) & 0xffff);
+            if (count < 0 || count > 0x10000)
+                throw new IOException("Invalid entry count " + count);
+            boolean[] present = types[type];
+            if ((flags & FLAG_SPARSE) != 0) {
+                // (index, offset / 4) pairs of the entries present
+                for (int i = 0; i < count; i++) {
+                    int entry = arsc.getShort(offsets + i * 4) & 0xffff;
+                    present = grow(present, entry + 1);
+                    present[entry] = true;
+                }
+            } else {
+                present = grow(present, count);
+                boolean offset16 = (flags & FLAG_OFFSET16) != 0;
+                for (int i = 0; i < count; i++) {
+                    present[i] |= offset16 ?
+                            (arsc.getShort(offsets + i * 2) & 0xffff) != NO_ENTRY16 :
+                            arsc.getInt(offsets + i * 4) != NO_ENTRY;
+                }
+            }
+            types[type] = present;
+        }
+        for (int type = 0; type < types.length; type++) {
+            boolean[] present = types[type];
+            if (present == null) continue;
+            for (int entry = 0; entry < present.length; entry++) {
+                if (present[entry])
+                    ids.append((id << 24) | (type << 16) | entry, true);
+            }
+        }
+    }
+
+    private static boolean[] grow(boolean[] a, int size) {
+        if (a != null && a.length >= size) return a;
+        boolean[] grown = new boolean[size];
+        if (a != null)
+            System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+
+    private static int chunkSize(ByteBuffer arsc, int pos) throws IOException {
+        int size = arsc.getInt(pos + 4);
+        if (size < 8)
+            throw new IOException("Invalid chunk size " + size + " at " + pos);
+        return size;
+    }
+}
@@ -7,6 +7,8 @@ import android.support.v7.app.AppCompatActivity
 import android.util.AttributeSet
 import android.view.{View, MenuItem, Menu}
 
+import java.io.{IOException, FileOutputStream, FileInputStream, File}
+
 import Intents._
 import android.widget.Toast
 import com.hanhuy.android.common.Logcat
@@ -33,9 +35,114 @@ object DexActivity {
   var proxy = Option.empty[(ActivityProxy, Activity)]
 }
 
+/**
+ * DexClassLoaders by the ContentHash of their dex. Every version gets a
+ * directory holding a copy of the dex and its optimized output, so
+ * previewing an unchanged dex reuses its loader, or after a restart at
+ * least its optimized output, and a new dex is optimized exactly once.
+ * Versions beyond the most recently used MAX_VERSIONS are dropped along
+ * with their directories once no activity holds their loader.
+ */
+object DexLoaderCache {
+  val log = Logcat("DexLoaderCache")
+  val MAX_VERSIONS = 3
+
+  // use is tracked by the mtime of each version's directory
+  private[this] val loaders = new java.util.HashMap[String,DexClassLoader]
+  // activities holding each version's loader, their classes live in its directory
+  private[this] val held = new java.util.HashMap[String,Integer]
+  // hashes of dex that came without one, by path, size and mtime
+  private[this] var hashed = Option.empty[((String,Long,Long),String)]
+
+  /**
+   * @param hash the ContentHash of `dex` if the sender supplied it
+   * @return the version and its loader, `release` the version when done
+   */
+  def acquire(ctx: Context, dex: String, hash: Option[String]): (String, ClassLoader) = synchronized {
+    // it names a directory, take nothing but a hash
+    val version = hash filter (h => scala.util.Try(ContentHash.fromHex(h)).isSuccess) getOrElse hashOf(new File(dex))
+    val root = cacheDir(ctx)
+    val dir = new File(root, version)
+    dir.mkdirs()
+    dir.setLastModified(System.currentTimeMillis)
+    val loader = Option(loaders.get(version)) getOrElse {
+      val dexfile = new File(dir, "classes.dex")
+      val opt = new File(dir, "opt")
+      if (!dexfile.isFile) {
+        opt.mkdirs()
+        copy(new File(dex), dexfile)
+      } else log.v(s"Reusing optimized dex $version")
+      val cl = new DexClassLoader(dexfile.getAbsolutePath, opt.getAbsolutePath, null, ctx.getClassLoader)
+      loaders.put(version, cl)
+      cl
+    }
+    held.put(version, Option(held.get(version)).fold(1)(_ + 1))
+    evict(root, version)
+    (version, loader)
+  }
+
+  def release(version: String): Unit = synchronized {
+    Option(held.get(version)) foreach { n =>
+      if (n > 1) held.put(version, n - 1) else held.remove(version)
+    }
+  }
+
+  private[this] def hashOf(dex: File): String = {
+    val key = (dex.getAbsolutePath, dex.length, dex.lastModified)
+    hashed collect { case (k, h) if k == key => h } getOrElse {
+      val h = ContentHash.of(dex)
+      hashed = Some((key, h))
+      h
+    }
+  }
+
+  private[this] def cacheDir(ctx: Context) = {
+    val dir = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+      new File(ctx.getCodeCacheDir, "protify-dex-cache")
+    else
+      ctx.getDir("protify-dex-cache", Context.MODE_PRIVATE)
+    dir.mkdirs()
+    dir
+  }
+
+  private[this] def evict(root: File, current: String): Unit = {
+    val versions = Option(root.listFiles).fold(List.empty[File])(_.toList) filter (_.isDirectory)
+    val drop = versions.sortBy(f => (f.getName != current, -f.lastModified)) drop MAX_VERSIONS
+    // a version in use stays until a later preview finds it released
+    drop filterNot (d => held.containsKey(d.getName)) foreach { d =>
+      log.v("Evicting dex " + d.getName)
+      loaders.remove(d.getName)
+      delete(d)
+    }
+  }
+
+  private[this] def delete(f: File): Unit = {
+    Option(f.listFiles) foreach (_ foreach delete)
+    f.delete()
+  }
+
+  private[this] def copy(from: File, to: File): Unit = {
+    val tmp = new File(to.getPath + ".tmp")
+    val in = new FileInputStream(from).getChannel
+    val out = new FileOutputStream(tmp).getChannel
+    try {
+      val size = in.size
+      var pos = 0L
+      while (pos < size)
+        pos += in.transferTo(pos, size - pos, out)
+    } finally {
+      in.close()
+      out.close()
+    }
+    if (!tmp.renameTo(to))
+      throw new IOException("Unable to write " + to)
+  }
+}
+
 object DexArguments {
   var resources = ""
   var dex       = ""
+  var dexHash   = Option.empty[String]
   var proxy     = ""
   var appcompat = false
 }
@@ -46,14 +153,12 @@ trait ExternalDexLoader extends Activity with ExternalResourceLoader {
   override def resPath = Some(DexArguments.resources)
 
   private[this] var proxy = Option.empty[ActivityProxy]
+  private[this] var version = Option.empty[String]
 
   lazy val loader = {
-    val cache = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
-      getCodeCacheDir
-    else
-      getDir("dex", Context.MODE_PRIVATE)
     log2.v("Loading dex: " + System.currentTimeMillis)
-    val cl = new DexClassLoader(DexArguments.dex, cache.getAbsolutePath, null, getClassLoader)
+    val (v, cl) = DexLoaderCache.acquire(this, DexArguments.dex, DexArguments.dexHash)
+    version = Some(v)
     log2.v("Loaded dex: " + System.currentTimeMillis)
     cl
   }
@@ -86,6 +191,8 @@ trait ExternalDexLoader extends Activity with ExternalResourceLoader {
     super.onDestroy()
     proxy foreach (_.onProxyUnload(this))
     DexActivity.proxy = None
+    version foreach DexLoaderCache.release
+    version = None
   }
   override def onPause() = {
     proxy foreach (_.onPause(this))
@@ -1,12 +1,12 @@
 package com.hanhuy.android.protify
 
 import android.app.Activity
-import android.content.{Intent, Context}
+import android.content.{ContextWrapper, Intent, Context}
 import android.content.res.{Configuration, AssetManager, Resources}
 import android.os.Bundle
 import android.support.v7.app.AppCompatActivity
-import android.util.{TypedValue, AttributeSet, DisplayMetrics}
-import android.view.LayoutInflater
+import android.util.{SparseArray, SparseBooleanArray, TypedValue, AttributeSet, DisplayMetrics}
+import android.view.{ViewGroup, LayoutInflater}
 
 import android.widget.Toast
 import com.android.debug.hv.ViewServer
@@ -17,35 +17,54 @@ import com.hanhuy.android.common.Logcat
  */
 object LayoutArguments {
   var resources = Option.empty[String]
+  /** content hash of `resources`, unchanged resources are not reloaded */
+  var resourcesHash = Option.empty[String]
   var layout    = Option.empty[Int]
   var theme     = Option.empty[Int]
   var appcompat = false
+  /** System.nanoTime when the preview was requested */
+  var received  = 0L
 }
 
 object LayoutActivity {
   val log = Logcat("LayoutActivity")
+
+  /** the live preview, new layouts are swapped into it in place */
+  private[protify] var current = Option.empty[LayoutActivityArguments]
+
   def start(ctx: Context) = {
-    if (LayoutArguments.appcompat)
-      log.v("Launching AppCompatLayoutActivity")
-
-    val intent = new Intent(ctx, if (LayoutArguments.appcompat)
-      classOf[AppCompatLayoutActivity] else classOf[LayoutActivity])
-    intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP)
-    intent.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS)
-    intent.addFlags(Intent.FLAG_ACTIVITY_NO_HISTORY)
-    intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK)
-    intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP)
-    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
-    ctx.startActivity(intent)
+    val target = if (LayoutArguments.appcompat)
+      classOf[AppCompatLayoutActivity] else classOf[LayoutActivity]
+    current filter (a => a.getClass == target && !a.isFinishing) match {
+      case Some(activity) =>
+        activity.swap()
+      case None =>
+        if (LayoutArguments.appcompat)
+          log.v("Launching AppCompatLayoutActivity")
+
+        val intent = new Intent(ctx, target)
+        intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP)
+        intent.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS)
+        intent.addFlags(Intent.FLAG_ACTIVITY_NO_HISTORY)
+        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK)
+        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP)
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
+        ctx.startActivity(intent)
+    }
   }
 }
 
 trait LayoutActivityArguments extends Activity with ExternalResourceLoader {
   def resPath = LayoutArguments.resources
+  override def resKey = LayoutArguments.resourcesHash
   def layoutRes = LayoutArguments.layout
 
   var lastTheme = Option.empty[Int]
 
+  // themed contexts by theme id, for the resources they were created with
+  private[this] val themed = new SparseArray[Context]
+  private[this] var themedResources: Resources = null
+
   override def onNewIntent(intent: Intent) = {
     super.onNewIntent(intent)
     log.v("Re-launching")
@@ -67,6 +86,7 @@ trait LayoutActivityArguments extends Activity with ExternalResourceLoader {
         lastTheme = LayoutArguments.theme
         setContentView(layout)
         log.v("Content set: " + System.currentTimeMillis)
+        LayoutActivity.current = Some(this)
       } catch { case e: Exception =>
         val res = resources
         log.w(f"Unable to load requested layout 0x$layout%08x", e)
@@ -75,7 +95,95 @@ trait LayoutActivityArguments extends Activity with ExternalResourceLoader {
       }
     }
   }
+
+  override def onDestroy() = {
+    if (LayoutActivity.current exists (_ eq this))
+      LayoutActivity.current = None
+    super.onDestroy()
+  }
+
+  /**
+   * Inflate the requested layout into this activity. The window keeps the
+   * theme the activity was created with, the content is inflated with the
+   * requested theme, or the activity's, from the current resources.
+   */
+  def swap(): Unit = layoutRes foreach { layout =>
+    def ms(from: Long, to: Long) = (to - from) / 1000000.0
+    try {
+      val start = System.nanoTime
+      val res = resources
+      val loaded = System.nanoTime
+      val theme = LayoutArguments.theme.getOrElse(
+        getPackageManager.getActivityInfo(getComponentName, 0).getThemeResource)
+      val ctx = themedContext(res, theme)
+      val themedAt = System.nanoTime
+      val content = findViewById(android.R.id.content).asInstanceOf[ViewGroup]
+      val view = LayoutInflater.from(ctx).inflate(layout, content, false)
+      val inflated = System.nanoTime
+      setContentView(view, view.getLayoutParams)
+      val end = System.nanoTime
+      lastTheme = LayoutArguments.theme
+      log.i(f"Swapped in layout 0x$layout%08x in ${ms(start, end)}%.1fms: " +
+        f"resources ${ms(start, loaded)}%.1fms, theme ${ms(loaded, themedAt)}%.1fms, " +
+        f"inflate ${ms(themedAt, inflated)}%.1fms, set content ${ms(inflated, end)}%.1fms; " +
+        f"${ms(LayoutArguments.received, end)}%.1fms since the broadcast")
+    } catch { case e: Exception =>
+      log.w(f"Unable to swap in layout 0x$layout%08x", e)
+      Toast.makeText(this, f"Unable to load requested layout 0x$layout%08x: " + e.getMessage, Toast.LENGTH_LONG).show()
+    }
+  }
+
+  private[this] def themedContext(res: Resources, theme: Int): Context = {
+    if (themedResources ne res) {
+      themed.clear()
+      themedResources = res
+    }
+    Option(themed.get(theme)) getOrElse {
+      val ctx = new PreviewContext(this, res, theme)
+      // create the theme now, rather than during the first inflation
+      ctx.getTheme
+      themed.put(theme, ctx)
+      ctx
+    }
+  }
+}
+
+/**
+ * Inflates previews with `theme` from `res`. Unlike ContextThemeWrapper it
+ * does not start from a copy of the activity's theme, which belongs to the
+ * resources the activity was created with.
+ */
+class PreviewContext(base: Context, res: Resources, theme: Int) extends ContextWrapper(base) {
+  private[this] lazy val previewTheme = {
+    val t = res.newTheme()
+    t.applyStyle(theme, true)
+    t
+  }
+  private[this] lazy val inflater = LayoutInflater.from(base).cloneInContext(this)
+
+  override def getResources = res
+  override def getTheme = previewTheme
+  override def setTheme(resid: Int) = previewTheme.applyStyle(resid, true)
+  override def getSystemService(name: String) =
+    if (Context.LAYOUT_INFLATER_SERVICE == name) inflater else super.getSystemService(name)
+}
+
+/**
+ * The external resources last loaded, by the key of their contents and the
+ * configuration they were loaded for. Kept across activities so that
+ * previewing with unchanged resources does not open a new AssetManager.
+ */
+object ExternalResources {
+  private[this] var cached = Option.empty[(String,Configuration,Resources)]
+
+  def get(key: String, config: Configuration) = cached collect {
+    case (k, c, r) if k == key && c == config => r
+  }
+
+  def put(key: String, config: Configuration, res: Resources) =
+    cached = Some((key, new Configuration(config), res))
 }
+
 trait ExternalResourceLoader extends Activity {
   val log = Logcat("ExternalResourceLoader")
 
@@ -84,24 +192,32 @@ trait ExternalResourceLoader extends Activity {
   }
 
   def resPath: Option[String]
+  /** identifies the contents of `resPath`, the path itself if None */
+  def resKey: Option[String] = None
 
-  private[this] var resourcesCache = Option.empty[Resources]
-
-  def resources = resourcesCache getOrElse {
+  def resources = {
     val oldres = super.getResources
     resPath match {
       case Some(res) =>
-        val f = new java.io.File(res)
-        if (!f.exists) {
-          log.w("Resources file does not exist: " + f)
-          oldres
-        } else {
-          val am = classOf[AssetManager].newInstance
-          am.asInstanceOf[PrivateAssetManager].addAssetPath(f.getAbsolutePath)
-          log.v("Loaded resources from: " + res)
-          val r = new ResourcesWrapper(am, oldres.getDisplayMetrics, oldres.getConfiguration, oldres)
-          resourcesCache = Some(r)
-          r
+        val key = resKey getOrElse res
+        ExternalResources.get(key, oldres.getConfiguration) getOrElse {
+          val f = new java.io.File(res)
+          if (!f.exists) {
+            log.w("Resources file does not exist: " + f)
+            oldres
+          } else {
+            val am = classOf[AssetManager].newInstance
+            am.asInstanceOf[PrivateAssetManager].addAssetPath(f.getAbsolutePath)
+            log.v("Loaded resources from: " + res)
+            val ids = try ResourceTableIds.read(f) catch {
+              case e: java.io.IOException =>
+                log.w("Unable to read resource ids from " + f, e)
+                null
+            }
+            val r = new ResourcesWrapper(am, oldres.getDisplayMetrics, oldres.getConfiguration, oldres, ids)
+            ExternalResources.put(key, oldres.getConfiguration, r)
+            r
+          }
         }
       case None =>
         oldres
@@ -119,90 +235,75 @@ trait ExternalResourceLoader extends Activity {
 class AppCompatLayoutActivity extends AppCompatActivity with LayoutActivityArguments with ViewServerSupport
 class LayoutActivity extends Activity with LayoutActivityArguments with ViewServerSupport
 
-class ResourcesWrapper(am: AssetManager, dm: DisplayMetrics, c: Configuration, res: Resources) extends Resources(am, dm, c) {
-  override def getIntArray(id: Int) = try {
-    super.getIntArray(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getIntArray(id)
-  }
+/**
+ * Looks up ids in the injected resources when their table has the id and
+ * in the app's own resources otherwise, instead of catching the
+ * NotFoundException of every lookup that has to fall back. An id that is
+ * in the table but still cannot be resolved, e.g. for lack of a matching
+ * configuration, is remembered and goes to the app's resources from then on.
+ *
+ * @param ids ids in the injected resource table, null if unknown
+ */
+class ResourcesWrapper(am: AssetManager, dm: DisplayMetrics, c: Configuration, res: Resources,
+                       ids: SparseBooleanArray) extends Resources(am, dm, c) {
+  private[this] val decisions = if (ids == null) new SparseBooleanArray else ids
+  private[this] val injectedByDefault = ids == null
 
-  override def getValue(id: Int, outValue: TypedValue, resolveRefs: Boolean) = try {
-    super.getValue(id, outValue, resolveRefs)
-  } catch {
-    case e: Resources.NotFoundException => res.getValue(id, outValue, resolveRefs)
+  private[this] def resolve[A](id: Int)(injected: => A)(original: => A): A = {
+    // null while Resources' constructor runs
+    val d = decisions
+    val inject = d == null || d.synchronized(d.get(id, injectedByDefault))
+    if (inject) try injected catch {
+      case e: Resources.NotFoundException =>
+        if (d != null) d.synchronized(d.put(id, false))
+        original
+    } else original
   }
 
+  override def getIntArray(id: Int) =
+    resolve(id)(super.getIntArray(id))(res.getIntArray(id))
+
+  override def getValue(id: Int, outValue: TypedValue, resolveRefs: Boolean) =
+    resolve(id)(super.getValue(id, outValue, resolveRefs))(res.getValue(id, outValue, resolveRefs))
+
   override def getValue(name: String, outValue: TypedValue, resolveRefs: Boolean) = try {
     super.getValue(name, outValue, resolveRefs)
   } catch {
     case e: Resources.NotFoundException => res.getValue(name, outValue, resolveRefs)
   }
 
-  override def openRawResource(id: Int) = try {
-    super.openRawResource(id)
-  } catch {
-    case e: Resources.NotFoundException => res.openRawResource(id)
-  }
+  override def openRawResource(id: Int) =
+    resolve(id)(super.openRawResource(id))(res.openRawResource(id))
 
-  override def openRawResource(id: Int, value: TypedValue) = try {
-    super.openRawResource(id, value)
-  } catch {
-    case e: Resources.NotFoundException => res.openRawResource(id, value)
-  }
+  override def openRawResource(id: Int, value: TypedValue) =
+    resolve(id)(super.openRawResource(id, value))(res.openRawResource(id, value))
 
-  override def getDimensionPixelOffset(id: Int) = try {
-    super.getDimensionPixelOffset(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getDimensionPixelOffset(id)
-  }
+  override def getDimensionPixelOffset(id: Int) =
+    resolve(id)(super.getDimensionPixelOffset(id))(res.getDimensionPixelOffset(id))
 
-  override def getDimension(id: Int) = try {
-    super.getDimension(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getDimension(id)
-  }
+  override def getDimension(id: Int) =
+    resolve(id)(super.getDimension(id))(res.getDimension(id))
 
-  override def getLayout(id: Int) = try {
-    super.getLayout(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getLayout(id)
-  }
+  override def getLayout(id: Int) =
+    resolve(id)(super.getLayout(id))(res.getLayout(id))
 
-  override def openRawResourceFd(id: Int) = try {
-    super.openRawResourceFd(id)
-  } catch {
-    case e: Resources.NotFoundException => res.openRawResourceFd(id)
-  }
+  override def openRawResourceFd(id: Int) =
+    resolve(id)(super.openRawResourceFd(id))(res.openRawResourceFd(id))
 
-  override def getDimensionPixelSize(id: Int) = try {
-    super.getDimensionPixelSize(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getDimensionPixelSize(id)
-  }
+  override def getDimensionPixelSize(id: Int) =
+    resolve(id)(super.getDimensionPixelSize(id))(res.getDimensionPixelSize(id))
 
-  override def getValueForDensity(id: Int, density: Int, outValue: TypedValue, resolveRefs: Boolean) = try {
-    super.getValueForDensity(id, density, outValue, resolveRefs)
-  } catch {
-    case e: Resources.NotFoundException => res.getValueForDensity(id, density, outValue, resolveRefs)
-  }
+  override def getValueForDensity(id: Int, density: Int, outValue: TypedValue, resolveRefs: Boolean) =
+    resolve(id)(super.getValueForDensity(id, density, outValue, resolveRefs))(res.getValueForDensity(id, density, outValue, resolveRefs))
 
-  override def getDrawable(id: Int) = try {
-    super.getDrawable(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getDrawable(id)
-  }
+  override def getDrawable(id: Int) =
+    resolve(id)(super.getDrawable(id))(res.getDrawable(id))
 
-  override def getDrawable(id: Int, theme: Resources#Theme) = try {
-    super.getDrawable(id, theme)
-  } catch {
-    case e: Resources.NotFoundException => res.getDrawable(id, theme)
-  }
+  override def getDrawable(id: Int, theme: Resources#Theme) =
+    resolve(id)(super.getDrawable(id, theme))(res.getDrawable(id, theme))
 
-  override def getResourceEntryName(resid: Int) = try {
-    super.getResourceEntryName(resid)
-  } catch {
-    case e: Resources.NotFoundException => res.getResourceEntryName(resid)
-  }
+  override def getResourceEntryName(resid: Int) =
+    resolve(resid)(super.getResourceEntryName(resid))(res.getResourceEntryName(resid))
 
   override def parseBundleExtra(tagName: String, attrs: AttributeSet, outBundle: Bundle) = try {
     super.parseBundleExtra(tagName, attrs, outBundle)
@@ -210,89 +311,47 @@ class ResourcesWrapper(am: AssetManager, dm: DisplayMetrics, c: Configuration, r
     case e: Resources.NotFoundException => res.parseBundleExtra(tagName, attrs, outBundle)
   }
 
-  override def getResourceTypeName(resid: Int) = try {
-    super.getResourceTypeName(resid)
-  } catch {
-    case e: Resources.NotFoundException => res.getResourceTypeName(resid)
-  }
+  override def getResourceTypeName(resid: Int) =
+    resolve(resid)(super.getResourceTypeName(resid))(res.getResourceTypeName(resid))
 
-  override def getMovie(id: Int) = try {
-    super.getMovie(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getMovie(id)
-  }
+  override def getMovie(id: Int) =
+    resolve(id)(super.getMovie(id))(res.getMovie(id))
 
-  override def getColor(id: Int) = try {
-    super.getColor(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getColor(id)
-  }
+  override def getColor(id: Int) =
+    resolve(id)(super.getColor(id))(res.getColor(id))
 
-  override def getBoolean(id: Int) = try {
-    super.getBoolean(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getBoolean(id)
-  }
+  override def getBoolean(id: Int) =
+    resolve(id)(super.getBoolean(id))(res.getBoolean(id))
 
-  override def getFraction(id: Int, base: Int, pbase: Int) = try {
-    super.getFraction(id, base, pbase)
-  } catch {
-    case e: Resources.NotFoundException => res.getFraction(id, base, pbase)
-  }
+  override def getFraction(id: Int, base: Int, pbase: Int) =
+    resolve(id)(super.getFraction(id, base, pbase))(res.getFraction(id, base, pbase))
 
-  override def getStringArray(id: Int) = try {
-    super.getStringArray(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getStringArray(id)
-  }
+  override def getStringArray(id: Int) =
+    resolve(id)(super.getStringArray(id))(res.getStringArray(id))
 
-  override def getResourceName(resid: Int) = try {
-    super.getResourceName(resid)
-  } catch {
-    case e: Resources.NotFoundException => res.getResourceName(resid)
-  }
+  override def getResourceName(resid: Int) =
+    resolve(resid)(super.getResourceName(resid))(res.getResourceName(resid))
 
-  override def getQuantityString(id: Int, quantity: Int, formatArgs: AnyRef*) = try {
-    super.getQuantityString(id, quantity, formatArgs: _*)
-  } catch {
-    case e: Resources.NotFoundException => res.getQuantityString(id, quantity, formatArgs: _*)
-  }
+  override def getQuantityString(id: Int, quantity: Int, formatArgs: AnyRef*) =
+    resolve(id)(super.getQuantityString(id, quantity, formatArgs: _*))(res.getQuantityString(id, quantity, formatArgs: _*))
 
-  override def getQuantityString(id: Int, quantity: Int) = try {
-    super.getQuantityString(id, quantity)
-  } catch {
-    case e: Resources.NotFoundException => res.getQuantityString(id, quantity)
-  }
+  override def getQuantityString(id: Int, quantity: Int) =
+    resolve(id)(super.getQuantityString(id, quantity))(res.getQuantityString(id, quantity))
 
-  override def getResourcePackageName(resid: Int) = try {
-    super.getResourcePackageName(resid)
-  } catch {
-    case e: Resources.NotFoundException => res.getResourcePackageName(resid)
-  }
+  override def getResourcePackageName(resid: Int) =
+    resolve(resid)(super.getResourcePackageName(resid))(res.getResourcePackageName(resid))
 
-  override def getXml(id: Int) = try {
-    super.getXml(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getXml(id)
-  }
+  override def getXml(id: Int) =
+    resolve(id)(super.getXml(id))(res.getXml(id))
 
-  override def getInteger(id: Int) = try {
-    super.getInteger(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getInteger(id)
-  }
+  override def getInteger(id: Int) =
+    resolve(id)(super.getInteger(id))(res.getInteger(id))
 
-  override def getColorStateList(id: Int) = try {
-    super.getColorStateList(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getColorStateList(id)
-  }
+  override def getColorStateList(id: Int) =
+    resolve(id)(super.getColorStateList(id))(res.getColorStateList(id))
 
-  override def getAnimation(id: Int) = try {
-    super.getAnimation(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getAnimation(id)
-  }
+  override def getAnimation(id: Int) =
+    resolve(id)(super.getAnimation(id))(res.getAnimation(id))
 
   override def obtainAttributes(set: AttributeSet, attrs: Array[Int]) = try {
     super.obtainAttributes(set, attrs)
@@ -300,23 +359,14 @@ class ResourcesWrapper(am: AssetManager, dm: DisplayMetrics, c: Configuration, r
     case e: Resources.NotFoundException => res.obtainAttributes(set, attrs)
   }
 
-  override def obtainTypedArray(id: Int) = try {
-    super.obtainTypedArray(id)
-  } catch {
-    case e: Resources.NotFoundException => res.obtainTypedArray(id)
-  }
+  override def obtainTypedArray(id: Int) =
+    resolve(id)(super.obtainTypedArray(id))(res.obtainTypedArray(id))
 
-  override def getText(id: Int) = try {
-    super.getText(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getText(id)
-  }
+  override def getText(id: Int) =
+    resolve(id)(super.getText(id))(res.getText(id))
 
-  override def getText(id: Int, `def`: CharSequence) = try {
-    super.getText(id, `def`)
-  } catch {
-    case e: Resources.NotFoundException => res.getText(id, `def`)
-  }
+  override def getText(id: Int, `def`: CharSequence) =
+    resolve(id)(super.getText(id, `def`))(res.getText(id, `def`))
 
   override def getIdentifier(name: String, defType: String, defPackage: String) = try {
     super.getIdentifier(name, defType, defPackage)
@@ -324,41 +374,23 @@ class ResourcesWrapper(am: AssetManager, dm: DisplayMetrics, c: Configuration, r
     case e: Resources.NotFoundException => res.getIdentifier(name, defType, defPackage)
   }
 
-  override def getTextArray(id: Int) = try {
-    super.getTextArray(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getTextArray(id)
-  }
+  override def getTextArray(id: Int) =
+    resolve(id)(super.getTextArray(id))(res.getTextArray(id))
 
-  override def getQuantityText(id: Int, quantity: Int) = try {
-    super.getQuantityText(id, quantity)
-  } catch {
-    case e: Resources.NotFoundException => res.getQuantityText(id, quantity)
-  }
+  override def getQuantityText(id: Int, quantity: Int) =
+    resolve(id)(super.getQuantityText(id, quantity))(res.getQuantityText(id, quantity))
 
-  override def getString(id: Int) =  try{
-    super.getString(id)
-  } catch {
-    case e: Resources.NotFoundException => res.getString(id)
-  }
+  override def getString(id: Int) =
+    resolve(id)(super.getString(id))(res.getString(id))
 
-  override def getString(id: Int, formatArgs: AnyRef*) = try {
-    super.getString(id, formatArgs: _*)
-  } catch {
-    case e: Resources.NotFoundException => res.getString(id, formatArgs: _*)
-  }
+  override def getString(id: Int, formatArgs: AnyRef*) =
+    resolve(id)(super.getString(id, formatArgs: _*))(res.getString(id, formatArgs: _*))
 
-  override def getDrawableForDensity(id: Int, density: Int) = try {
-    super.getDrawableForDensity(id, density)
-  } catch {
-    case e: Resources.NotFoundException => res.getDrawableForDensity(id, density)
-  }
+  override def getDrawableForDensity(id: Int, density: Int) =
+    resolve(id)(super.getDrawableForDensity(id, density))(res.getDrawableForDensity(id, density))
 
-  override def getDrawableForDensity(id: Int, density: Int, theme: Resources#Theme) = try {
-    super.getDrawableForDensity(id, density, theme)
-  } catch {
-    case e: Resources.NotFoundException => res.getDrawableForDensity(id, density, theme)
-  }
+  override def getDrawableForDensity(id: Int, density: Int, theme: Resources#Theme) =
+    resolve(id)(super.getDrawableForDensity(id, density, theme))(res.getDrawableForDensity(id, density, theme))
 }
 
 trait ViewServerSupport extends Activity {
@@ -28,7 +28,9 @@ class LayoutReceiver extends BroadcastReceiver {
     } {
       val theme = extras.getInt(EXTRA_THEME, 0)
 
+      LayoutArguments.received  = System.nanoTime
       LayoutArguments.resources = Some(resources)
+      LayoutArguments.resourcesHash = Option(extras.getString(EXTRA_RESOURCES_HASH))
       LayoutArguments.layout    = Some(layout)
       LayoutArguments.theme     = if (theme == 0) None else Some(theme)
       LayoutArguments.appcompat = extras.getBoolean(EXTRA_APPCOMPAT, false)
@@ -58,6 +60,7 @@ class DexReceiver extends BroadcastReceiver {
       DexArguments.resources = resources
       DexArguments.appcompat = extras.getBoolean(EXTRA_APPCOMPAT, false)
       DexArguments.dex = dex
+      DexArguments.dexHash = Option(extras.getString(EXTRA_DEX_HASH))
       DexArguments.proxy = cls
 
       log.v("Loading R.txt " + System.currentTimeMillis)
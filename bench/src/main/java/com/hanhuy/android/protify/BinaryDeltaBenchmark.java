@@ -0,0 +1,160 @@
+package com.hanhuy.android.protify;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deploying changed dex shards as {@link BinaryDelta}s against pushing them
+ * whole: the time to create every patch on the host and apply it on the
+ * other side, against copying every shard, which is what a full push costs
+ * before the transfer itself. The bytes each would push are printed at
+ * setup.
+ *
+ * Shard pairs are recorded from a deploy, the shards the device has are in
+ * {@code target/protify/installed-dex/<serial>} and the shards deployed
+ * next in the predex directories; pass the two directories as
+ * {@code -p base=<dir> -p target=<dir>}, shards are paired by name. Without
+ * them, random shards stand in, edited as a changed class shifts a dex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BinaryDeltaBenchmark {
+    @Param({""})
+    public String base;
+    @Param({""})
+    public String target;
+
+    private final static int SYNTHETIC_SHARDS = 20;
+    private final static int SYNTHETIC_SIZE = 256 * 1024;
+
+    private File dir;
+    private final List<File> bases = new ArrayList<File>();
+    private final List<File> targets = new ArrayList<File>();
+    private final List<File> patches = new ArrayList<File>();
+    private File out;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = File.createTempFile("bench", "delta");
+        dir.delete();
+        dir.mkdirs();
+        if (base.isEmpty() || target.isEmpty()) {
+            synthesize();
+        } else {
+            File[] shards = new File(target).listFiles();
+            if (shards != null) for (File t : shards) {
+                File b = new File(base, t.getName());
+                if (t.getName().endsWith(".dex") && b.isFile()) {
+                    bases.add(b);
+                    targets.add(t);
+                }
+            }
+            if (targets.isEmpty())
+                throw new IOException("No shards in " + target + " are also in " + base);
+        }
+        out = new File(dir, "out");
+        long full = 0, delta = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            File p = new File(dir, "patch-" + i + BinaryDelta.PATCH_SUFFIX);
+            BinaryDelta.create(bases.get(i), targets.get(i), p);
+            patches.add(p);
+            full += targets.get(i).length();
+            delta += p.length();
+        }
+        System.out.println(String.format("%d shards: full push %d bytes, delta push %d bytes (%.1f%%)",
+                targets.size(), full, delta, 100.0 * delta / full));
+    }
+
+    /** random shards, each target has runs inserted and dropped all through, shifting what follows */
+    private void synthesize() throws IOException {
+        Random r = new Random(1);
+        for (int i = 0; i < SYNTHETIC_SHARDS; i++) {
+            byte[] b = new byte[SYNTHETIC_SIZE];
+            r.nextBytes(b);
+            ByteArrayOutputStream t = new ByteArrayOutputStream();
+            int pos = 0;
+            while (pos < b.length) {
+                int run = Math.min(b.length - pos, 1 + r.nextInt(8192));
+                t.write(b, pos, run);
+                pos += run;
+                if (r.nextBoolean()) {
+                    byte[] inserted = new byte[1 + r.nextInt(24)];
+                    r.nextBytes(inserted);
+                    t.write(inserted, 0, inserted.length);
+                } else {
+                    pos += r.nextInt(24);
+                }
+            }
+            bases.add(write(new File(dir, "base-" + i + ".dex"), b));
+            targets.add(write(new File(dir, "target-" + i + ".dex"), t.toByteArray()));
+        }
+    }
+
+    private static File write(File f, byte[] contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long createDelta() throws IOException {
+        long length = 0;
+        File p = new File(dir, "created" + BinaryDelta.PATCH_SUFFIX);
+        for (int i = 0; i < targets.size(); i++) {
+            BinaryDelta.create(bases.get(i), targets.get(i), p);
+            length += p.length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public long applyDelta() throws IOException {
+        long length = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            BinaryDelta.apply(bases.get(i), patches.get(i), out);
+            length += out.length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public long fullCopy() throws IOException {
+        long length = 0;
+        byte[] buffer = new byte[0x4000];
+        for (File t : targets) {
+            InputStream in = new FileInputStream(t);
+            OutputStream o = new FileOutputStream(out);
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    o.write(buffer, 0, read);
+                    length += read;
+                }
+            } finally {
+                in.close();
+                o.close();
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,158 @@
+package com.hanhuy.android.protify;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the R field of every entry of a 20k entry R.txt: the perfect hash
+ * over the names in a table, as RTxtLoaderBase does, against the string
+ * switch the loader used to be generated with. A 20k case switch does not
+ * fit in a method, so it is stood in for by what javac compiles one to, a
+ * binary search over the sorted case hash codes followed by equals, on the
+ * concatenated {@code class:name} the old loader switched on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class PerfectHashBenchmark {
+    private final static int ENTRIES = 20000;
+    private final static String[] CLASSES = {
+            "anim", "attr", "bool", "color", "dimen", "drawable", "id",
+            "integer", "layout", "string", "style", "styleable"
+    };
+
+    // perfect hash, looked up from the names in a table
+    private ByteBuffer table;
+    private int[] classPositions;
+    private int[] namePositions;
+    private byte[][] keys;
+    private String displacements;
+
+    // string switch stand-in
+    private String[] classes;
+    private String[] names;
+    private int[] caseHashes;
+    private String[] caseKeys;
+    private int[] caseOrdinals;
+
+    @Setup
+    public void setup() throws Exception {
+        Random r = new Random(20000);
+        Set<String> unique = new LinkedHashSet<String>();
+        while (unique.size() < ENTRIES) {
+            unique.add(CLASSES[r.nextInt(CLASSES.length)] + "/abc_" +
+                    Integer.toString(r.nextInt(ENTRIES * 4), 36) + (r.nextBoolean() ? "_material" : ""));
+        }
+        List<String> all = new ArrayList<String>(unique);
+        List<byte[]> utf8 = new ArrayList<byte[]>(ENTRIES);
+        for (String k : all) {
+            utf8.add(k.getBytes("utf-8"));
+        }
+        PerfectHash h = PerfectHash.build(utf8);
+        keys = new byte[ENTRIES][];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ENTRIES; i++) {
+            keys[h.slots[i]] = utf8.get(i);
+        }
+        for (int d : h.displacements) {
+            sb.append((char) d);
+        }
+        displacements = sb.toString();
+
+        // class and entry names laid out as in an RTable
+        table = ByteBuffer.allocate(ENTRIES * 64);
+        classPositions = new int[ENTRIES];
+        namePositions = new int[ENTRIES];
+        classes = new String[ENTRIES];
+        names = new String[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            String[] parts = all.get(i).split("/");
+            classes[i] = parts[0];
+            names[i] = parts[1];
+            classPositions[i] = put(table, parts[0]);
+            namePositions[i] = put(table, parts[1]);
+        }
+
+        String[] cases = new String[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            cases[i] = classes[i] + ":" + names[i];
+        }
+        Arrays.sort(cases, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int ha = a.hashCode(), hb = b.hashCode();
+                return ha < hb ? -1 : ha > hb ? 1 : 0;
+            }
+        });
+        caseHashes = new int[ENTRIES];
+        caseKeys = cases;
+        caseOrdinals = new int[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            caseHashes[i] = cases[i].hashCode();
+            caseOrdinals[i] = i;
+        }
+    }
+
+    private static int put(ByteBuffer b, String name) throws Exception {
+        int pos = b.position();
+        byte[] bytes = name.getBytes("utf-8");
+        b.putShort((short) bytes.length).put(bytes);
+        return pos;
+    }
+
+    @Benchmark
+    public int perfectHash() {
+        int sum = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            sum += ordinal(table, classPositions[i], namePositions[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int stringSwitch() {
+        int sum = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            sum += switchOrdinal(classes[i] + ":" + names[i]);
+        }
+        return sum;
+    }
+
+    /** as RTxtLoaderBase.ordinal */
+    private int ordinal(ByteBuffer b, int clazz, int name) {
+        int count = keys.length;
+        long h = PerfectHash.hash(b, clazz, name);
+        int d = displacements.charAt(PerfectHash.bucket(h, displacements.length()));
+        int slot = PerfectHash.slot(h, d, count);
+
+        byte[] key = keys[slot];
+        int clen = b.getShort(clazz) & 0xffff;
+        int nlen = b.getShort(name) & 0xffff;
+        if (key.length != clen + 1 + nlen || key[clen] != '/') return -1;
+        for (int i = 0; i < clen; i++) {
+            if (key[i] != b.get(clazz + 2 + i)) return -1;
+        }
+        for (int i = 0; i < nlen; i++) {
+            if (key[clen + 1 + i] != b.get(name + 2 + i)) return -1;
+        }
+        return slot;
+    }
+
+    /** lookupswitch on the hash code, then equals against each case with that hash */
+    private int switchOrdinal(String key) {
+        int h = key.hashCode();
+        int i = Arrays.binarySearch(caseHashes, h);
+        if (i < 0) return -1;
+        while (i > 0 && caseHashes[i - 1] == h) i--;
+        for (; i < caseHashes.length && caseHashes[i] == h; i++) {
+            if (caseKeys[i].equals(key)) return caseOrdinals[i];
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,95 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Extracting the {@code protify-dex/} shards of a synthetic apk with
+ * {@link ShardExtractor}, on one thread against the pool DexExtractor
+ * uses, with the shards deflated and stored.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class DexExtractorBenchmark {
+    @Param({"40"})
+    public int shards;
+    @Param({"262144"})
+    public int shardSize;
+    @Param({"true", "false"})
+    public boolean stored;
+
+    private File apk;
+    private File dir;
+    private List<ShardExtractor.Entry> entries;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        apk = File.createTempFile("bench", ".apk");
+        dir = File.createTempFile("bench", "dex");
+        dir.delete();
+        dir.mkdirs();
+        ZipOutputStream out = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(apk)));
+        try {
+            Random r = new Random(0);
+            byte[] data = new byte[shardSize];
+            for (int i = 0; i < shards; i++) {
+                // half random, half repeated, so that deflating has some work to do
+                r.nextBytes(data);
+                for (int j = shardSize / 2; j < shardSize; j++) {
+                    data[j] = (byte) (j % 61);
+                }
+                ZipEntry e = new ZipEntry("protify-dex/" + i + ".dex");
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(data);
+                    e.setMethod(ZipEntry.STORED);
+                    e.setSize(data.length);
+                    e.setCompressedSize(data.length);
+                    e.setCrc(crc.getValue());
+                }
+                out.putNextEntry(e);
+                out.write(data);
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(data);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        entries = ShardExtractor.entries(apk);
+        ShardExtractor.findStored(apk, entries);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) {
+            f.delete();
+        }
+        dir.delete();
+        apk.delete();
+    }
+
+    @Benchmark
+    public List<File> serial() throws IOException {
+        return ShardExtractor.extract(apk, dir, entries, false, 1, null, null);
+    }
+
+    @Benchmark
+    public List<File> pooled() throws IOException {
+        return ShardExtractor.extract(apk, dir, entries, false, 4, null, null);
+    }
+}
@@ -0,0 +1,94 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reflective lookups of one resource swap, resolved through
+ * {@link Reflection} against walking the hierarchy and calling
+ * setAccessible every time as the callers used to. Stand-in classes with
+ * the framework's member names and depth take the place of the framework.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ReflectionBenchmark {
+    static class ContextWrapper {
+        private Object mBase;
+    }
+    static class Application extends ContextWrapper {
+        private Object mLoadedApk;
+    }
+    static class ResourcesManager {
+        private Object mActiveResources;
+        private Object mResourceImpls;
+        private Object mResourceReferences;
+    }
+    static class Resources {
+        private Object mAssets;
+        private Object mResourcesImpl;
+    }
+    static class AssetManager {
+        private int addAssetPath(String path) { return 1; }
+        private void ensureStringBlocks() { }
+    }
+
+    private final Object[] found = new Object[7];
+
+    @Benchmark
+    public Object[] cached() throws Exception {
+        found[0] = Reflection.findField(Application.class, "mBase");
+        found[1] = Reflection.findField(Application.class, "mLoadedApk");
+        found[2] = Reflection.findField(ResourcesManager.class, "mActiveResources");
+        found[3] = Reflection.findField(ResourcesManager.class, "mResourceReferences");
+        found[4] = Reflection.findField(Resources.class, "mAssets");
+        found[5] = Reflection.findMethod(AssetManager.class, "addAssetPath", String.class);
+        found[6] = Reflection.findMethod(AssetManager.class, "ensureStringBlocks");
+        return found;
+    }
+
+    @Benchmark
+    public Object[] uncached() throws Exception {
+        found[0] = field(Application.class, "mBase");
+        found[1] = field(Application.class, "mLoadedApk");
+        found[2] = field(ResourcesManager.class, "mActiveResources");
+        found[3] = field(ResourcesManager.class, "mResourceReferences");
+        found[4] = field(Resources.class, "mAssets");
+        found[5] = method(AssetManager.class, "addAssetPath", String.class);
+        found[6] = method(AssetManager.class, "ensureStringBlocks");
+        return found;
+    }
+
+    private static Field field(Class<?> type, String name) throws NoSuchFieldException {
+        for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+            try {
+                Field f = clazz.getDeclaredField(name);
+                f.setAccessible(true);
+                return f;
+            } catch (NoSuchFieldException e) {
+                // search the superclass
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... parameterTypes)
+            throws NoSuchMethodException {
+        for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+            try {
+                Method m = clazz.getDeclaredMethod(name, parameterTypes);
+                m.setAccessible(true);
+                return m;
+            } catch (NoSuchMethodException e) {
+                // search the superclass
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+}
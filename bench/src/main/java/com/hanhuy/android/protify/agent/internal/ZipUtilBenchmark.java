@@ -0,0 +1,89 @@
+package com.hanhuy.android.protify.agent.internal;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The startup crc of an apk's central directory, on synthetic apks with
+ * and without a maximal comment, against the per-byte seek scan that
+ * {@link ZipUtil} used to locate the end of central directory with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ZipUtilBenchmark {
+    @Param({"0", "65535"})
+    public int commentLength;
+    @Param({"2000"})
+    public int entries;
+
+    private File apk;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        apk = File.createTempFile("bench", ".apk");
+        ZipOutputStream out = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(apk)));
+        try {
+            byte[] data = new byte[256];
+            for (int i = 0; i < entries; i++) {
+                out.putNextEntry(new ZipEntry("res/drawable/image" + i + ".png"));
+                data[i % data.length]++;
+                out.write(data);
+                out.closeEntry();
+            }
+            StringBuilder comment = new StringBuilder(commentLength);
+            for (int i = 0; i < commentLength; i++) {
+                comment.append((char) ('a' + i % 26));
+            }
+            out.setComment(comment.toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        apk.delete();
+    }
+
+    @Benchmark
+    public long zipCrc() throws IOException {
+        return ZipUtil.getZipCrc(apk);
+    }
+
+    @Benchmark
+    public long seekScan() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(apk, "r");
+        try {
+            return ZipUtil.computeCrcOfCentralDir(raf, seekScan(raf));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** the end of central directory search ZipUtil replaced, one seek and read per byte */
+    private static ZipUtil.CentralDirectory seekScan(RandomAccessFile raf) throws IOException {
+        long scanOffset = raf.length() - 22;
+        long stopOffset = Math.max(0, scanOffset - 0x10000);
+        int endSig = Integer.reverseBytes(0x6054b50);
+        while (true) {
+            raf.seek(scanOffset);
+            if (raf.readInt() == endSig) break;
+            if (--scanOffset < stopOffset)
+                throw new IOException("End Of Central Directory signature not found");
+        }
+        raf.skipBytes(8);
+        ZipUtil.CentralDirectory dir = new ZipUtil.CentralDirectory();
+        dir.size = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
+        dir.offset = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
+        return dir;
+    }
+}
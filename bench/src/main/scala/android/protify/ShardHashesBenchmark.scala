@@ -0,0 +1,65 @@
+package android.protify
+
+import java.io.File
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import sbt.{Hash, IO}
+
+/**
+ * Digests of a few hundred predexed shards: every shard hashed (cold),
+ * every shard a cache hit (warm), and the SHA-1 of every shard that
+ * deploying used to compute.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+class ShardHashesBenchmark {
+  @Param(Array("300"))
+  var shards: Int = _
+  @Param(Array("131072"))
+  var shardSize: Int = _
+
+  private[this] var dir: File = _
+  private[this] var files: Seq[File] = _
+  private[this] var coldCache: File = _
+  private[this] var warmCache: File = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    dir = IO.createTemporaryDirectory
+    val random = new Random(0)
+    // older than the cache's timestamp granularity, so warm runs hit
+    val mtime = System.currentTimeMillis - 3600 * 1000
+    files = (0 until shards) map { i =>
+      val f = new File(dir, s"predex-$i.dex")
+      val bytes = new Array[Byte](shardSize)
+      random.nextBytes(bytes)
+      IO.write(f, bytes)
+      f.setLastModified(mtime)
+      f
+    }
+    coldCache = new File(dir, "cold-cache")
+    warmCache = new File(dir, "warm-cache")
+    ShardHashes(warmCache, files)
+  }
+
+  @TearDown(Level.Trial)
+  def teardown(): Unit = IO.delete(dir)
+
+  @Benchmark
+  def cold(): Map[File,String] = {
+    coldCache.delete()
+    ShardHashes(coldCache, files)
+  }
+
+  @Benchmark
+  def warm(): Map[File,String] = ShardHashes(warmCache, files)
+
+  @Benchmark
+  def sha1(): Seq[String] = files map (f => Hash.toHex(Hash(f)))
+}
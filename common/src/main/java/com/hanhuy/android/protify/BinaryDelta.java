@@ -0,0 +1,290 @@
+package com.hanhuy.android.protify;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Block-matching binary delta, used to ship changed dex shards as patches
+ * against the copy that is already installed on-device.
+ *
+ * Patch layout: a fixed header (magic, base length/crc, target length/crc)
+ * followed by a deflated stream of COPY (base offset, length) and INSERT
+ * (length, bytes) operations terminated by END.
+ * @author pfnguyen
+ */
+public final class BinaryDelta {
+    public final static String PATCH_SUFFIX = ".dexdelta";
+
+    private final static int MAGIC = 0x50444c54; // = "PDLT"
+    private final static int VERSION = 1;
+
+    private final static int OP_END    = 0;
+    private final static int OP_COPY   = 1;
+    private final static int OP_INSERT = 2;
+
+    /**
+     * Size of the blocks indexed in the base file, small because dex files
+     * tend to shift offsets in every section when a single class changes
+     */
+    private final static int BLOCK_SIZE = 16;
+    private final static int BUFFER_SIZE = 0x4000;
+
+    private BinaryDelta() { }
+
+    /**
+     * Write a patch to {@code out} that turns {@code base} into {@code target}
+     */
+    public static void create(File base, File target, File out) throws IOException {
+        byte[] b = readFully(base);
+        byte[] t = readFully(target);
+        DataOutputStream dout = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(out), BUFFER_SIZE));
+        try {
+            dout.writeInt(MAGIC);
+            dout.writeByte(VERSION);
+            dout.writeLong(b.length);
+            dout.writeInt((int) crc(b));
+            dout.writeLong(t.length);
+            dout.writeInt((int) crc(t));
+            dout.flush();
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                DataOutputStream ops = new DataOutputStream(
+                        new DeflaterOutputStream(dout, deflater, BUFFER_SIZE));
+                encode(b, t, ops);
+                ops.writeByte(OP_END);
+                ops.close();
+            } finally {
+                deflater.end();
+            }
+        } finally {
+            dout.close();
+        }
+    }
+
+    /**
+     * Rebuild a file from {@code base} and {@code patch} into {@code out}.
+     * Both the base and the result are verified against the lengths and
+     * checksums recorded in the patch.
+     */
+    public static void apply(File base, File patch, File out) throws IOException {
+        DataInputStream din = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(patch), BUFFER_SIZE));
+        RandomAccessFile raf = null;
+        OutputStream fout = null;
+        Inflater inflater = new Inflater();
+        try {
+            if (din.readInt() != MAGIC)
+                throw new IOException("Not a dex delta: " + patch);
+            int version = din.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException("Unsupported dex delta version: " + version);
+            long baseLength = din.readLong();
+            long baseCrc = din.readInt() & 0xffffffffL;
+            long targetLength = din.readLong();
+            long targetCrc = din.readInt() & 0xffffffffL;
+
+            if (base.length() != baseLength || crc(base) != baseCrc)
+                throw new IOException("Delta base does not match: " + base);
+
+            raf = new RandomAccessFile(base, "r");
+            fout = new BufferedOutputStream(new FileOutputStream(out), BUFFER_SIZE);
+            DataInputStream ops = new DataInputStream(new InflaterInputStream(din, inflater));
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long written = 0;
+            int op;
+            while ((op = ops.readUnsignedByte()) != OP_END) {
+                if (op == OP_COPY) {
+                    long offset = readVarint(ops);
+                    long length = readVarint(ops);
+                    raf.seek(offset);
+                    while (length > 0) {
+                        int n = (int) Math.min(buffer.length, length);
+                        raf.readFully(buffer, 0, n);
+                        crc.update(buffer, 0, n);
+                        fout.write(buffer, 0, n);
+                        length -= n;
+                        written += n;
+                    }
+                } else if (op == OP_INSERT) {
+                    long length = readVarint(ops);
+                    while (length > 0) {
+                        int n = (int) Math.min(buffer.length, length);
+                        ops.readFully(buffer, 0, n);
+                        crc.update(buffer, 0, n);
+                        fout.write(buffer, 0, n);
+                        length -= n;
+                        written += n;
+                    }
+                } else {
+                    throw new IOException("Corrupt dex delta, unknown op: " + op);
+                }
+            }
+            fout.close();
+            fout = null;
+            if (written != targetLength || crc.getValue() != targetCrc)
+                throw new IOException("Patched result does not match: " + out);
+        } finally {
+            inflater.end();
+            din.close();
+            if (raf != null) raf.close();
+            if (fout != null) fout.close();
+        }
+    }
+
+    private static void encode(byte[] base, byte[] target, DataOutputStream ops)
+            throws IOException {
+        int blocks = base.length / BLOCK_SIZE;
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 1) * 2 - 1) << 1;
+        int mask = tableSize - 1;
+        // block index + 1, 0 is empty; first block with a given hash wins
+        int[] table = new int[tableSize];
+        for (int i = 0; i < blocks; i++) {
+            int slot = mix(rollingHash(base, i * BLOCK_SIZE)) & mask;
+            if (table[slot] == 0) table[slot] = i + 1;
+        }
+
+        int literalStart = 0;
+        int pos = 0;
+        int end = target.length - BLOCK_SIZE;
+        if (end >= 0 && blocks > 0) {
+            int a = 0, b = 0;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                a += target[i] & 0xff;
+                b += (BLOCK_SIZE - i) * (target[i] & 0xff);
+            }
+            while (pos <= end) {
+                int candidate = table[mix((a & 0xffff) | (b << 16)) & mask] - 1;
+                if (candidate >= 0) {
+                    int bpos = candidate * BLOCK_SIZE;
+                    int len = matchLength(base, bpos, target, pos);
+                    if (len >= BLOCK_SIZE) {
+                        // grow the match backwards into the pending literal
+                        int back = 0;
+                        while (pos - back > literalStart && bpos - back > 0 &&
+                                base[bpos - back - 1] == target[pos - back - 1])
+                            back++;
+                        writeInsert(ops, target, literalStart, pos - back - literalStart);
+                        writeCopy(ops, bpos - back, len + back);
+                        pos += len;
+                        literalStart = pos;
+                        if (pos > end) break;
+                        a = 0; b = 0;
+                        for (int i = 0; i < BLOCK_SIZE; i++) {
+                            a += target[pos + i] & 0xff;
+                            b += (BLOCK_SIZE - i) * (target[pos + i] & 0xff);
+                        }
+                        continue;
+                    }
+                }
+                if (pos == end) break;
+                int out = target[pos] & 0xff;
+                int in = target[pos + BLOCK_SIZE] & 0xff;
+                a += in - out;
+                b += a - BLOCK_SIZE * out;
+                pos++;
+            }
+        }
+        writeInsert(ops, target, literalStart, target.length - literalStart);
+    }
+
+    private static int rollingHash(byte[] data, int offset) {
+        int a = 0, b = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            a += data[offset + i] & 0xff;
+            b += (BLOCK_SIZE - i) * (data[offset + i] & 0xff);
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static int matchLength(byte[] base, int bpos, byte[] target, int tpos) {
+        int len = 0;
+        int max = Math.min(base.length - bpos, target.length - tpos);
+        while (len < max && base[bpos + len] == target[tpos + len])
+            len++;
+        return len;
+    }
+
+    private static void writeInsert(DataOutputStream ops, byte[] data, int offset, int length)
+            throws IOException {
+        if (length > 0) {
+            ops.writeByte(OP_INSERT);
+            writeVarint(ops, length);
+            ops.write(data, offset, length);
+        }
+    }
+
+    private static void writeCopy(DataOutputStream ops, long offset, long length)
+            throws IOException {
+        ops.writeByte(OP_COPY);
+        writeVarint(ops, offset);
+        writeVarint(ops, length);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static long crc(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private static byte[] readFully(File f) throws IOException {
+        long length = f.length();
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("File too large for delta: " + f);
+        byte[] data = new byte[(int) length];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
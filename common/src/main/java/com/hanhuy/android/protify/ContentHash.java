@@ -0,0 +1,75 @@
+package com.hanhuy.android.protify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Fast, non-cryptographic 64-bit content digest used for change detection
+ * of deployed files. The upper 32 bits are a CRC32 and the lower 32 bits an
+ * Adler32 of the same content; both are available on-device and on the host.
+ * @author pfnguyen
+ */
+public final class ContentHash {
+    private final static int BUFFER_SIZE = 0x10000;
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final CRC32 crc = new CRC32();
+    private final Adler32 adler = new Adler32();
+
+    public void update(byte[] buffer, int offset, int length) {
+        crc.update(buffer, offset, length);
+        adler.update(buffer, offset, length);
+    }
+
+    public long value() {
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    public String toHex() {
+        return toHex(value());
+    }
+
+    public static String toHex(long value) {
+        char[] out = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            out[i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        return new String(out);
+    }
+
+    /** @throws NumberFormatException if {@code hex} is not 16 hex digits */
+    public static long fromHex(String hex) {
+        if (hex.length() != 16)
+            throw new NumberFormatException("Not a content hash: " + hex);
+        long value = 0;
+        for (int i = 0; i < 16; i++) {
+            char c = hex.charAt(i);
+            // Character.digit also takes the digits of other scripts
+            int digit = c < 0x80 ? Character.digit(c, 16) : -1;
+            if (digit == -1)
+                throw new NumberFormatException("Not a content hash: " + hex);
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    public static String of(File f) throws IOException {
+        ContentHash hash = new ContentHash();
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                hash.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return hash.toHex();
+    }
+}
@@ -0,0 +1,139 @@
+package com.hanhuy.android.protify;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes the dex shards of a single deployment. Written by the plugin
+ * and pushed alongside the shards, read by the agent before anything is
+ * installed.
+ *
+ * Layout, big-endian:
+ * <pre>
+ *   int   MAGIC
+ *   byte  VERSION
+ *   short entry count
+ *   entry*:
+ *     byte  kind, one of FULL, DELTA, STORED
+ *     utf   shard name
+ *     utf   path of the pushed file on the device, empty for STORED
+ *     long  content hash of the shard once installed
+ *     long  size of the shard once installed
+ *     long  size of the pushed file, 0 for STORED
+ * </pre>
+ * @author pfnguyen
+ */
+public final class DeployManifest {
+    public final static int MAGIC = 0x50444d46; // PDMF
+    public final static int VERSION = 1;
+
+    /** the complete shard was pushed */
+    public final static int FULL = 0;
+    /** a {@link BinaryDelta} against the installed shard was pushed */
+    public final static int DELTA = 1;
+    /** nothing was pushed, the shard is in the device's dex store */
+    public final static int STORED = 2;
+
+    private final static int MAX_ENTRIES = 0xffff;
+
+    private DeployManifest() { }
+
+    public final static class Entry {
+        public final int kind;
+        public final String name;
+        public final String path;
+        public final long hash;
+        public final long size;
+        public final long length;
+
+        public Entry(int kind, String name, String path, long hash, long size, long length) {
+            this.kind = kind;
+            this.name = name;
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+            this.length = length;
+        }
+
+        public String hashHex() {
+            return ContentHash.toHex(hash);
+        }
+
+        @Override
+        public String toString() {
+            return name + "@" + hashHex();
+        }
+    }
+
+    public static void write(File f, List<Entry> entries) throws IOException {
+        if (entries.size() > MAX_ENTRIES)
+            throw new IOException("Too many shards: " + entries.size());
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(entries.size());
+            for (Entry e : entries) {
+                out.writeByte(e.kind);
+                out.writeUTF(e.name);
+                out.writeUTF(e.path);
+                out.writeLong(e.hash);
+                out.writeLong(e.size);
+                out.writeLong(e.length);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static List<Entry> read(File f) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** @throws IOException if {@code in} is not a complete, valid manifest */
+    public static List<Entry> read(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        try {
+            if (din.readInt() != MAGIC)
+                throw new IOException("Not a deploy manifest");
+            int version = din.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException("Unsupported deploy manifest version " + version);
+            int count = din.readUnsignedShort();
+            List<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                int kind = din.readUnsignedByte();
+                String name = din.readUTF();
+                String path = din.readUTF();
+                long hash = din.readLong();
+                long size = din.readLong();
+                long length = din.readLong();
+                if (kind > STORED)
+                    throw new IOException("Unknown shard kind " + kind);
+                if (name.length() == 0 || name.indexOf('/') != -1 || name.startsWith("."))
+                    throw new IOException("Invalid shard name: " + name);
+                if ((kind == STORED) != (path.length() == 0))
+                    throw new IOException("Invalid path for " + name + ": " + path);
+                if (size < 0 || length < 0)
+                    throw new IOException("Invalid size for " + name);
+                entries.add(new Entry(kind, name, path, hash, size, length));
+            }
+            if (din.read() != -1)
+                throw new IOException("Trailing data in deploy manifest");
+            return Collections.unmodifiableList(entries);
+        } catch (EOFException e) {
+            // IOException(String, Throwable) is API 9+
+            IOException truncated = new IOException("Truncated deploy manifest");
+            truncated.initCause(e);
+            throw truncated;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.hanhuy.android.protify;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The dex shard versions kept in a device's content-addressed store, by
+ * {@link #key}. The agent keeps the index next to the store, the
+ * plugin keeps a mirror per device; both record deployments through
+ * {@link #record(String, String)} so they evict the same versions.
+ *
+ * One line per shard: {@code name:key,key,...}, most recent first.
+ * @author pfnguyen
+ */
+public final class DexStoreIndex {
+    /** versions kept per shard, including the current one */
+    public final static int VERSIONS = 3;
+
+    private final Map<String,LinkedList<String>> shards =
+            new TreeMap<String,LinkedList<String>>();
+
+    /**
+     * the store key of a shard version, {@link ContentHash} is not
+     * cryptographic so the size is part of the key as well
+     */
+    public static String key(String hash, long size) {
+        return hash + "-" + size;
+    }
+
+    /** @return the index in {@code f}, empty if it does not exist */
+    public static DexStoreIndex read(File f) throws IOException {
+        DexStoreIndex index = new DexStoreIndex();
+        if (!f.isFile()) return index;
+        BufferedReader r = new BufferedReader(
+                new InputStreamReader(new FileInputStream(f), "utf-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int colon = line.lastIndexOf(':');
+                if (colon < 1) continue;
+                LinkedList<String> hashes = new LinkedList<String>();
+                for (String hash : line.substring(colon + 1).split(",")) {
+                    if (hash.length() > 0 && hashes.size() < VERSIONS)
+                        hashes.add(hash);
+                }
+                if (!hashes.isEmpty())
+                    index.shards.put(line.substring(0, colon), hashes);
+            }
+        } finally {
+            r.close();
+        }
+        return index;
+    }
+
+    public void write(File f) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "utf-8");
+        try {
+            for (Map.Entry<String,LinkedList<String>> e : shards.entrySet()) {
+                w.write(e.getKey());
+                w.write(':');
+                boolean first = true;
+                for (String hash : e.getValue()) {
+                    if (!first) w.write(',');
+                    w.write(hash);
+                    first = false;
+                }
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f))
+                throw new IOException("Unable to write " + f);
+        }
+    }
+
+    /** whether any shard still has a version with {@code key} */
+    public boolean contains(String key) {
+        for (LinkedList<String> hashes : shards.values()) {
+            if (hashes.contains(key)) return true;
+        }
+        return false;
+    }
+
+    /** make {@code key} the current version of {@code shard} */
+    public void record(String shard, String key) {
+        LinkedList<String> hashes = shards.get(shard);
+        if (hashes == null) {
+            hashes = new LinkedList<String>();
+            shards.put(shard, hashes);
+        }
+        hashes.remove(key);
+        hashes.addFirst(key);
+        while (hashes.size() > VERSIONS)
+            hashes.removeLast();
+    }
+
+    /** every key still referenced by a shard */
+    public Set<String> keys() {
+        Set<String> all = new HashSet<String>();
+        for (LinkedList<String> hashes : shards.values())
+            all.addAll(hashes);
+        return all;
+    }
+}
@@ -0,0 +1,17 @@
+package com.hanhuy.android.protify;
+
+/**
+ * A hot swapped version of one class, set in the class's {@code $change}
+ * field. While it is set, every instrumented method of the class hands its
+ * arguments to {@link #dispatch} instead of running its own body.
+ * @author pfnguyen
+ */
+public interface IncrementalChange {
+    /**
+     * @param method name and descriptor, e.g. {@code onCreate.(Landroid/os/Bundle;)V}
+     * @param args the instance unless the method is static, then the
+     *             arguments of the call, boxed
+     * @return the result of the method, boxed, null for void
+     */
+    Object dispatch(String method, Object[] args);
+}
@@ -8,11 +8,27 @@ public interface Intents {
     public final static String LAYOUT_INTENT = "com.hanhuy.android.protify.action.LAYOUT";
     public final static String EXTRA_LAYOUT = "com.hanhuy.android.protify.extra.LAYOUT";
     public final static String EXTRA_DEX = "com.hanhuy.android.protify.extra.DEX";
+    /** {@link ContentHash} of the file in EXTRA_DEX, saves the viewer hashing it */
+    public final static String EXTRA_DEX_HASH = "com.hanhuy.android.protify.extra.DEX_HASH";
     public final static String EXTRA_CLASS = "com.hanhuy.android.protify.extra.CLASS";
     public final static String EXTRA_RESOURCES = "com.hanhuy.android.protify.extra.RESOURCES";
+    public final static String EXTRA_RESOURCES_HASH = "com.hanhuy.android.protify.extra.RESOURCES_HASH";
     public final static String EXTRA_THEME = "com.hanhuy.android.protify.extra.THEME";
     public final static String EXTRA_RTXT = "com.hanhuy.android.protify.extra.RTXT";
     public final static String EXTRA_RTXT_HASH = "com.hanhuy.android.protify.extra.RTXT_HASH";
     public final static String EXTRA_APPCOMPAT = "com.hanhuy.android.protify.extra.APPCOMPAT";
     public final static String EXTRA_DEX_INFO = "com.hanhuy.android.protify.extra.DEX_INFO";
+    public final static String EXTRA_CHANGED_LAYOUTS = "com.hanhuy.android.protify.extra.CHANGED_LAYOUTS";
+    /** every shard is in the deploy manifest, none are carried over from the device */
+    public final static String EXTRA_FULL = "com.hanhuy.android.protify.extra.FULL";
+    /** dex of the {@code $override} classes of a hot swap patch */
+    public final static String EXTRA_HOTSWAP = "com.hanhuy.android.protify.extra.HOTSWAP";
+    /** comma separated {@code $override} classes in EXTRA_HOTSWAP */
+    public final static String EXTRA_HOTSWAP_CLASSES = "com.hanhuy.android.protify.extra.HOTSWAP_CLASSES";
+
+    /** result codes of a deploy broadcast, an unconfirmed deploy leaves 0 */
+    public final static int RESULT_INSTALLED = 1;
+    public final static int RESULT_FAILED = 2;
+    /** installed, and the patch in EXTRA_HOTSWAP was swapped into the running process */
+    public final static int RESULT_HOTSWAPPED = 3;
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+package com.hanhuy.android.protify;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reflective member access for the {@code $override} classes of a hot swap
+ * patch. They are in the package of the class they replace, but cannot
+ * reach its private members or the protected members it inherits from
+ * another package.
+ * @author pfnguyen
+ */
+public final class PatchRuntime {
+    private PatchRuntime() { }
+
+    /** @param target null for a static field */
+    public static Object getField(Object target, Class<?> owner, String name) {
+        try {
+            return field(owner, name).get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @param target null for a static field */
+    public static void setField(Object target, Class<?> owner, String name, Object value) {
+        try {
+            field(owner, name).set(target, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param target null for a static method
+     * @param desc the method descriptor, e.g. {@code (ILjava/lang/String;)V}
+     * @return the result, boxed, null for void
+     */
+    public static Object invoke(Object target, Class<?> owner, String name,
+                                String desc, Object[] args) {
+        Method m = method(owner, name, parameterTypes(owner.getClassLoader(), desc));
+        try {
+            return m.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw PatchRuntime.<RuntimeException>rethrow(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Field field(Class<?> owner, String name) {
+        for (Class<?> c = owner; c != null; c = c.getSuperclass()) {
+            try {
+                Field f = c.getDeclaredField(name);
+                f.setAccessible(true);
+                return f;
+            } catch (NoSuchFieldException e) {
+                // declared further up
+            }
+        }
+        throw new IllegalStateException("No field " + name + " in " + owner.getName());
+    }
+
+    private static Method method(Class<?> owner, String name, Class<?>[] types) {
+        for (Class<?> c = owner; c != null; c = c.getSuperclass()) {
+            try {
+                Method m = c.getDeclaredMethod(name, types);
+                m.setAccessible(true);
+                return m;
+            } catch (NoSuchMethodException e) {
+                // declared further up
+            }
+        }
+        throw new IllegalStateException("No method " + name + " in " + owner.getName());
+    }
+
+    static Class<?>[] parameterTypes(ClassLoader loader, String desc) {
+        List<Class<?>> types = new ArrayList<Class<?>>();
+        int i = 1;
+        while (desc.charAt(i) != ')') {
+            int start = i;
+            while (desc.charAt(i) == '[') i++;
+            if (desc.charAt(i) == 'L') i = desc.indexOf(';', i);
+            i++;
+            types.add(type(loader, desc.substring(start, i)));
+        }
+        return types.toArray(new Class<?>[types.size()]);
+    }
+
+    private static Class<?> type(ClassLoader loader, String desc) {
+        switch (desc.charAt(0)) {
+            case 'Z': return boolean.class;
+            case 'B': return byte.class;
+            case 'C': return char.class;
+            case 'S': return short.class;
+            case 'I': return int.class;
+            case 'J': return long.class;
+            case 'F': return float.class;
+            case 'D': return double.class;
+        }
+        String name = desc.charAt(0) == 'L' ?
+                desc.substring(1, desc.length() - 1) : desc;
+        try {
+            return Class.forName(name.replace('/', '.'), false, loader);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** throw {@code t} as is, a patched method may throw what the original declares */
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> T rethrow(Throwable t) throws T {
+        throw (T) t;
+    }
+}
@@ -0,0 +1,162 @@
+package com.hanhuy.android.protify;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Minimal perfect hash from {@code class/name} to an ordinal, built for the
+ * generated RTxtLoader and looked up by RTxtLoaderBase. A key's bucket picks
+ * a displacement and the displaced hash picks its slot, which is its
+ * ordinal. Only depends on the JDK so that the build can compile it too.
+ * @author pfnguyen
+ */
+public final class PerfectHash {
+    /** displacements are chars in a string literal, stay below the surrogates */
+    public final static int MAX_DISPLACEMENT = 0xd800;
+    private final static int[] BUCKET_DIVISORS = { 4, 3, 2, 1 };
+
+    /** displacement by bucket */
+    public final int[] displacements;
+    /** ordinal by key, in the order the keys were given */
+    public final int[] slots;
+
+    private PerfectHash(int[] displacements, int[] slots) {
+        this.displacements = displacements;
+        this.slots = slots;
+    }
+
+    /**
+     * Two hashes of the utf-8 of {@code class/name} in one pass, FNV-1a in
+     * the high half picks the bucket and {@code 31 * h + b} in the low half
+     * the slot.
+     */
+    public static long hash(byte[] key) {
+        int h1 = 0x811c9dc5;
+        int h2 = 0;
+        for (byte b : key) {
+            int v = b & 0xff;
+            h1 = (h1 ^ v) * 0x01000193;
+            h2 = 31 * h2 + v;
+        }
+        return ((long) h1 << 32) | (h2 & 0xffffffffL);
+    }
+
+    /**
+     * {@link #hash(byte[])} of the class and entry names of an
+     * {@link RTable} joined by {@code /}, without copying them
+     */
+    public static long hash(ByteBuffer b, int clazz, int name) {
+        int h1 = 0x811c9dc5;
+        int h2 = 0;
+        for (int i = 0, n = b.getShort(clazz) & 0xffff; i < n; i++) {
+            int v = b.get(clazz + 2 + i) & 0xff;
+            h1 = (h1 ^ v) * 0x01000193;
+            h2 = 31 * h2 + v;
+        }
+        h1 = (h1 ^ '/') * 0x01000193;
+        h2 = 31 * h2 + '/';
+        for (int i = 0, n = b.getShort(name) & 0xffff; i < n; i++) {
+            int v = b.get(name + 2 + i) & 0xff;
+            h1 = (h1 ^ v) * 0x01000193;
+            h2 = 31 * h2 + v;
+        }
+        return ((long) h1 << 32) | (h2 & 0xffffffffL);
+    }
+
+    /** murmur3's finalizer */
+    public static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public static int bucket(long hash, int buckets) {
+        return ((int) (hash >>> 32) & 0x7fffffff) % buckets;
+    }
+
+    public static int slot(long hash, int displacement, int count) {
+        return (mix((int) hash + displacement * 0x9e3779b9) & 0x7fffffff) % count;
+    }
+
+    /**
+     * Place every key, trying fewer buckets (more keys per displacement)
+     * first.
+     * @param keys distinct utf-8 {@code class/name}
+     * @return null if no displacement below {@link #MAX_DISPLACEMENT} places some bucket
+     */
+    public static PerfectHash build(List<byte[]> keys) {
+        int count = keys.size();
+        if (count == 0)
+            return new PerfectHash(new int[0], new int[0]);
+        long[] hashes = new long[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = hash(keys.get(i));
+        }
+        for (int divisor : BUCKET_DIVISORS) {
+            PerfectHash h = place(hashes, Math.max(1, count / divisor));
+            if (h != null) return h;
+        }
+        return null;
+    }
+
+    private static PerfectHash place(long[] hashes, int buckets) {
+        int count = hashes.length;
+        List<List<Integer>> members = new ArrayList<List<Integer>>(buckets);
+        for (int b = 0; b < buckets; b++) {
+            members.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < count; i++) {
+            members.get(bucket(hashes[i], buckets)).add(i);
+        }
+        Integer[] order = new Integer[buckets];
+        for (int b = 0; b < buckets; b++) {
+            order[b] = b;
+        }
+        final List<List<Integer>> groups = members;
+        // the largest buckets are the hardest to place, they go first
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return groups.get(b).size() - groups.get(a).size();
+            }
+        });
+
+        int[] displacements = new int[buckets];
+        int[] slots = new int[count];
+        boolean[] taken = new boolean[count];
+        int[] candidate = new int[count];
+        for (int bucket : order) {
+            List<Integer> group = members.get(bucket);
+            if (group.isEmpty()) break;
+            int d = 0;
+            for (; d < MAX_DISPLACEMENT; d++) {
+                if (fits(hashes, group, d, taken, candidate)) break;
+            }
+            if (d == MAX_DISPLACEMENT) return null;
+            displacements[bucket] = d;
+            for (int i = 0; i < group.size(); i++) {
+                int k = group.get(i);
+                slots[k] = candidate[i];
+                taken[candidate[i]] = true;
+            }
+        }
+        return new PerfectHash(displacements, slots);
+    }
+
+    /** whether {@code group} lands in distinct free slots at {@code d}, the slots are left in {@code out} */
+    private static boolean fits(long[] hashes, List<Integer> group, int d,
+                                boolean[] taken, int[] out) {
+        for (int i = 0; i < group.size(); i++) {
+            int s = slot(hashes[group.get(i)], d, hashes.length);
+            if (taken[s]) return false;
+            for (int j = 0; j < i; j++) {
+                if (out[j] == s) return false;
+            }
+            out[i] = s;
+        }
+        return true;
+    }
+}
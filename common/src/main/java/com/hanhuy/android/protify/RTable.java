@@ -0,0 +1,331 @@
+package com.hanhuy.android.protify;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The contents of {@code R.txt} in a form that can be applied without
+ * parsing. Written by the plugin, mapped by the viewer; classes and the
+ * names within a class are sorted by their utf-8 bytes so that two tables
+ * can be walked side by side to find the entries that changed.
+ *
+ * Layout, big-endian:
+ * <pre>
+ *   int   MAGIC
+ *   byte  VERSION
+ *   short class count
+ *   class*:
+ *     name  class
+ *     int   entry count
+ *     entry*:
+ *       name  resource name
+ *       byte  kind, one of INT, INT_ARRAY
+ *       int   value for INT; length followed by that many ints for INT_ARRAY
+ * </pre>
+ * where a name is an unsigned short length followed by that many utf-8 bytes.
+ * @author pfnguyen
+ */
+public final class RTable {
+    public final static int MAGIC = 0x50525442; // PRTB
+    public final static int VERSION = 1;
+
+    public final static int INT = 0;
+    public final static int INT_ARRAY = 1;
+
+    private final static int MAX_NAME = 0xffff;
+
+    private RTable() { }
+
+    /**
+     * Receives entries by their position in the table so that nothing has
+     * to be decoded or allocated for them, see {@link #name},
+     * {@link #kind}, {@link #intValue} and {@link #arrayValue}.
+     */
+    public interface Target {
+        /**
+         * @param clazz position of the class name
+         * @param name position of the entry name
+         * @param value position of the entry kind and value
+         */
+        void set(ByteBuffer table, int clazz, int name, int value);
+    }
+
+    /** @return whether {@code table} starts like an R table */
+    public static boolean isTable(ByteBuffer table) {
+        return table.remaining() >= 4 && table.getInt(table.position()) == MAGIC;
+    }
+
+    /** convert {@code R.txt} at {@code rtxt} into a table at {@code f} */
+    public static void write(File rtxt, File f) throws IOException {
+        // values are Integer or int[]
+        Map<Name,Map<Name,Object>> classes = new TreeMap<Name,Map<Name,Object>>();
+        BufferedReader r = new BufferedReader(
+                new InputStreamReader(new FileInputStream(rtxt), "utf-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length < 4) continue;
+                boolean array = "int[]".equals(parts[0]);
+                if (!array && !"int".equals(parts[0])) continue;
+                Name clazz = new Name(parts[1]);
+                Map<Name,Object> entries = classes.get(clazz);
+                if (entries == null) {
+                    entries = new TreeMap<Name,Object>();
+                    classes.put(clazz, entries);
+                }
+                if (array) {
+                    // int[] styleable name { 0x7f010000, 0x7f010001 }
+                    int[] value = new int[Math.max(0, parts.length - 5)];
+                    for (int i = 0, j = 4; i < value.length; i++, j++) {
+                        String v = parts[j];
+                        value[i] = parseInt(v.endsWith(",") ? v.substring(0, v.length() - 1) : v);
+                    }
+                    entries.put(new Name(parts[2]), value);
+                } else {
+                    entries.put(new Name(parts[2]), parseInt(parts[3]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid value in " + rtxt + ": " + e.getMessage());
+        } finally {
+            r.close();
+        }
+        if (classes.size() > MAX_NAME)
+            throw new IOException("Too many classes in " + rtxt);
+
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(classes.size());
+            for (Map.Entry<Name,Map<Name,Object>> c : classes.entrySet()) {
+                c.getKey().write(out);
+                out.writeInt(c.getValue().size());
+                for (Map.Entry<Name,Object> e : c.getValue().entrySet()) {
+                    e.getKey().write(out);
+                    if (e.getValue() instanceof int[]) {
+                        int[] value = (int[]) e.getValue();
+                        out.writeByte(INT_ARRAY);
+                        out.writeInt(value.length);
+                        for (int v : value) {
+                            out.writeInt(v);
+                        }
+                    } else {
+                        out.writeByte(INT);
+                        out.writeInt((Integer) e.getValue());
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f))
+                throw new IOException("Unable to write " + f);
+        }
+    }
+
+    /**
+     * Apply the entries of {@code table} that are missing from, or have a
+     * different value in, {@code previous}. Neither buffer's position is changed.
+     * @param previous the table applied last, null to apply everything
+     * @return the number of entries applied
+     * @throws IOException if either buffer is not a valid table
+     */
+    public static int apply(ByteBuffer table, ByteBuffer previous, Target target) throws IOException {
+        ByteBuffer t = table.duplicate();
+        ByteBuffer p = previous == null ? null : previous.duplicate();
+        try {
+            int classes = header(t);
+            int pclasses = p == null ? 0 : header(p);
+            int applied = 0;
+            for (int c = 0; c < classes; c++) {
+                int cpos = t.position();
+                t.position(cpos + nameSize(t, cpos));
+                int count = t.getInt();
+
+                // skip the previous classes that sort before this one
+                int pcount = 0;
+                while (pclasses > 0) {
+                    int ppos = p.position();
+                    int cmp = compare(t, cpos, p, ppos);
+                    if (cmp < 0) break;
+                    p.position(ppos + nameSize(p, ppos));
+                    int n = p.getInt();
+                    pclasses--;
+                    if (cmp == 0) {
+                        pcount = n;
+                        break;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        p.position(p.position() + entrySize(p, p.position()));
+                    }
+                }
+
+                for (int e = 0; e < count; e++) {
+                    int epos = t.position();
+                    int esize = entrySize(t, epos);
+                    boolean same = false;
+                    while (pcount > 0) {
+                        int ppos = p.position();
+                        int cmp = compare(t, epos, p, ppos);
+                        if (cmp < 0) break;
+                        int psize = entrySize(p, ppos);
+                        p.position(ppos + psize);
+                        pcount--;
+                        if (cmp == 0) {
+                            int nsize = nameSize(t, epos);
+                            same = psize == esize &&
+                                    regionEquals(t, epos + nsize, p, ppos + nsize, esize - nsize);
+                            break;
+                        }
+                    }
+                    t.position(epos + esize);
+                    if (!same) {
+                        target.set(t, cpos, epos, epos + nameSize(t, epos));
+                        applied++;
+                    }
+                }
+                while (pcount-- > 0) {
+                    p.position(p.position() + entrySize(p, p.position()));
+                }
+            }
+            return applied;
+        } catch (BufferUnderflowException e) {
+            throw invalid(e);
+        } catch (IndexOutOfBoundsException e) {
+            throw invalid(e);
+        } catch (IllegalArgumentException e) {
+            throw invalid(e);
+        }
+    }
+
+    private static IOException invalid(RuntimeException cause) {
+        // IOException(String, Throwable) is API 9+
+        IOException e = new IOException("Truncated or corrupt R table");
+        e.initCause(cause);
+        return e;
+    }
+
+    private static int header(ByteBuffer b) throws IOException {
+        if (b.getInt() != MAGIC)
+            throw new IOException("Not an R table");
+        int version = b.get() & 0xff;
+        if (version != VERSION)
+            throw new IOException("Unsupported R table version " + version);
+        return b.getShort() & 0xffff;
+    }
+
+    private static int nameSize(ByteBuffer b, int pos) {
+        return 2 + (b.getShort(pos) & 0xffff);
+    }
+
+    private static int entrySize(ByteBuffer b, int pos) throws IOException {
+        int vpos = pos + nameSize(b, pos);
+        switch (b.get(vpos)) {
+            case INT:
+                return vpos - pos + 5;
+            case INT_ARRAY:
+                int length = b.getInt(vpos + 1);
+                if (length < 0 || length > (b.limit() - vpos - 5) / 4)
+                    throw new IOException("Invalid array length " + length);
+                return vpos - pos + 5 + length * 4;
+            default:
+                throw new IOException("Unknown R table entry kind " + b.get(vpos));
+        }
+    }
+
+    /** @return the length in bytes of the utf-8 name at {@code pos}, it follows the length */
+    public static int nameLength(ByteBuffer b, int pos) {
+        return b.getShort(pos) & 0xffff;
+    }
+
+    public static String name(ByteBuffer b, int pos) throws IOException {
+        byte[] bytes = new byte[nameLength(b, pos)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = b.get(pos + 2 + i);
+        }
+        return new String(bytes, "utf-8");
+    }
+
+    /** @return {@link #INT} or {@link #INT_ARRAY} */
+    public static int kind(ByteBuffer b, int value) {
+        return b.get(value);
+    }
+
+    public static int intValue(ByteBuffer b, int value) {
+        return b.getInt(value + 1);
+    }
+
+    public static int[] arrayValue(ByteBuffer b, int value) {
+        int[] array = new int[b.getInt(value + 1)];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = b.getInt(value + 5 + i * 4);
+        }
+        return array;
+    }
+
+    /** order the names at {@code ap} and {@code bp} as {@link Name} does */
+    private static int compare(ByteBuffer a, int ap, ByteBuffer b, int bp) {
+        int al = a.getShort(ap) & 0xffff;
+        int bl = b.getShort(bp) & 0xffff;
+        int n = Math.min(al, bl);
+        for (int i = 0; i < n; i++) {
+            int d = (a.get(ap + 2 + i) & 0xff) - (b.get(bp + 2 + i) & 0xff);
+            if (d != 0) return d;
+        }
+        return al - bl;
+    }
+
+    private static boolean regionEquals(ByteBuffer a, int ap, ByteBuffer b, int bp, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a.get(ap + i) != b.get(bp + i)) return false;
+        }
+        return true;
+    }
+
+    private static int parseInt(String s) {
+        return s.startsWith("0x") ? (int) Long.parseLong(s.substring(2), 16) : Integer.parseInt(s);
+    }
+
+    private final static class Name implements Comparable<Name> {
+        final byte[] bytes;
+
+        Name(String name) throws IOException {
+            bytes = name.getBytes("utf-8");
+            if (bytes.length > MAX_NAME)
+                throw new IOException("Name too long: " + name);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public int compareTo(Name other) {
+            int n = Math.min(bytes.length, other.bytes.length);
+            for (int i = 0; i < n; i++) {
+                int d = (bytes[i] & 0xff) - (other.bytes[i] & 0xff);
+                if (d != 0) return d;
+            }
+            return bytes.length - other.bytes.length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Name && Arrays.equals(bytes, ((Name) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+}
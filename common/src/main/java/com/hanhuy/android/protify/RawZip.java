@@ -0,0 +1,495 @@
+package com.hanhuy.android.protify;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal zip reader and writer that moves entries between archives
+ * without inflating or deflating them. Entries copied by a {@link Writer}
+ * always get the same local header for the same central directory record,
+ * so archives assembled from the same entries are identical byte for byte
+ * regardless of where the entries came from.
+ *
+ * Zip64 and multi-disk archives are not supported.
+ * @author pfnguyen
+ */
+public final class RawZip {
+    public final static int STORED = 0;
+    public final static int DEFLATED = 8;
+
+    private final static int LOCSIG = 0x04034b50;
+    private final static int CENSIG = 0x02014b50;
+    private final static int ENDSIG = 0x06054b50;
+    private final static int LOCHDR = 30;
+    private final static int CENHDR = 46;
+    private final static int ENDHDR = 22;
+    private final static int MAX_COMMENT = 0xffff;
+    private final static int FLAG_DATA_DESCRIPTOR = 0x08;
+    private final static int FLAG_UTF8 = 0x800;
+
+    private final static int BUFFER_SIZE = 0x10000;
+
+    private RawZip() { }
+
+    public final static class Entry {
+        public final String name;
+        public final int method;
+        /** MS-DOS date in the upper 16 bits and time in the lower 16 bits */
+        public final int dosTime;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        public final long localHeaderOffset;
+        final byte[] nameBytes;
+        final int versionMadeBy;
+        final int versionNeeded;
+        final int flags;
+        final int internalAttributes;
+        final long externalAttributes;
+        final byte[] extra;
+        final byte[] comment;
+
+        Entry(byte[] nameBytes, int versionMadeBy, int versionNeeded, int flags,
+              int method, int dosTime, long crc, long compressedSize, long size,
+              int internalAttributes, long externalAttributes, byte[] extra,
+              byte[] comment, long localHeaderOffset) {
+            this.name = decode(nameBytes);
+            this.nameBytes = nameBytes;
+            this.versionMadeBy = versionMadeBy;
+            this.versionNeeded = versionNeeded;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.internalAttributes = internalAttributes;
+            this.externalAttributes = externalAttributes;
+            this.extra = extra;
+            this.comment = comment;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        Entry at(long offset) {
+            return new Entry(nameBytes, versionMadeBy, versionNeeded,
+                    flags & ~FLAG_DATA_DESCRIPTOR, method, dosTime, crc,
+                    compressedSize, size, internalAttributes,
+                    externalAttributes, extra, comment, offset);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public final static class Reader implements Closeable {
+        private final RandomAccessFile raf;
+        private final List<Entry> entries;
+        private final Map<String,Entry> byName;
+        private final long centralDirectoryCrc;
+
+        public Reader(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            try {
+                long length = raf.length();
+                if (length < ENDHDR)
+                    throw new ZipException("File too short to be a zip file: " + length);
+                int tailLength = (int) Math.min(length, ENDHDR + MAX_COMMENT);
+                byte[] tail = new byte[tailLength];
+                raf.seek(length - tailLength);
+                raf.readFully(tail);
+                int end = -1;
+                for (int i = tailLength - ENDHDR; i >= 0; i--) {
+                    if (readInt(tail, i) == ENDSIG) {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end == -1)
+                    throw new ZipException("End Of Central Directory signature not found");
+                int count = readShort(tail, end + 10);
+                long cdSize = readInt(tail, end + 12) & 0xffffffffL;
+                long cdOffset = readInt(tail, end + 16) & 0xffffffffL;
+                if (cdOffset + cdSize > length)
+                    throw new ZipException("Invalid central directory");
+
+                byte[] cd = new byte[(int) cdSize];
+                raf.seek(cdOffset);
+                raf.readFully(cd);
+                CRC32 crc = new CRC32();
+                crc.update(cd, 0, cd.length);
+                centralDirectoryCrc = crc.getValue();
+
+                List<Entry> es = new ArrayList<Entry>(count);
+                Map<String,Entry> names = new HashMap<String,Entry>(count * 2);
+                int p = 0;
+                for (int i = 0; i < count; i++) {
+                    if (p + CENHDR > cd.length || readInt(cd, p) != CENSIG)
+                        throw new ZipException("Invalid central directory entry " + i);
+                    int nameLength = readShort(cd, p + 28);
+                    int extraLength = readShort(cd, p + 30);
+                    int commentLength = readShort(cd, p + 32);
+                    int n = p + CENHDR;
+                    Entry e = new Entry(
+                            Arrays.copyOfRange(cd, n, n + nameLength),
+                            readShort(cd, p + 4),
+                            readShort(cd, p + 6),
+                            readShort(cd, p + 8),
+                            readShort(cd, p + 10),
+                            readInt(cd, p + 12),
+                            readInt(cd, p + 16) & 0xffffffffL,
+                            readInt(cd, p + 20) & 0xffffffffL,
+                            readInt(cd, p + 24) & 0xffffffffL,
+                            readShort(cd, p + 36),
+                            readInt(cd, p + 38) & 0xffffffffL,
+                            Arrays.copyOfRange(cd, n + nameLength, n + nameLength + extraLength),
+                            Arrays.copyOfRange(cd, n + nameLength + extraLength,
+                                    n + nameLength + extraLength + commentLength),
+                            readInt(cd, p + 42) & 0xffffffffL);
+                    es.add(e);
+                    names.put(e.name, e);
+                    p = n + nameLength + extraLength + commentLength;
+                }
+                entries = Collections.unmodifiableList(es);
+                byName = names;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        public List<Entry> entries() {
+            return entries;
+        }
+
+        public Entry getEntry(String name) {
+            return byName.get(name);
+        }
+
+        /**
+         * CRC32 of the raw central directory, it covers the name, size and
+         * crc of every entry so it identifies the content of the archive
+         */
+        public long centralDirectoryCrc() {
+            return centralDirectoryCrc;
+        }
+
+        /** offset of the first byte of (possibly compressed) entry data */
+        public long dataOffset(Entry e) throws IOException {
+            return RawZip.dataOffset(raf.getChannel(), e);
+        }
+
+        /** read and inflate the whole of a (small) entry */
+        public byte[] read(Entry e) throws IOException {
+            if (e.size > Integer.MAX_VALUE || e.compressedSize > Integer.MAX_VALUE)
+                throw new ZipException("Entry too large to read: " + e.name);
+            byte[] data = new byte[(int) e.compressedSize];
+            raf.seek(dataOffset(e));
+            raf.readFully(data);
+            if (e.method == STORED)
+                return data;
+            if (e.method != DEFLATED)
+                throw new ZipException("Unsupported compression method " + e.method);
+            byte[] result = new byte[(int) e.size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data);
+                int n = 0;
+                while (n < result.length && !inflater.finished()) {
+                    int read = inflater.inflate(result, n, result.length - n);
+                    if (read == 0 && inflater.needsInput())
+                        throw new EOFException("Truncated entry data for " + e.name);
+                    n += read;
+                }
+            } catch (DataFormatException ex) {
+                throw new ZipException("Corrupt entry " + e.name + ": " + ex.getMessage());
+            } finally {
+                inflater.end();
+            }
+            return result;
+        }
+
+        FileChannel channel() {
+            return raf.getChannel();
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    public final static class Writer implements Closeable {
+        private final RandomAccessFile raf;
+        private final int alignment;
+        private final List<Entry> written = new ArrayList<Entry>();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int buffered = 0;
+        private long position = 0;
+
+        /**
+         * @param alignment STORED entry data is aligned to this many bytes
+         *                  by padding the local header's extra field
+         */
+        public Writer(File file, int alignment) throws IOException {
+            this.alignment = Math.max(1, alignment);
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+        }
+
+        /** copy an entry verbatim from {@code source} */
+        public void copy(Reader source, Entry e) throws IOException {
+            long offset = position;
+            Entry out = e.at(offset);
+            writeLocalHeader(out);
+            flushBuffer();
+            FileChannel src = source.channel();
+            FileChannel dst = raf.getChannel();
+            long start = source.dataOffset(e);
+            long remaining = e.compressedSize;
+            while (remaining > 0) {
+                long n = src.transferTo(start + e.compressedSize - remaining, remaining, dst);
+                if (n <= 0)
+                    throw new EOFException("Truncated entry data for " + e.name);
+                remaining -= n;
+            }
+            position += e.compressedSize;
+            written.add(out);
+        }
+
+        /** add the contents of {@code file} as {@code name} */
+        public void add(String name, File file, boolean compress) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                add(name, in, file.lastModified(), compress);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * add the contents of {@code in} as {@code name}, the data is read
+         * once; sizes and crc are filled into the local header afterwards
+         */
+        public void add(String name, InputStream in, long time, boolean compress)
+                throws IOException {
+            byte[] nameBytes = name.getBytes("UTF-8");
+            int flags = isAscii(nameBytes) ? 0 : FLAG_UTF8;
+            int method = compress ? DEFLATED : STORED;
+            long offset = position;
+            Entry header = new Entry(nameBytes, 20, compress ? 20 : 10, flags, method,
+                    dosTime(time), 0, 0, 0, 0, 0, new byte[0], new byte[0], offset);
+            writeLocalHeader(header);
+
+            CRC32 crc = new CRC32();
+            long size = 0;
+            long start = position;
+            byte[] input = new byte[BUFFER_SIZE];
+            int read;
+            if (compress) {
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                byte[] output = new byte[BUFFER_SIZE];
+                try {
+                    while ((read = in.read(input)) != -1) {
+                        crc.update(input, 0, read);
+                        size += read;
+                        deflater.setInput(input, 0, read);
+                        while (!deflater.needsInput()) {
+                            int n = deflater.deflate(output, 0, output.length);
+                            write(output, 0, n);
+                        }
+                    }
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(output, 0, output.length);
+                        write(output, 0, n);
+                    }
+                } finally {
+                    deflater.end();
+                }
+            } else {
+                while ((read = in.read(input)) != -1) {
+                    crc.update(input, 0, read);
+                    size += read;
+                    write(input, 0, read);
+                }
+            }
+            long compressedSize = position - start;
+            if (size > 0xffffffffL || compressedSize > 0xffffffffL || position > 0xffffffffL)
+                throw new ZipException("zip64 is not supported: " + name);
+
+            Entry e = new Entry(nameBytes, header.versionMadeBy, header.versionNeeded,
+                    flags, method, header.dosTime, crc.getValue(), compressedSize, size,
+                    0, 0, header.extra, header.comment, offset);
+            flushBuffer();
+            byte[] sizes = new byte[12];
+            writeInt(sizes, 0, (int) e.crc);
+            writeInt(sizes, 4, (int) e.compressedSize);
+            writeInt(sizes, 8, (int) e.size);
+            raf.seek(offset + 14);
+            raf.write(sizes);
+            raf.seek(position);
+            written.add(e);
+        }
+
+        private void writeLocalHeader(Entry e) throws IOException {
+            int nameLength = e.nameBytes.length;
+            int padding = 0;
+            if (e.method == STORED) {
+                long dataStart = position + LOCHDR + nameLength;
+                padding = (int) ((alignment - (dataStart % alignment)) % alignment);
+            }
+            byte[] header = new byte[LOCHDR + nameLength + padding];
+            writeInt(header, 0, LOCSIG);
+            writeShort(header, 4, e.versionNeeded);
+            writeShort(header, 6, e.flags);
+            writeShort(header, 8, e.method);
+            writeInt(header, 10, e.dosTime);
+            writeInt(header, 14, (int) e.crc);
+            writeInt(header, 18, (int) e.compressedSize);
+            writeInt(header, 22, (int) e.size);
+            writeShort(header, 26, nameLength);
+            writeShort(header, 28, padding);
+            System.arraycopy(e.nameBytes, 0, header, LOCHDR, nameLength);
+            write(header, 0, header.length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                long cdOffset = position;
+                for (Entry e : written) {
+                    byte[] header = new byte[CENHDR];
+                    writeInt(header, 0, CENSIG);
+                    writeShort(header, 4, e.versionMadeBy);
+                    writeShort(header, 6, e.versionNeeded);
+                    writeShort(header, 8, e.flags);
+                    writeShort(header, 10, e.method);
+                    writeInt(header, 12, e.dosTime);
+                    writeInt(header, 16, (int) e.crc);
+                    writeInt(header, 20, (int) e.compressedSize);
+                    writeInt(header, 24, (int) e.size);
+                    writeShort(header, 28, e.nameBytes.length);
+                    writeShort(header, 30, e.extra.length);
+                    writeShort(header, 32, e.comment.length);
+                    writeShort(header, 36, e.internalAttributes);
+                    writeInt(header, 38, (int) e.externalAttributes);
+                    writeInt(header, 42, (int) e.localHeaderOffset);
+                    write(header, 0, header.length);
+                    write(e.nameBytes, 0, e.nameBytes.length);
+                    write(e.extra, 0, e.extra.length);
+                    write(e.comment, 0, e.comment.length);
+                }
+                long cdSize = position - cdOffset;
+                if (written.size() > 0xffff || position > 0xffffffffL)
+                    throw new ZipException("zip64 is not supported");
+                byte[] end = new byte[ENDHDR];
+                writeInt(end, 0, ENDSIG);
+                writeShort(end, 8, written.size());
+                writeShort(end, 10, written.size());
+                writeInt(end, 12, (int) cdSize);
+                writeInt(end, 16, (int) cdOffset);
+                write(end, 0, end.length);
+                flushBuffer();
+            } finally {
+                raf.close();
+            }
+        }
+
+        private void write(byte[] data, int offset, int length) throws IOException {
+            if (length > buffer.length - buffered) {
+                flushBuffer();
+                if (length > buffer.length) {
+                    raf.write(data, offset, length);
+                    position += length;
+                    return;
+                }
+            }
+            System.arraycopy(data, offset, buffer, buffered, length);
+            buffered += length;
+            position += length;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (buffered > 0) {
+                raf.write(buffer, 0, buffered);
+                buffered = 0;
+            }
+        }
+    }
+
+    /**
+     * offset of the first byte of (possibly compressed) entry data in
+     * {@code zip}, uses positional reads only so the channel may be shared
+     */
+    public static long dataOffset(FileChannel zip, Entry e) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCHDR).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (zip.read(header, e.localHeaderOffset + header.position()) == -1)
+                throw new EOFException("Truncated local header for " + e.name);
+        }
+        if (header.getInt(0) != LOCSIG)
+            throw new ZipException("Invalid local header for " + e.name);
+        return e.localHeaderOffset + LOCHDR +
+                (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+    }
+
+    static int dosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 |
+                (c.get(Calendar.MONTH) + 1) << 21 |
+                c.get(Calendar.DAY_OF_MONTH) << 16 |
+                c.get(Calendar.HOUR_OF_DAY) << 11 |
+                c.get(Calendar.MINUTE) << 5 |
+                c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) return false;
+        }
+        return true;
+    }
+
+    private static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int readShort(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    static int readInt(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 |
+                (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    static void writeShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+}
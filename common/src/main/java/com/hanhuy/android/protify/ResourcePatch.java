@@ -0,0 +1,202 @@
+package com.hanhuy.android.protify;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Entry level patches for resource ap_ files written by {@link RawZip}.
+ *
+ * A manifest records, for every entry of the ap_ last sent to a device, a
+ * checksum of its central directory record. A patch is a zip whose first
+ * entry is an index naming the base it applies to and the order of the
+ * entries in the result, each one taken either from the patch or from the
+ * base; every other entry of the patch is a raw copy from the new ap_.
+ * Because {@link RawZip.Writer} derives local headers only from the central
+ * directory record, applying a patch rebuilds the new ap_ byte for byte.
+ * @author pfnguyen
+ */
+public final class ResourcePatch {
+    public final static String PATCH_SUFFIX = ".respatch";
+    /** alignment of STORED entries in every ap_ this class reads or writes */
+    public final static int ALIGNMENT = 4;
+
+    private final static String INDEX_ENTRY = "META-INF/protify-patch-index";
+    private final static String BASE = "base ";
+    private final static char FROM_PATCH = '+';
+    private final static char FROM_BASE = '=';
+
+    private ResourcePatch() { }
+
+    /** record the entries of {@code apk} as the state of a device */
+    public static void writeManifest(File apk, File manifest) throws IOException {
+        RawZip.Reader in = new RawZip.Reader(apk);
+        try {
+            File parent = manifest.getParentFile();
+            if (parent != null) parent.mkdirs();
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(manifest), "utf-8"));
+            try {
+                out.write(Long.toHexString(in.centralDirectoryCrc()));
+                out.write('\n');
+                for (RawZip.Entry e : in.entries()) {
+                    out.write(Long.toHexString(fingerprint(e)));
+                    out.write('\t');
+                    out.write(e.name);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write a patch that turns the ap_ described by {@code manifest} into
+     * {@code target}
+     * @return the number of entries carried by the patch
+     */
+    public static int create(File manifest, File target, File patch) throws IOException {
+        Map<String,Long> sent = new HashMap<String,Long>();
+        String base = readManifest(manifest, sent);
+
+        RawZip.Reader in = new RawZip.Reader(target);
+        try {
+            List<RawZip.Entry> changed = new ArrayList<RawZip.Entry>();
+            StringBuilder index = new StringBuilder();
+            index.append(BASE).append(base).append('\n');
+            for (RawZip.Entry e : in.entries()) {
+                Long previous = sent.get(e.name);
+                boolean unchanged = previous != null && previous == fingerprint(e);
+                if (!unchanged) changed.add(e);
+                index.append(unchanged ? FROM_BASE : FROM_PATCH).append(e.name).append('\n');
+            }
+            RawZip.Writer out = new RawZip.Writer(patch, ALIGNMENT);
+            try {
+                out.add(INDEX_ENTRY, new ByteArrayInputStream(
+                        index.toString().getBytes("utf-8")), target.lastModified(), true);
+                for (RawZip.Entry e : changed) {
+                    out.copy(in, e);
+                }
+            } finally {
+                out.close();
+            }
+            return changed.size();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Names of the entries that were added to, changed in or removed from
+     * the ap_ described by {@code manifest} to produce {@code target}
+     */
+    public static List<String> changedEntries(File manifest, File target) throws IOException {
+        Map<String,Long> sent = new HashMap<String,Long>();
+        readManifest(manifest, sent);
+        List<String> changed = new ArrayList<String>();
+        RawZip.Reader in = new RawZip.Reader(target);
+        try {
+            for (RawZip.Entry e : in.entries()) {
+                Long previous = sent.remove(e.name);
+                if (previous == null || previous != fingerprint(e))
+                    changed.add(e.name);
+            }
+        } finally {
+            in.close();
+        }
+        changed.addAll(sent.keySet());
+        return changed;
+    }
+
+    /** @return the central directory crc recorded in {@code manifest} */
+    private static String readManifest(File manifest, Map<String,Long> entries)
+            throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifest), "utf-8"));
+        try {
+            String base = r.readLine();
+            if (base == null)
+                throw new IOException("Empty resource manifest: " + manifest);
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.length() == 0) continue;
+                int tab = line.indexOf('\t');
+                if (tab < 1)
+                    throw new IOException("Invalid resource manifest line: " + line);
+                entries.put(line.substring(tab + 1),
+                        Long.parseLong(line.substring(0, tab), 16));
+            }
+            return base;
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Rebuild an ap_ from {@code base} and {@code patch} into {@code out},
+     * fails if {@code base} is not the ap_ the patch was created against
+     */
+    public static void apply(File base, File patch, File out) throws IOException {
+        RawZip.Reader baseZip = new RawZip.Reader(base);
+        RawZip.Reader patchZip = null;
+        try {
+            patchZip = new RawZip.Reader(patch);
+            List<RawZip.Entry> entries = patchZip.entries();
+            if (entries.isEmpty() || !INDEX_ENTRY.equals(entries.get(0).name))
+                throw new IOException("Not a resource patch: " + patch);
+            BufferedReader index = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(patchZip.read(entries.get(0))), "utf-8"));
+            RawZip.Writer w = new RawZip.Writer(out, ALIGNMENT);
+            try {
+                String header = index.readLine();
+                if (header == null || !header.startsWith(BASE) ||
+                        Long.parseLong(header.substring(BASE.length()), 16) !=
+                                baseZip.centralDirectoryCrc())
+                    throw new IOException("Resource patch base does not match: " + base);
+                String line;
+                while ((line = index.readLine()) != null) {
+                    if (line.length() == 0) continue;
+                    char from = line.charAt(0);
+                    if (from != FROM_PATCH && from != FROM_BASE)
+                        throw new IOException("Invalid resource patch index line: " + line);
+                    RawZip.Reader source = from == FROM_PATCH ? patchZip : baseZip;
+                    String name = line.substring(1);
+                    RawZip.Entry e = source.getEntry(name);
+                    if (e == null)
+                        throw new IOException("Resource patch entry missing: " + name);
+                    w.copy(source, e);
+                }
+            } finally {
+                index.close();
+                w.close();
+            }
+        } finally {
+            baseZip.close();
+            if (patchZip != null) patchZip.close();
+        }
+    }
+
+    /** checksum of everything in a central directory record but its offset */
+    static long fingerprint(RawZip.Entry e) {
+        byte[] record = new byte[32];
+        RawZip.writeShort(record, 0, e.versionMadeBy);
+        RawZip.writeShort(record, 2, e.versionNeeded);
+        RawZip.writeShort(record, 4, e.flags);
+        RawZip.writeShort(record, 6, e.method);
+        RawZip.writeInt(record, 8, e.dosTime);
+        RawZip.writeInt(record, 12, (int) e.crc);
+        RawZip.writeInt(record, 16, (int) e.compressedSize);
+        RawZip.writeInt(record, 20, (int) e.size);
+        RawZip.writeShort(record, 24, e.internalAttributes);
+        RawZip.writeInt(record, 26, (int) e.externalAttributes);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        crc.update(e.nameBytes, 0, e.nameBytes.length);
+        crc.update(e.extra, 0, e.extra.length);
+        crc.update(e.comment, 0, e.comment.length);
+        return crc.getValue();
+    }
+}
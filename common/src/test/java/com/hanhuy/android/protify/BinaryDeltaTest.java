@@ -0,0 +1,184 @@
+package com.hanhuy.android.protify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.*;
+
+public class BinaryDeltaTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file(byte[] contents) throws IOException {
+        File f = tmp.newFile();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private static byte[] bytes(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int) raf.length()];
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] random(Random r, int length) {
+        byte[] b = new byte[length];
+        r.nextBytes(b);
+        return b;
+    }
+
+    /** {@code base} with a few bytes inserted, replaced and dropped, offsets after each shift */
+    private static byte[] edited(Random r, byte[] base) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int pos = 0;
+        while (pos < base.length) {
+            int run = Math.min(base.length - pos, 1 + r.nextInt(4096));
+            out.write(base, pos, run);
+            pos += run;
+            switch (r.nextInt(3)) {
+                case 0:
+                    byte[] inserted = random(r, 1 + r.nextInt(32));
+                    out.write(inserted, 0, inserted.length);
+                    break;
+                case 1: pos += r.nextInt(16); break;
+                default: out.write(r.nextInt(256)); pos++; break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** patch from base to target, applied to base, rebuilds target; returns the patch */
+    private File roundTrip(byte[] base, byte[] target) throws IOException {
+        File b = file(base);
+        File patch = tmp.newFile();
+        BinaryDelta.create(b, file(target), patch);
+        File rebuilt = tmp.newFile();
+        BinaryDelta.apply(b, patch, rebuilt);
+        assertArrayEquals(target, bytes(rebuilt));
+        return patch;
+    }
+
+    @Test
+    public void patchRebuildsTarget() throws IOException {
+        Random r = new Random(1);
+        for (int round = 0; round < 20; round++) {
+            byte[] base = random(r, r.nextInt(200000));
+            byte[] target = edited(r, base);
+            File patch = roundTrip(base, target);
+            if (base.length > 10000)
+                assertTrue("patch of " + patch.length() + " bytes for " + target.length,
+                        patch.length() < target.length / 4);
+        }
+    }
+
+    @Test
+    public void emptyIdenticalAndDisjointInputs() throws IOException {
+        Random r = new Random(2);
+        byte[] data = random(r, 50000);
+        byte[] empty = new byte[0];
+        roundTrip(empty, empty);
+        roundTrip(empty, data);
+        roundTrip(data, empty);
+        // shorter than a block
+        roundTrip(new byte[] { 1, 2, 3 }, new byte[] { 1, 2, 3, 4 });
+        assertTrue(roundTrip(data, data).length() < 100);
+        byte[] other = random(r, 50000);
+        roundTrip(data, other);
+    }
+
+    @Test
+    public void rejectsAnotherBase() throws IOException {
+        Random r = new Random(3);
+        byte[] base = random(r, 20000);
+        File patch = tmp.newFile();
+        BinaryDelta.create(file(base), file(edited(r, base)), patch);
+        // same length, one byte off
+        base[10000]++;
+        try {
+            BinaryDelta.apply(file(base), patch, tmp.newFile());
+            fail("applied to another base");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Delta base does not match"));
+        }
+        try {
+            BinaryDelta.apply(file(Arrays.copyOf(base, 19999)), patch, tmp.newFile());
+            fail("applied to a shorter base");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Delta base does not match"));
+        }
+    }
+
+    /** a patch for {@code base} of the given ops, claiming to rebuild {@code target} */
+    private File patch(byte[] base, byte[] target, byte[] ops) throws IOException {
+        File f = tmp.newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+        try {
+            out.writeInt(0x50444c54);
+            out.writeByte(1);
+            out.writeLong(base.length);
+            out.writeInt((int) crc(base));
+            out.writeLong(target.length);
+            out.writeInt((int) crc(target));
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out);
+            deflated.write(ops);
+            deflated.finish();
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private static long crc(byte[] b) {
+        CRC32 crc = new CRC32();
+        crc.update(b, 0, b.length);
+        return crc.getValue();
+    }
+
+    private void assertRejected(File base, File patch, String message) {
+        try {
+            BinaryDelta.apply(base, patch, new File(tmp.getRoot(), "out"));
+            fail("applied a corrupt patch");
+        } catch (IOException e) {
+            if (message != null)
+                assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptOps() throws IOException {
+        byte[] base = "0123456789abcdef0123456789abcdef".getBytes("utf-8");
+        File b = file(base);
+        byte[] target = "0123456789".getBytes("utf-8");
+        // COPY 0..10, END rebuilds the target
+        File good = patch(base, target, new byte[] { 1, 0, 10, 0 });
+        BinaryDelta.apply(b, good, tmp.newFile());
+
+        // unknown op
+        assertRejected(b, patch(base, target, new byte[] { 7, 0 }), "Corrupt dex delta");
+        // no END
+        assertRejected(b, patch(base, target, new byte[] { 1, 0, 10 }), null);
+        // copy past the end of the base
+        assertRejected(b, patch(base, target, new byte[] { 1, 30, 10, 0 }), null);
+        // insert longer than the stream
+        assertRejected(b, patch(base, target, new byte[] { 2, 10, 'x', 0 }), null);
+        // well formed, but not the recorded target
+        assertRejected(b, patch(base, target, new byte[] { 1, 1, 10, 0 }), "Patched result does not match");
+        // not a patch at all
+        assertRejected(b, file(target), "Not a dex delta");
+    }
+}
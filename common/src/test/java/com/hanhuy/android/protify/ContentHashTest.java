@@ -0,0 +1,101 @@
+package com.hanhuy.android.protify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class ContentHashTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void hexRoundTrips() {
+        Random r = new Random(1);
+        long[] values = { 0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE, 0xf0f0f0f00f0f0f0fL };
+        for (long v : values) {
+            assertEquals(v, ContentHash.fromHex(ContentHash.toHex(v)));
+        }
+        for (int i = 0; i < 10000; i++) {
+            long v = r.nextLong();
+            String hex = ContentHash.toHex(v);
+            assertEquals(16, hex.length());
+            assertEquals(v, ContentHash.fromHex(hex));
+            assertEquals(v, ContentHash.fromHex(hex.toUpperCase()));
+        }
+    }
+
+    @Test
+    public void fromHexRejectsAnythingElse() {
+        String[] invalid = {
+                "", "0", "000000000000000", "00000000000000000",
+                "000000000000000g", "-00000000000000f", "+00000000000000f",
+                " 00000000000000f", "0x0000000000000f",
+                // other scripts' digits are digits to Character.digit
+                "\uff1000000000000000f", "\u066000000000000000f"
+        };
+        for (String s : invalid) {
+            try {
+                ContentHash.fromHex(s);
+                fail("accepted " + s);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void fromHexFuzz() {
+        Random r = new Random(2);
+        char[] alphabet = "0123456789abcdefABCDEFgxz -+\u0660\uff10".toCharArray();
+        for (int i = 0; i < 100000; i++) {
+            char[] s = new char[r.nextInt(20)];
+            boolean hex = s.length == 16;
+            for (int j = 0; j < s.length; j++) {
+                s[j] = alphabet[r.nextInt(alphabet.length)];
+                hex &= Character.digit(s[j], 16) != -1 && s[j] < 0x80;
+            }
+            String input = new String(s);
+            try {
+                long v = ContentHash.fromHex(input);
+                assertTrue("accepted " + input, hex);
+                assertEquals(input.toLowerCase(), ContentHash.toHex(v));
+            } catch (NumberFormatException e) {
+                assertFalse("rejected " + input, hex);
+            }
+        }
+    }
+
+    @Test
+    public void hashIsCrc32AndAdler32() throws IOException {
+        byte[] data = new byte[300000];
+        new Random(3).nextBytes(data);
+        File f = tmp.newFile("shard.dex");
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        Adler32 adler = new Adler32();
+        adler.update(data);
+        long expected = (crc.getValue() << 32) | adler.getValue();
+
+        ContentHash chunked = new ContentHash();
+        for (int off = 0; off < data.length; off += 4099) {
+            chunked.update(data, off, Math.min(4099, data.length - off));
+        }
+        assertEquals(expected, chunked.value());
+        assertEquals(ContentHash.toHex(expected), ContentHash.of(f));
+    }
+}
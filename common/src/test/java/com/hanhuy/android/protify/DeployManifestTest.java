@@ -0,0 +1,140 @@
+package com.hanhuy.android.protify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DeployManifestTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static List<DeployManifest.Entry> entries() {
+        return Arrays.asList(
+                new DeployManifest.Entry(DeployManifest.FULL, "classes.dex",
+                        "/data/local/tmp/protify/pkg/classes123.dex", 0x0123456789abcdefL, 4096, 4096),
+                new DeployManifest.Entry(DeployManifest.DELTA, "shard-0.dex",
+                        "/data/local/tmp/protify/pkg/classes456.dexpatch", -1L, 1 << 20, 812),
+                new DeployManifest.Entry(DeployManifest.STORED, "shard-\u00e9.dex",
+                        "", Long.MIN_VALUE, 77, 0));
+    }
+
+    private static String describe(List<DeployManifest.Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (DeployManifest.Entry e : entries) {
+            sb.append(e.kind).append(' ').append(e.name).append(' ').append(e.path).append(' ')
+                    .append(e.hashHex()).append(' ').append(e.size).append(' ')
+                    .append(e.length).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private byte[] written(List<DeployManifest.Entry> entries) throws IOException {
+        File f = tmp.newFile();
+        DeployManifest.write(f, entries);
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int) raf.length()];
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<DeployManifest.Entry> read(byte[] b) throws IOException {
+        return DeployManifest.read(new ByteArrayInputStream(b));
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        File f = tmp.newFile();
+        DeployManifest.write(f, entries());
+        assertEquals(describe(entries()), describe(DeployManifest.read(f)));
+
+        DeployManifest.write(f, Collections.<DeployManifest.Entry>emptyList());
+        assertTrue(DeployManifest.read(f).isEmpty());
+    }
+
+    @Test
+    public void rejectsEveryTruncation() throws IOException {
+        byte[] b = written(entries());
+        for (int n = 0; n < b.length; n++) {
+            try {
+                read(Arrays.copyOf(b, n));
+                fail("accepted " + n + " of " + b.length + " bytes");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTrailingData() throws IOException {
+        byte[] b = written(entries());
+        read(Arrays.copyOf(b, b.length + 1));
+    }
+
+    @Test
+    public void rejectsInvalidEntries() throws IOException {
+        List<DeployManifest.Entry> invalid = Arrays.asList(
+                new DeployManifest.Entry(3, "classes.dex", "/p", 0, 1, 1),
+                new DeployManifest.Entry(DeployManifest.FULL, "", "/p", 0, 1, 1),
+                new DeployManifest.Entry(DeployManifest.FULL, "../classes.dex", "/p", 0, 1, 1),
+                new DeployManifest.Entry(DeployManifest.FULL, ".classes.dex", "/p", 0, 1, 1),
+                new DeployManifest.Entry(DeployManifest.FULL, "classes.dex", "", 0, 1, 1),
+                new DeployManifest.Entry(DeployManifest.STORED, "classes.dex", "/p", 0, 1, 0),
+                new DeployManifest.Entry(DeployManifest.FULL, "classes.dex", "/p", 0, -1, 1),
+                new DeployManifest.Entry(DeployManifest.DELTA, "classes.dex", "/p", 0, 1, -1));
+        for (DeployManifest.Entry e : invalid) {
+            try {
+                read(written(Collections.singletonList(e)));
+                fail("accepted " + describe(Collections.singletonList(e)));
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Corrupted manifests either fail with an IOException or read as valid
+     * entries that round trip, never anything else. Modified utf-8 has more
+     * than one encoding of a name so the bytes themselves may differ.
+     */
+    @Test
+    public void fuzz() throws IOException {
+        Random r = new Random(17);
+        byte[] valid = written(entries());
+        for (int i = 0; i < 20000; i++) {
+            byte[] b;
+            switch (i % 3) {
+                case 0:
+                    b = valid.clone();
+                    for (int j = r.nextInt(4); j >= 0; j--) {
+                        b[r.nextInt(b.length)] = (byte) r.nextInt(256);
+                    }
+                    break;
+                case 1:
+                    b = valid.clone();
+                    b[r.nextInt(b.length)] ^= 1 << r.nextInt(8);
+                    break;
+                default:
+                    b = new byte[r.nextInt(64)];
+                    r.nextBytes(b);
+                    if (b.length >= 5 && r.nextBoolean()) {
+                        System.arraycopy(valid, 0, b, 0, 5);
+                    }
+            }
+            List<DeployManifest.Entry> entries;
+            try {
+                entries = read(b);
+            } catch (IOException e) {
+                continue;
+            }
+            assertEquals(describe(entries), describe(read(written(entries))));
+        }
+    }
+}
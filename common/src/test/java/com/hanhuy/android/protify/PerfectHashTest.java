@@ -0,0 +1,140 @@
+package com.hanhuy.android.protify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PerfectHashTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final static String[] CLASSES = {
+            "anim", "attr", "bool", "color", "dimen", "drawable", "id",
+            "integer", "layout", "string", "style", "styleable"
+    };
+
+    /** {@code count} distinct class/name keys, as found in an R.txt */
+    static List<String> keys(int count, long seed) {
+        Random r = new Random(seed);
+        Set<String> keys = new LinkedHashSet<String>();
+        while (keys.size() < count) {
+            keys.add(CLASSES[r.nextInt(CLASSES.length)] + "/abc_" +
+                    Integer.toString(r.nextInt(count * 4), 36) + (r.nextBoolean() ? "_material" : ""));
+        }
+        return new ArrayList<String>(keys);
+    }
+
+    private static List<byte[]> utf8(List<String> keys) throws IOException {
+        List<byte[]> bytes = new ArrayList<byte[]>(keys.size());
+        for (String k : keys) {
+            bytes.add(k.getBytes("utf-8"));
+        }
+        return bytes;
+    }
+
+    private static void assertPermutation(PerfectHash h, int count) {
+        assertEquals(count, h.slots.length);
+        boolean[] seen = new boolean[count];
+        for (int s : h.slots) {
+            assertFalse("slot " + s + " used twice", seen[s]);
+            seen[s] = true;
+        }
+        for (int d : h.displacements) {
+            assertTrue(d >= 0 && d < PerfectHash.MAX_DISPLACEMENT);
+        }
+    }
+
+    @Test
+    public void placesEveryKeyInItsOwnSlot() throws IOException {
+        for (int count : new int[] { 0, 1, 2, 7, 100, 5000, 20000 }) {
+            List<byte[]> keys = utf8(keys(count, count));
+            PerfectHash h = PerfectHash.build(keys);
+            assertNotNull(h);
+            assertPermutation(h, count);
+            for (int i = 0; i < count; i++) {
+                long hash = PerfectHash.hash(keys.get(i));
+                int d = h.displacements[PerfectHash.bucket(hash, h.displacements.length)];
+                assertEquals(h.slots[i], PerfectHash.slot(hash, d, count));
+            }
+        }
+    }
+
+    @Test
+    public void hashIsFnv1aAndStringHash() throws IOException {
+        // FNV-1a 32 reference values
+        assertEquals(0x811c9dc5, (int) (PerfectHash.hash(new byte[0]) >>> 32));
+        assertEquals(0xe40c292c, (int) (PerfectHash.hash("a".getBytes("utf-8")) >>> 32));
+        assertEquals(0xbf9cf968, (int) (PerfectHash.hash("foobar".getBytes("utf-8")) >>> 32));
+        for (String k : keys(1000, 1)) {
+            // the same as String.hashCode for ascii
+            assertEquals(k.hashCode(), (int) PerfectHash.hash(k.getBytes("utf-8")));
+        }
+        // murmur3's fmix32
+        assertEquals(0, PerfectHash.mix(0));
+        assertEquals(0x514e28b7, PerfectHash.mix(1));
+    }
+
+    /**
+     * The lookup RTxtLoaderBase makes for each entry of an applied table,
+     * hashing the names in place, finds the ordinal the generator assigned.
+     */
+    @Test
+    public void tableLookupFindsGeneratedOrdinals() throws IOException {
+        List<String> keys = keys(3000, 22);
+        keys.add("string/\u00e9t\u00e9");
+        keys.add("id/\u4e2d");
+        final PerfectHash h = PerfectHash.build(utf8(keys));
+        assertNotNull(h);
+
+        final Map<String,Integer> expected = new HashMap<String,Integer>();
+        File rtxt = tmp.newFile("R.txt");
+        Writer w = new OutputStreamWriter(new FileOutputStream(rtxt), "utf-8");
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                String[] k = keys.get(i).split("/");
+                w.write("int " + k[0] + " " + k[1] + " 0x" + Integer.toHexString(0x7f000000 + i) + "\n");
+                expected.put(keys.get(i), h.slots[i]);
+            }
+            // not in the hash, looked up all the same
+            w.write("int id not_patchable 0x7f0a0000\n");
+        } finally {
+            w.close();
+        }
+        File f = tmp.newFile("R.table");
+        RTable.write(rtxt, f);
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        byte[] b = new byte[(int) raf.length()];
+        try {
+            raf.readFully(b);
+        } finally {
+            raf.close();
+        }
+
+        final int count = keys.size();
+        final Map<String,Integer> found = new HashMap<String,Integer>();
+        RTable.apply(ByteBuffer.wrap(b), null, new RTable.Target() {
+            @Override
+            public void set(ByteBuffer table, int clazz, int name, int value) {
+                try {
+                    String key = RTable.name(table, clazz) + "/" + RTable.name(table, name);
+                    long hash = PerfectHash.hash(table, clazz, name);
+                    assertEquals(key, PerfectHash.hash(key.getBytes("utf-8")), hash);
+                    int d = h.displacements[PerfectHash.bucket(hash, h.displacements.length)];
+                    found.put(key, PerfectHash.slot(hash, d, count));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        assertEquals(count + 1, found.size());
+        // a key outside the hash lands in some slot, the loader then compares the key
+        Integer other = found.remove("id/not_patchable");
+        assertTrue(other >= 0 && other < count);
+        assertEquals(expected, found);
+    }
+}
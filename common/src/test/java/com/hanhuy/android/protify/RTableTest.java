@@ -0,0 +1,180 @@
+package com.hanhuy.android.protify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RTableTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final static String RTXT =
+            "int attr colorAccent 0x7f010000\n" +
+            "int attr colorPrimary 0x7f010001\n" +
+            "int id button 0x7f050000\n" +
+            "int id text 0x7f050001\n" +
+            "int layout main 0x7f030000\n" +
+            "int[] styleable Theme { 0x7f010000, 0x7f010001 }\n" +
+            "int styleable Theme_colorAccent 0\n" +
+            "int styleable Theme_colorPrimary 1\n" +
+            "int[] styleable Empty { }\n" +
+            "int string app_name 0x7f060000\n";
+
+    /** class/name to the value as text, an int or a list of ints */
+    private static Map<String,String> text(String rtxt) {
+        // what RTxtLoaderBase's text fallback applies for each line
+        Map<String,String> values = new TreeMap<String,String>();
+        for (String line : rtxt.split("\n")) {
+            String[] parts = line.split(" ");
+            if ("int".equals(parts[0])) {
+                values.put(parts[1] + "/" + parts[2], String.valueOf(asInt(parts[3])));
+            } else if ("int[]".equals(parts[0])) {
+                int[] value = new int[parts.length - 5];
+                for (int i = 0, j = 4; i < value.length; i++, j++) {
+                    String v = parts[j];
+                    value[i] = asInt(v.endsWith(",") ? v.substring(0, v.length() - 1) : v);
+                }
+                values.put(parts[1] + "/" + parts[2], Arrays.toString(value));
+            }
+        }
+        return values;
+    }
+
+    private static int asInt(String s) {
+        return s.startsWith("0x") ? (int) Long.parseLong(s.substring(2), 16) : Integer.parseInt(s);
+    }
+
+    private final static class Recording implements RTable.Target {
+        final Map<String,String> values = new TreeMap<String,String>();
+
+        @Override
+        public void set(ByteBuffer table, int clazz, int name, int value) {
+            try {
+                String key = RTable.name(table, clazz) + "/" + RTable.name(table, name);
+                assertNull("applied twice: " + key, values.put(key,
+                        RTable.kind(table, value) == RTable.INT ?
+                                String.valueOf(RTable.intValue(table, value)) :
+                                Arrays.toString(RTable.arrayValue(table, value))));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private ByteBuffer table(String rtxt) throws IOException {
+        File txt = tmp.newFile();
+        Writer w = new OutputStreamWriter(new FileOutputStream(txt), "utf-8");
+        try {
+            w.write(rtxt);
+        } finally {
+            w.close();
+        }
+        File f = tmp.newFile();
+        RTable.write(txt, f);
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int) raf.length()];
+            raf.readFully(b);
+            return ByteBuffer.wrap(b);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Map<String,String> applied(ByteBuffer table, ByteBuffer previous) throws IOException {
+        Recording r = new Recording();
+        int n = RTable.apply(table, previous, r);
+        assertEquals(r.values.size(), n);
+        return r.values;
+    }
+
+    @Test
+    public void tableAppliesWhatTextDoes() throws IOException {
+        ByteBuffer table = table(RTXT);
+        assertTrue(RTable.isTable(table));
+        assertEquals(text(RTXT), applied(table, null));
+        assertEquals("buffers are left as they were", 0, table.position());
+    }
+
+    @Test
+    public void unchangedTableAppliesNothing() throws IOException {
+        assertEquals(Collections.<String,String>emptyMap(), applied(table(RTXT), table(RTXT)));
+    }
+
+    @Test
+    public void incrementalAppliesOnlyChanges() throws IOException {
+        String changed = RTXT
+                .replace("int id text 0x7f050001\n", "int id text 0x7f050002\n")
+                .replace("{ 0x7f010000, 0x7f010001 }", "{ 0x7f010000, 0x7f010001, 0x7f010002 }")
+                .replace("int layout main 0x7f030000\n", "") +
+                "int layout other 0x7f030001\n" +
+                "int xml prefs 0x7f080000\n";
+        Map<String,String> expected = new TreeMap<String,String>();
+        expected.put("id/text", String.valueOf(0x7f050002));
+        expected.put("styleable/Theme", Arrays.toString(new int[] { 0x7f010000, 0x7f010001, 0x7f010002 }));
+        expected.put("layout/other", String.valueOf(0x7f030001));
+        expected.put("xml/prefs", String.valueOf(0x7f080000));
+        assertEquals(expected, applied(table(changed), table(RTXT)));
+    }
+
+    /** random R.txt pairs, the diff is exactly the entries text parsing tells apart */
+    @Test
+    public void incrementalMatchesTextDiff() throws IOException {
+        Random r = new Random(21);
+        String[] classes = { "attr", "id", "layout", "string", "styleable", "drawable", "\u00e9tat" };
+        for (int round = 0; round < 200; round++) {
+            String before = randomRTxt(r, classes);
+            String after = r.nextInt(4) == 0 ? before : randomRTxt(r, classes);
+            Map<String,String> old = text(before);
+            Map<String,String> now = text(after);
+            Map<String,String> diff = new TreeMap<String,String>();
+            for (Map.Entry<String,String> e : now.entrySet()) {
+                if (!e.getValue().equals(old.get(e.getKey())))
+                    diff.put(e.getKey(), e.getValue());
+            }
+            ByteBuffer table = table(after);
+            assertEquals(now, applied(table, null));
+            assertEquals(diff, applied(table, table(before)));
+        }
+    }
+
+    private static String randomRTxt(Random r, String[] classes) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = r.nextInt(60); i >= 0; i--) {
+            String clazz = classes[r.nextInt(classes.length)];
+            String name = "n" + r.nextInt(30) + (r.nextBoolean() ? "" : "_x");
+            if (r.nextInt(5) == 0) {
+                sb.append("int[] ").append(clazz).append(' ').append(name).append(" {");
+                for (int j = r.nextInt(4); j > 0; j--) {
+                    sb.append(" 0x").append(Integer.toHexString(0x7f010000 + r.nextInt(4)))
+                            .append(j > 1 ? "," : "");
+                }
+                sb.append(" }\n");
+            } else {
+                sb.append("int ").append(clazz).append(' ').append(name).append(" 0x")
+                        .append(Integer.toHexString(0x7f000000 + r.nextInt(8))).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void rejectsTruncatedTables() throws IOException {
+        ByteBuffer table = table(RTXT);
+        for (int n = 0; n < table.limit(); n++) {
+            ByteBuffer truncated = table.duplicate();
+            truncated.limit(n);
+            try {
+                RTable.apply(truncated.slice(), null, new Recording());
+                fail("accepted " + n + " of " + table.limit() + " bytes");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
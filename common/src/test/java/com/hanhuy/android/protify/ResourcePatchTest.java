@@ -0,0 +1,144 @@
+package com.hanhuy.android.protify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ResourcePatchTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final static long TIME = 1262304000000L;
+
+    /** an ap_ of {@code entries}, name to contents, layouts are compressed */
+    private File apk(String name, Map<String,String> entries) throws IOException {
+        File f = tmp.newFile(name);
+        RawZip.Writer w = new RawZip.Writer(f, ResourcePatch.ALIGNMENT);
+        try {
+            for (Map.Entry<String,String> e : entries.entrySet()) {
+                w.add(e.getKey(), new ByteArrayInputStream(e.getValue().getBytes("utf-8")),
+                        TIME, e.getKey().endsWith(".xml"));
+            }
+        } finally {
+            w.close();
+        }
+        return f;
+    }
+
+    private static Map<String,String> baseEntries() {
+        Map<String,String> entries = new LinkedHashMap<String,String>();
+        entries.put("AndroidManifest.xml", "<manifest package=\"com.example\"/>");
+        entries.put("res/layout/main.xml", "<LinearLayout/>");
+        entries.put("res/layout/other.xml", "<FrameLayout/>");
+        entries.put("res/drawable/icon.png", "not really a png");
+        entries.put("resources.arsc", "table");
+        return entries;
+    }
+
+    private static byte[] bytes(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int) raf.length()];
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void patchRebuildsTargetExactly() throws IOException {
+        File base = apk("base.ap_", baseEntries());
+        Map<String,String> changed = baseEntries();
+        changed.put("res/layout/main.xml", "<LinearLayout android:orientation=\"vertical\"/>");
+        changed.remove("res/layout/other.xml");
+        changed.put("res/layout/added.xml", "<TextView/>");
+        changed.put("resources.arsc", "table with more entries");
+        File target = apk("target.ap_", changed);
+
+        File manifest = tmp.newFile("manifest");
+        ResourcePatch.writeManifest(base, manifest);
+        File patch = tmp.newFile("patch" + ResourcePatch.PATCH_SUFFIX);
+        assertEquals(3, ResourcePatch.create(manifest, target, patch));
+
+        File rebuilt = tmp.newFile("rebuilt.ap_");
+        ResourcePatch.apply(base, patch, rebuilt);
+        assertArrayEquals(bytes(target), bytes(rebuilt));
+
+        List<String> names = ResourcePatch.changedEntries(manifest, target);
+        Collections.sort(names);
+        assertEquals(Arrays.asList("res/layout/added.xml", "res/layout/main.xml",
+                "res/layout/other.xml", "resources.arsc"), names);
+    }
+
+    @Test
+    public void unchangedPatchCarriesNothing() throws IOException {
+        File base = apk("base.ap_", baseEntries());
+        File target = apk("target.ap_", baseEntries());
+        File manifest = tmp.newFile("manifest");
+        ResourcePatch.writeManifest(base, manifest);
+        File patch = tmp.newFile("patch" + ResourcePatch.PATCH_SUFFIX);
+        assertEquals(0, ResourcePatch.create(manifest, target, patch));
+
+        File rebuilt = tmp.newFile("rebuilt.ap_");
+        ResourcePatch.apply(base, patch, rebuilt);
+        assertArrayEquals(bytes(target), bytes(rebuilt));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherBase() throws IOException {
+        File base = apk("base.ap_", baseEntries());
+        Map<String,String> other = baseEntries();
+        other.put("resources.arsc", "another table");
+        File target = apk("target.ap_", other);
+        File manifest = tmp.newFile("manifest");
+        ResourcePatch.writeManifest(base, manifest);
+        File patch = tmp.newFile("patch" + ResourcePatch.PATCH_SUFFIX);
+        ResourcePatch.create(manifest, target, patch);
+
+        // the patch applies to base only, not to the ap_ it produces
+        ResourcePatch.apply(target, patch, tmp.newFile("rebuilt.ap_"));
+    }
+
+    /** a patch of the entries of {@code base} with a hand written index */
+    private File patchWithIndex(File base, String index) throws IOException {
+        RawZip.Reader in = new RawZip.Reader(base);
+        File patch = tmp.newFile("patch" + ResourcePatch.PATCH_SUFFIX);
+        try {
+            RawZip.Writer w = new RawZip.Writer(patch, ResourcePatch.ALIGNMENT);
+            try {
+                w.add("META-INF/protify-patch-index", new ByteArrayInputStream(
+                        ("base " + Long.toHexString(in.centralDirectoryCrc()) + "\n" + index)
+                                .getBytes("utf-8")), TIME, true);
+            } finally {
+                w.close();
+            }
+        } finally {
+            in.close();
+        }
+        return patch;
+    }
+
+    @Test
+    public void skipsEmptyIndexLines() throws IOException {
+        File base = apk("base.ap_", baseEntries());
+        StringBuilder index = new StringBuilder("\n");
+        for (String name : baseEntries().keySet()) {
+            index.append('=').append(name).append("\n\n");
+        }
+        File rebuilt = tmp.newFile("rebuilt.ap_");
+        ResourcePatch.apply(base, patchWithIndex(base, index.toString()), rebuilt);
+        assertArrayEquals(bytes(base), bytes(rebuilt));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownIndexLines() throws IOException {
+        File base = apk("base.ap_", baseEntries());
+        ResourcePatch.apply(base, patchWithIndex(base, "?resources.arsc\n"),
+                tmp.newFile("rebuilt.ap_"));
+    }
+}
@@ -0,0 +1,72 @@
+package android.protify
+
+import java.io.File
+import java.util.concurrent.{Callable, ForkJoinPool}
+
+import com.hanhuy.android.protify.ContentHash
+import sbt._
+
+import scala.collection.JavaConverters._
+
+/**
+ * Content digests of dex shards and predexed jars, shared by all protify
+ * tasks. Digests are cached by (path, size, mtime) in a file that is kept
+ * between sbt sessions; cache misses are hashed in parallel. A file that
+ * was only copied again misses on its mtime and is rehashed, its digest
+ * stays the same so nothing keyed on digests is rebuilt. An mtime that is
+ * not older than the moment it was hashed is not trusted, the file may
+ * still have been written to within the same timestamp granularity.
+ * @author pfnguyen
+ */
+object ShardHashes {
+  private[this] lazy val pool = new ForkJoinPool(
+    math.max(1, Runtime.getRuntime.availableProcessors))
+
+  /** coarsest file timestamp granularity to allow for */
+  private[this] val granularity = 2000
+
+  private[this] case class Entry(size: Long, mtime: Long, hashed: Long, digest: String)
+
+  /** @return digests for `files`, reading and updating `cacheFile` */
+  def apply(cacheFile: File, files: Seq[File]): Map[File,String] = synchronized {
+    val cache = load(cacheFile)
+    val (hits, misses) = files.distinct partition { f =>
+      cache.get(f.getAbsolutePath) exists (e =>
+        e.size == f.length && e.mtime == f.lastModified && e.hashed - e.mtime > granularity)
+    }
+    val computed = pool.invokeAll(misses.map { f =>
+      new Callable[(File,Entry)] {
+        override def call() = {
+          val hashed = System.currentTimeMillis
+          val size = f.length
+          val mtime = f.lastModified
+          (f, Entry(size, mtime, hashed, ContentHash.of(f)))
+        }
+      }
+    }.asJava).asScala.map(_.get)
+
+    if (computed.nonEmpty) {
+      // drop entries for files that have gone away
+      val retained = cache filter { case (path, _) => new File(path).isFile }
+      save(cacheFile, retained ++ computed.map { case (f, e) => (f.getAbsolutePath, e) })
+    }
+    (hits.map(f => (f, cache(f.getAbsolutePath).digest)) ++
+      computed.map { case (f, e) => (f, e.digest) }).toMap
+  }
+
+  private[this] def load(cacheFile: File): Map[String,Entry] = {
+    if (!cacheFile.isFile) Map.empty else IO.readLines(cacheFile).flatMap { line =>
+      line.split("\t", 5) match {
+        case Array(digest, size, mtime, hashed, path) =>
+          List((path, Entry(size.toLong, mtime.toLong, hashed.toLong, digest)))
+        case _ => Nil
+      }
+    }.toMap
+  }
+
+  private[this] def save(cacheFile: File, cache: Map[String,Entry]): Unit = {
+    IO.writeLines(cacheFile, cache.toList map { case (path, e) =>
+      s"${e.digest}\t${e.size}\t${e.mtime}\t${e.hashed}\t$path"
+    })
+  }
+}
@@ -0,0 +1,654 @@
+package android.protify
+
+import java.io._
+import java.net.URLClassLoader
+import java.util.zip.{ZipEntry, ZipFile, ZipOutputStream}
+
+import org.objectweb.asm._
+import org.objectweb.asm.Opcodes._
+
+import scala.collection.mutable
+
+/**
+ * Hot swapping of method bodies. Debug builds dex the app's classes
+ * instrumented: every method starts by checking its class's `$change` and
+ * hands its arguments to the `IncrementalChange` set there, if any. When
+ * the classes changed since the last install only differ in the bodies of
+ * such methods, a deploy sends `$override` classes holding the new bodies
+ * and the agent points `$change` at them instead of restarting the process.
+ * Anything else, a changed member, constructor or static initializer, an
+ * added or removed class, is structural and the process is restarted.
+ * @author pfnguyen
+ */
+object HotSwap {
+  /** the field an instrumented class dispatches through */
+  val CHANGE_FIELD = "$change"
+  /** added to instrumented classes, runs their super calls for a patch */
+  val ACCESS_SUPER = "access$super"
+  /** a patch class is named for the patched class, this, and the patch */
+  val OVERRIDE = "$override$"
+
+  private[this] val CHANGE = "com/hanhuy/android/protify/IncrementalChange"
+  private[this] val CHANGE_DESC = "L" + CHANGE + ";"
+  private[this] val RUNTIME = "com/hanhuy/android/protify/PatchRuntime"
+  private[this] val OBJECTS = "[Ljava/lang/Object;"
+  private[this] val DISPATCH_DESC = "(Ljava/lang/String;" + OBJECTS + ")Ljava/lang/Object;"
+  private[this] val ACCESSOR_PREFIX = "protify$access$"
+
+  case class Field(access: Int, name: String, desc: String, value: Any)
+
+  /** `code` is a digest of the instructions, without debug info or frames */
+  case class Method(access: Int, name: String, desc: String, exceptions: List[String],
+                    code: String, indy: Boolean) {
+    def key = name + "." + desc
+    def static = (access & ACC_STATIC) != 0
+    /** whether it is instrumented, and can be replaced by a patch */
+    def dispatches = (access & (ACC_ABSTRACT | ACC_NATIVE | ACC_BRIDGE | ACC_SYNTHETIC)) == 0 &&
+      name != "<init>" && name != "<clinit>"
+  }
+
+  /** `superCalls` are the `super.m()` calls in its code, as (owner, name, desc) */
+  case class ClassInfo(version: Int, access: Int, name: String, superName: String,
+                       interfaces: List[String], fields: List[Field], methods: List[Method],
+                       superCalls: List[(String,String,String)]) {
+    def instrumentable = (access & ACC_INTERFACE) == 0 && methods.exists(_.dispatches)
+    def instrumented = fields.exists(_.name == CHANGE_FIELD)
+    /** everything but the code of its methods */
+    def signature = (access & ~ACC_SUPER, superName, interfaces,
+      fields.map(f => (f.access, f.name, f.desc, f.value)).toSet,
+      methods.map(m => (m.access, m.name, m.desc, m.exceptions)).toSet)
+  }
+
+  sealed trait Change
+  /** only bodies of methods that dispatch through `$change` changed, in `classes` */
+  case class BodyOnly(classes: List[String]) extends Change
+  case class Structural(reasons: List[String]) extends Change
+
+  def info(bytes: Array[Byte]): ClassInfo = {
+    var c: ClassInfo = null
+    val fields = List.newBuilder[Field]
+    val methods = List.newBuilder[Method]
+    val supers = mutable.LinkedHashSet.empty[(String,String,String)]
+    new ClassReader(bytes).accept(new ClassVisitor(ASM5) {
+      override def visit(version: Int, access: Int, name: String, signature: String,
+                         superName: String, interfaces: Array[String]) {
+        c = ClassInfo(version, access, name, superName,
+          Option(interfaces).fold(List.empty[String])(_.toList), Nil, Nil, Nil)
+      }
+      override def visitField(access: Int, name: String, desc: String,
+                              signature: String, value: Any) = {
+        fields += Field(access, name, desc, value)
+        null
+      }
+      override def visitMethod(access: Int, name: String, desc: String,
+                               signature: String, exceptions: Array[String]) =
+        new CodeDigest(c.name, supers)({ (code, indy) =>
+          methods += Method(access, name, desc,
+            Option(exceptions).fold(List.empty[String])(_.toList.sorted), code, indy)
+        })
+    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES)
+    c.copy(fields = fields.result(), methods = methods.result(), superCalls = supers.toList)
+  }
+
+  /**
+   * @return `bytes` with a `$change` dispatch in front of every method that
+   *         can be replaced, as is if there is none or it is already there
+   */
+  def instrument(bytes: Array[Byte]): Array[Byte] = {
+    val c = info(bytes)
+    if (!c.instrumentable || c.instrumented) bytes else {
+      val writer = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+      // dx ignores frames, only class files the JVM must type check need them
+      val frames = (c.version & 0xffff) >= V1_7
+      new ClassReader(bytes).accept(new ClassVisitor(ASM5, writer) {
+        override def visitMethod(access: Int, name: String, desc: String,
+                                 signature: String, exceptions: Array[String]) = {
+          val target = super.visitMethod(access, name, desc, signature, exceptions)
+          val m = Method(access, name, desc, Nil, "", indy = false)
+          if (!m.dispatches) target else new MethodVisitor(ASM5, target) {
+            override def visitCode() {
+              super.visitCode()
+              prologue(target, c.name, m, frames)
+            }
+          }
+        }
+        override def visitEnd() {
+          super.visitField(ACC_PUBLIC | ACC_STATIC | ACC_VOLATILE | ACC_SYNTHETIC,
+            CHANGE_FIELD, CHANGE_DESC, null, null).visitEnd()
+          if (c.superCalls.nonEmpty)
+            accessSuper(super.visitMethod(ACC_PUBLIC | ACC_STATIC | ACC_SYNTHETIC, ACCESS_SUPER,
+              accessSuperDesc(c.name), null, null), c, frames)
+          super.visitEnd()
+        }
+      }, ClassReader.EXPAND_FRAMES)
+      writer.toByteArray
+    }
+  }
+
+  /** instrument the classes in `in` into `out`, unless `out` is up to date */
+  def instrument(in: File, out: File): Unit = if (!out.isFile || out.lastModified < in.lastModified) {
+    out.getParentFile.mkdirs()
+    val tmp = new File(out.getParentFile, out.getName + ".tmp")
+    val zip = new ZipFile(in)
+    try {
+      val zout = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))
+      try {
+        val entries = zip.entries
+        while (entries.hasMoreElements) {
+          val e = entries.nextElement
+          val entry = new ZipEntry(e.getName)
+          entry.setTime(e.getTime)
+          zout.putNextEntry(entry)
+          if (!e.isDirectory) {
+            val bytes = readBytes(zip.getInputStream(e))
+            zout.write(if (e.getName.endsWith(".class")) instrument(bytes) else bytes)
+          }
+          zout.closeEntry()
+        }
+      } finally {
+        zout.close()
+      }
+    } finally {
+      zip.close()
+    }
+    out.delete()
+    if (!tmp.renameTo(out))
+      throw new IOException(s"Unable to rename $tmp to $out")
+  }
+
+  /**
+   * Compare the classes of an install, `before`, with the current ones,
+   * both by internal name and not instrumented.
+   */
+  def classify(before: Map[String,Array[Byte]], after: Map[String,Array[Byte]]): Change = {
+    val added = (after.keySet -- before.keySet).toList.sorted
+    val removed = (before.keySet -- after.keySet).toList.sorted
+    val changed = after.keys.toList.sorted filter (k =>
+      before.get(k) exists (b => !java.util.Arrays.equals(b, after(k))))
+    // (class, reasons it cannot be swapped, whether any body changed)
+    val compared = changed map { k =>
+      val (b, a) = (info(before(k)), info(after(k)))
+      if (b.signature != a.signature) (k, List(s"$k changed its members"), true)
+      else {
+        val old = b.methods.map(m => (m.name + m.desc, m)).toMap
+        val bodies = a.methods filter (m => old(m.name + m.desc).code != m.code)
+        (k, bodies collect {
+          case m if !m.dispatches || !b.instrumentable => s"$k.${m.name}${m.desc} cannot be swapped"
+          case m if m.indy => s"$k.${m.name}${m.desc} uses invokedynamic"
+        }, bodies.nonEmpty)
+      }
+    }
+    val reasons = added.map(_ + " added") ++ removed.map(_ + " removed") ++ compared.flatMap(_._2)
+    if (reasons.isEmpty) BodyOnly(compared collect { case (k, _, true) => k })
+    else Structural(reasons)
+  }
+
+  /**
+   * The `$override` classes of the `changed` classes, as classified by
+   * [[classify]], named for `patch`.
+   * @param lookup finds classes for member access checks, see [[withClasspath]]
+   * @return (internal name, bytes) of each, or why one cannot be built
+   */
+  def overrides(before: Map[String,Array[Byte]], after: Map[String,Array[Byte]],
+                changed: List[String], patch: String,
+                lookup: String => Option[ClassInfo]): Either[String,List[(String,Array[Byte])]] = {
+    val built = changed map (k => overrideClass(after(k), info(before(k)), patch, lookup))
+    built collectFirst { case Left(reason) => reason } match {
+      case Some(reason) => Left(reason)
+      case None         => Right(built collect { case Right(o) => o })
+    }
+  }
+
+  /**
+   * Run `f` with a lookup of the classes in `first` and then `classpath`,
+   * for the member access checks of [[overrides]].
+   */
+  def withClasspath[A](classpath: Seq[File], first: Map[String,Array[Byte]])
+                      (f: (String => Option[ClassInfo]) => A): A = {
+    val loader = new URLClassLoader(classpath.map(_.toURI.toURL).toArray, null)
+    val cache = mutable.Map.empty[String,Option[ClassInfo]]
+    try f { name =>
+      cache.getOrElseUpdate(name, first.get(name).map(info) orElse
+        Option(loader.getResourceAsStream(name + ".class")).map(in => info(readBytes(in))))
+    } finally {
+      loader.close()
+    }
+  }
+
+  /** internal name to bytes of the classes in `jar` */
+  def classes(jar: File): Map[String,Array[Byte]] = {
+    val zip = new ZipFile(jar)
+    try {
+      val entries = zip.entries
+      var classes = Map.empty[String,Array[Byte]]
+      while (entries.hasMoreElements) {
+        val e = entries.nextElement
+        if (e.getName.endsWith(".class"))
+          classes += ((e.getName.stripSuffix(".class"), readBytes(zip.getInputStream(e))))
+      }
+      classes
+    } finally {
+      zip.close()
+    }
+  }
+
+  def writeJar(jar: File, classes: Seq[(String,Array[Byte])]): Unit = {
+    val out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(jar)))
+    try classes foreach { case (name, bytes) =>
+      out.putNextEntry(new ZipEntry(name + ".class"))
+      out.write(bytes)
+      out.closeEntry()
+    } finally {
+      out.close()
+    }
+  }
+
+  private[this] def readBytes(in: InputStream): Array[Byte] = try {
+    val out = new ByteArrayOutputStream
+    val buffer = new Array[Byte](0x4000)
+    var read = in.read(buffer)
+    while (read != -1) {
+      out.write(buffer, 0, read)
+      read = in.read(buffer)
+    }
+    out.toByteArray
+  } finally {
+    in.close()
+  }
+
+  /** thrown while building a patch class that cannot replace the installed one */
+  private[this] case class NotPatchable(reason: String) extends Exception(reason)
+
+  /**
+   * `X$override$patch`, a static copy of each method of `X` that dispatches,
+   * instance methods take the instance first so that `this` keeps its
+   * slot, and the `dispatch` that calls them.
+   * @param base the class as installed, whose `access$super` patches call
+   */
+  private[this] def overrideClass(bytes: Array[Byte], base: ClassInfo, patch: String,
+                                  lookup: String => Option[ClassInfo]): Either[String,(String,Array[Byte])] = {
+    val c = info(bytes)
+    val name = c.name + OVERRIDE + patch
+    val copies = c.methods filter (_.dispatches) map (m =>
+      (m, if (m.static) m.desc else s"(L${c.name};${m.desc.substring(1)}"))
+    if (copies.map(m => m._1.name + m._2).distinct.size != copies.size)
+      Left(s"${c.name} has methods that collide as static copies")
+    else try {
+      val w = new ClassWriter(ClassWriter.COMPUTE_MAXS)
+      // no frames to write, dx does not need them
+      w.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, name, null,
+        "java/lang/Object", Array(CHANGE))
+      val init = w.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null)
+      init.visitCode()
+      init.visitVarInsn(ALOAD, 0)
+      init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false)
+      init.visitInsn(RETURN)
+      init.visitMaxs(0, 0)
+      init.visitEnd()
+
+      val accessors = new Accessors(name, c, base, lookup)
+      new ClassReader(bytes).accept(new ClassVisitor(ASM5) {
+        override def visitMethod(access: Int, mname: String, desc: String,
+                                 signature: String, exceptions: Array[String]) =
+          copies find (m => m._1.name == mname && m._1.desc == desc) map { case (m, copy) =>
+            new PatchCode(w.visitMethod(ACC_PUBLIC | ACC_STATIC, mname, copy, null, exceptions),
+              s"${c.name}.$mname", name, accessors): MethodVisitor
+          } orNull
+      }, ClassReader.SKIP_FRAMES)
+      accessors.write(w)
+
+      val mv = w.visitMethod(ACC_PUBLIC, "dispatch", DISPATCH_DESC, null, null)
+      mv.visitCode()
+      copies foreach { case (m, copy) =>
+        val next = new Label
+        mv.visitVarInsn(ALOAD, 1)
+        mv.visitLdcInsn(m.key)
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z", false)
+        mv.visitJumpInsn(IFEQ, next)
+        unpack(mv, 2, Type.getArgumentTypes(copy))
+        mv.visitMethodInsn(INVOKESTATIC, name, m.name, copy, false)
+        boxResult(mv, Type.getReturnType(copy))
+        mv.visitInsn(ARETURN)
+        mv.visitLabel(next)
+      }
+      throwUnknown(mv, 1)
+      mv.visitMaxs(0, 0)
+      mv.visitEnd()
+      w.visitEnd()
+      Right((name, w.toByteArray))
+    } catch {
+      case NotPatchable(reason) => Left(reason)
+    }
+  }
+
+  /**
+   * Accessors in a patch class for the members of `c` a patch cannot reach
+   * directly: private members, protected members inherited from another
+   * package and super calls. A class in the package of `c` that is not a
+   * subclass of it can reach everything else the code of `c` does.
+   */
+  private[this] class Accessors(patch: String, c: ClassInfo, base: ClassInfo,
+                                lookup: String => Option[ClassInfo]) {
+    private[this] val bodies = mutable.LinkedHashMap.empty[String,(String,String,MethodVisitor => Unit)]
+
+    private[this] def pkg(n: String) = n.substring(0, math.max(0, n.lastIndexOf('/')))
+
+    /** `resolved` is the declaring class and access of the member */
+    private[this] def reachable(owner: String, resolved: Option[(String,Int)]) = resolved match {
+      case Some((decl, access)) => (access & ACC_PRIVATE) == 0 &&
+        ((access & ACC_PROTECTED) == 0 || pkg(decl) == pkg(c.name))
+      case None => owner != c.name
+    }
+
+    private[this] def resolveField(owner: String, name: String, desc: String): Option[(String,Int)] =
+      lookup(owner) flatMap { k =>
+        k.fields find (f => f.name == name && f.desc == desc) map (f => (k.name, f.access)) orElse
+          (k.interfaces ++ Option(k.superName)).toStream.flatMap(resolveField(_, name, desc)).headOption
+      }
+
+    private[this] def resolveMethod(owner: String, name: String, desc: String): Option[(String,Int)] =
+      lookup(owner) flatMap { k =>
+        k.methods find (m => m.name == name && m.desc == desc) map (m => (k.name, m.access)) orElse
+          (Option(k.superName).toList ++ k.interfaces).toStream.flatMap(resolveMethod(_, name, desc)).headOption
+      }
+
+    /** @return the name and descriptor of the accessor for `key` */
+    private[this] def accessor(key: String, desc: String)(body: MethodVisitor => Unit): (String,String) = {
+      val (name, d, _) = bodies.getOrElseUpdate(key, (ACCESSOR_PREFIX + bodies.size, desc, body))
+      (name, d)
+    }
+
+    /** @return the accessor to call in place of the field instruction, if any */
+    def field(opcode: Int, owner: String, name: String, desc: String): Option[(String,String)] =
+      if (reachable(owner, resolveField(owner, name, desc))) None else {
+        val static = opcode == GETSTATIC || opcode == PUTSTATIC
+        val get = opcode == GETFIELD || opcode == GETSTATIC
+        val t = Type.getType(desc)
+        val self = if (static) "" else s"L$owner;"
+        Some(accessor(s"$opcode $owner.$name $desc", if (get) s"($self)$desc" else s"($self$desc)V") { mv =>
+          if (static) mv.visitInsn(ACONST_NULL) else mv.visitVarInsn(ALOAD, 0)
+          mv.visitLdcInsn(Type.getObjectType(owner))
+          mv.visitLdcInsn(name)
+          if (get) {
+            mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "getField",
+              "(Ljava/lang/Object;Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Object;", false)
+            unbox(mv, t)
+            returns(mv, t)
+          } else {
+            mv.visitVarInsn(t.getOpcode(ILOAD), if (static) 0 else 1)
+            box(mv, t)
+            mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "setField",
+              "(Ljava/lang/Object;Ljava/lang/Class;Ljava/lang/String;Ljava/lang/Object;)V", false)
+            mv.visitInsn(RETURN)
+          }
+        })
+      }
+
+    /** @return the accessor to call in place of the method instruction, if any */
+    def method(opcode: Int, owner: String, name: String, desc: String): Option[(String,String)] = {
+      val args = Type.getArgumentTypes(desc)
+      val ret = Type.getReturnType(desc)
+      if (opcode == INVOKESPECIAL && name == "<init>") {
+        val ctor = lookup(owner) flatMap (_.methods find (m => m.name == name && m.desc == desc))
+        if (ctor exists (m => (m.access & ACC_PRIVATE) != 0))
+          throw NotPatchable(s"${c.name} calls a private constructor of $owner")
+        None
+      } else if (opcode == INVOKESPECIAL && owner != c.name) {
+        val key = name + "." + desc
+        if (!base.superCalls.exists(s => s._2 + "." + s._3 == key))
+          throw NotPatchable(s"${c.name} adds a call to super.$name$desc")
+        Some(accessor(s"super $key", s"(L${c.name};${desc.substring(1)}") { mv =>
+          mv.visitVarInsn(ALOAD, 0)
+          mv.visitLdcInsn(key)
+          boxedArray(mv, args zip slots(args, 1))
+          mv.visitMethodInsn(INVOKESTATIC, c.name, ACCESS_SUPER, accessSuperDesc(c.name), false)
+          unbox(mv, ret)
+          returns(mv, ret)
+        })
+      } else if (opcode != INVOKESPECIAL && reachable(owner, resolveMethod(owner, name, desc))) None
+      else {
+        val static = opcode == INVOKESTATIC
+        Some(accessor(s"$opcode $owner.$name$desc",
+          if (static) desc else s"(L$owner;${desc.substring(1)}") { mv =>
+          if (static) mv.visitInsn(ACONST_NULL) else mv.visitVarInsn(ALOAD, 0)
+          mv.visitLdcInsn(Type.getObjectType(owner))
+          mv.visitLdcInsn(name)
+          mv.visitLdcInsn(desc)
+          boxedArray(mv, args zip slots(args, if (static) 0 else 1))
+          mv.visitMethodInsn(INVOKESTATIC, RUNTIME, "invoke",
+            "(Ljava/lang/Object;Ljava/lang/Class;Ljava/lang/String;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;",
+            false)
+          unbox(mv, ret)
+          returns(mv, ret)
+        })
+      }
+    }
+
+    def write(w: ClassWriter): Unit = bodies.values foreach { case (name, desc, body) =>
+      val mv = w.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, name, desc, null, null)
+      mv.visitCode()
+      body(mv)
+      mv.visitMaxs(0, 0)
+      mv.visitEnd()
+    }
+  }
+
+  /**
+   * Copies the code of a method into a patch class, without frames or local
+   * variable names, through the accessors where it cannot reach a member.
+   */
+  private[this] class PatchCode(target: MethodVisitor, method: String, patch: String,
+                                accessors: Accessors) extends MethodVisitor(ASM5) {
+    override def visitCode() = target.visitCode()
+    override def visitInsn(opcode: Int) = target.visitInsn(opcode)
+    override def visitIntInsn(opcode: Int, operand: Int) = target.visitIntInsn(opcode, operand)
+    override def visitVarInsn(opcode: Int, v: Int) = target.visitVarInsn(opcode, v)
+    override def visitTypeInsn(opcode: Int, tpe: String) = target.visitTypeInsn(opcode, tpe)
+    override def visitFieldInsn(opcode: Int, owner: String, name: String, desc: String) =
+      accessors.field(opcode, owner, name, desc) match {
+        case Some((a, d)) => target.visitMethodInsn(INVOKESTATIC, patch, a, d, false)
+        case None         => target.visitFieldInsn(opcode, owner, name, desc)
+      }
+    override def visitMethodInsn(opcode: Int, owner: String, name: String, desc: String, itf: Boolean) =
+      accessors.method(opcode, owner, name, desc) match {
+        case Some((a, d)) => target.visitMethodInsn(INVOKESTATIC, patch, a, d, false)
+        case None         => target.visitMethodInsn(opcode, owner, name, desc, itf)
+      }
+    override def visitInvokeDynamicInsn(name: String, desc: String, bsm: Handle, args: AnyRef*) =
+      throw NotPatchable(s"$method uses invokedynamic")
+    override def visitJumpInsn(opcode: Int, label: Label) = target.visitJumpInsn(opcode, label)
+    override def visitLabel(label: Label) = target.visitLabel(label)
+    override def visitLdcInsn(cst: Any) = cst match {
+      case _: Handle => throw NotPatchable(s"$method loads a method handle")
+      case t: Type if t.getSort == Type.METHOD => throw NotPatchable(s"$method loads a method type")
+      case _ => target.visitLdcInsn(cst)
+    }
+    override def visitIincInsn(v: Int, increment: Int) = target.visitIincInsn(v, increment)
+    override def visitTableSwitchInsn(min: Int, max: Int, dflt: Label, labels: Label*) =
+      target.visitTableSwitchInsn(min, max, dflt, labels: _*)
+    override def visitLookupSwitchInsn(dflt: Label, keys: Array[Int], labels: Array[Label]) =
+      target.visitLookupSwitchInsn(dflt, keys, labels)
+    override def visitMultiANewArrayInsn(desc: String, dims: Int) = target.visitMultiANewArrayInsn(desc, dims)
+    override def visitTryCatchBlock(start: Label, end: Label, handler: Label, tpe: String) =
+      target.visitTryCatchBlock(start, end, handler, tpe)
+    override def visitLineNumber(line: Int, start: Label) = target.visitLineNumber(line, start)
+    override def visitMaxs(maxStack: Int, maxLocals: Int) = target.visitMaxs(maxStack, maxLocals)
+    override def visitEnd() = target.visitEnd()
+  }
+
+  /** the instructions of a method as a string, recording the super calls of `owner` */
+  private[this] class CodeDigest(owner: String, supers: mutable.Set[(String,String,String)])
+                                (done: (String, Boolean) => Unit) extends MethodVisitor(ASM5) {
+    private[this] val b = new StringBuilder
+    private[this] val labels = new java.util.IdentityHashMap[Label,Integer]
+    private[this] var indy = false
+    private[this] def label(l: Label) = {
+      if (!labels.containsKey(l)) labels.put(l, labels.size)
+      "L" + labels.get(l)
+    }
+    private[this] def add(s: String): Unit = b.append(s).append('\n')
+
+    override def visitInsn(opcode: Int) = add(s"$opcode")
+    override def visitIntInsn(opcode: Int, operand: Int) = add(s"$opcode $operand")
+    override def visitVarInsn(opcode: Int, v: Int) = add(s"$opcode $v")
+    override def visitTypeInsn(opcode: Int, tpe: String) = add(s"$opcode $tpe")
+    override def visitFieldInsn(opcode: Int, o: String, name: String, desc: String) =
+      add(s"$opcode $o.$name $desc")
+    override def visitMethodInsn(opcode: Int, o: String, name: String, desc: String, itf: Boolean) = {
+      if (opcode == INVOKESPECIAL && name != "<init>" && o != owner && !itf)
+        supers += ((o, name, desc))
+      add(s"$opcode $o.$name$desc $itf")
+    }
+    override def visitInvokeDynamicInsn(name: String, desc: String, bsm: Handle, args: AnyRef*) = {
+      indy = true
+      add(s"indy $name$desc $bsm ${args.mkString(",")}")
+    }
+    override def visitJumpInsn(opcode: Int, l: Label) = add(s"$opcode ${label(l)}")
+    override def visitLabel(l: Label) = add(label(l) + ":")
+    override def visitLdcInsn(cst: Any) = add(s"ldc ${cst.getClass.getName} $cst")
+    override def visitIincInsn(v: Int, increment: Int) = add(s"iinc $v $increment")
+    override def visitTableSwitchInsn(min: Int, max: Int, dflt: Label, ls: Label*) =
+      add(s"tableswitch $min $max ${label(dflt)} ${ls.map(label).mkString(" ")}")
+    override def visitLookupSwitchInsn(dflt: Label, keys: Array[Int], ls: Array[Label]) =
+      add(s"lookupswitch ${label(dflt)} ${keys.mkString(",")} ${ls.map(label).mkString(" ")}")
+    override def visitMultiANewArrayInsn(desc: String, dims: Int) = add(s"multianewarray $desc $dims")
+    override def visitTryCatchBlock(start: Label, end: Label, handler: Label, tpe: String) =
+      add(s"try ${label(start)} ${label(end)} ${label(handler)} $tpe")
+    override def visitEnd() = done(b.toString, indy)
+  }
+
+  /**
+   * `if ($change != null) return $change.dispatch(key, args)`, with the
+   * original body following
+   */
+  private[this] def prologue(mv: MethodVisitor, owner: String, m: Method, frames: Boolean): Unit = {
+    val params = (if (m.static) Nil else List(Type.getObjectType(owner))) ++ Type.getArgumentTypes(m.desc)
+    val ret = Type.getReturnType(m.desc)
+    val original = new Label
+    mv.visitFieldInsn(GETSTATIC, owner, CHANGE_FIELD, CHANGE_DESC)
+    mv.visitInsn(DUP)
+    mv.visitJumpInsn(IFNULL, original)
+    mv.visitLdcInsn(m.key)
+    boxedArray(mv, params zip slots(params, 0))
+    mv.visitMethodInsn(INVOKEINTERFACE, CHANGE, "dispatch", DISPATCH_DESC, true)
+    unbox(mv, ret)
+    returns(mv, ret)
+    mv.visitLabel(original)
+    if (frames)
+      mv.visitFrame(F_NEW, params.size, params.map(frameType).toArray, 1, Array[AnyRef](CHANGE))
+    mv.visitInsn(POP)
+  }
+
+  private[this] def accessSuperDesc(owner: String) =
+    s"(L$owner;Ljava/lang/String;$OBJECTS)Ljava/lang/Object;"
+
+  /** `access$super(self, key, args)`, a `super.m(args)` on `self` for each super call of `c` */
+  private[this] def accessSuper(mv: MethodVisitor, c: ClassInfo, frames: Boolean): Unit = {
+    mv.visitCode()
+    c.superCalls.groupBy(s => s._2 + "." + s._3).toList.sortBy(_._1) foreach { case (key, calls) =>
+      val (owner, name, desc) = calls.head
+      val next = new Label
+      mv.visitVarInsn(ALOAD, 1)
+      mv.visitLdcInsn(key)
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z", false)
+      mv.visitJumpInsn(IFEQ, next)
+      mv.visitVarInsn(ALOAD, 0)
+      unpack(mv, 2, Type.getArgumentTypes(desc))
+      mv.visitMethodInsn(INVOKESPECIAL, owner, name, desc, false)
+      boxResult(mv, Type.getReturnType(desc))
+      mv.visitInsn(ARETURN)
+      mv.visitLabel(next)
+      if (frames)
+        mv.visitFrame(F_NEW, 3, Array[AnyRef](c.name, "java/lang/String", OBJECTS), 0, Array.empty)
+    }
+    throwUnknown(mv, 1)
+    mv.visitMaxs(0, 0)
+    mv.visitEnd()
+  }
+
+  private[this] def throwUnknown(mv: MethodVisitor, local: Int): Unit = {
+    mv.visitTypeInsn(NEW, "java/lang/IllegalStateException")
+    mv.visitInsn(DUP)
+    mv.visitVarInsn(ALOAD, local)
+    mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalStateException", "<init>",
+      "(Ljava/lang/String;)V", false)
+    mv.visitInsn(ATHROW)
+  }
+
+  /** the local variable slot of each of `types`, starting at `first` */
+  private[this] def slots(types: Seq[Type], first: Int): Seq[Int] =
+    types.scanLeft(first)(_ + _.getSize).init
+
+  private[this] def push(mv: MethodVisitor, i: Int): Unit =
+    if (i <= 5) mv.visitInsn(ICONST_0 + i)
+    else if (i <= Byte.MaxValue) mv.visitIntInsn(BIPUSH, i)
+    else mv.visitIntInsn(SIPUSH, i)
+
+  /** an `Object[]` of the boxed values of the (type, slot) `locals` */
+  private[this] def boxedArray(mv: MethodVisitor, locals: Seq[(Type,Int)]): Unit = {
+    push(mv, locals.size)
+    mv.visitTypeInsn(ANEWARRAY, "java/lang/Object")
+    locals.zipWithIndex foreach { case ((t, slot), i) =>
+      mv.visitInsn(DUP)
+      push(mv, i)
+      mv.visitVarInsn(t.getOpcode(ILOAD), slot)
+      box(mv, t)
+      mv.visitInsn(AASTORE)
+    }
+  }
+
+  /** push the elements of the `Object[]` in `array`, unboxed as `types` */
+  private[this] def unpack(mv: MethodVisitor, array: Int, types: Seq[Type]): Unit =
+    types.zipWithIndex foreach { case (t, i) =>
+      mv.visitVarInsn(ALOAD, array)
+      push(mv, i)
+      mv.visitInsn(AALOAD)
+      unbox(mv, t)
+    }
+
+  private[this] def boxed(t: Type) = t.getSort match {
+    case Type.BOOLEAN => "java/lang/Boolean"
+    case Type.CHAR    => "java/lang/Character"
+    case Type.BYTE    => "java/lang/Byte"
+    case Type.SHORT   => "java/lang/Short"
+    case Type.INT     => "java/lang/Integer"
+    case Type.FLOAT   => "java/lang/Float"
+    case Type.LONG    => "java/lang/Long"
+    case Type.DOUBLE  => "java/lang/Double"
+  }
+
+  private[this] def box(mv: MethodVisitor, t: Type): Unit = t.getSort match {
+    case Type.OBJECT | Type.ARRAY =>
+    case _ =>
+      val b = boxed(t)
+      mv.visitMethodInsn(INVOKESTATIC, b, "valueOf", s"(${t.getDescriptor})L$b;", false)
+  }
+
+  /** the return value of a call boxed, null for void */
+  private[this] def boxResult(mv: MethodVisitor, t: Type): Unit =
+    if (t.getSort == Type.VOID) mv.visitInsn(ACONST_NULL) else box(mv, t)
+
+  /** the `Object` on the stack as `t`, dropped for void */
+  private[this] def unbox(mv: MethodVisitor, t: Type): Unit = t.getSort match {
+    case Type.VOID => mv.visitInsn(POP)
+    case Type.OBJECT | Type.ARRAY =>
+      if (t.getInternalName != "java/lang/Object")
+        mv.visitTypeInsn(CHECKCAST, t.getInternalName)
+    case _ =>
+      val b = boxed(t)
+      mv.visitTypeInsn(CHECKCAST, b)
+      mv.visitMethodInsn(INVOKEVIRTUAL, b, t.getClassName + "Value", "()" + t.getDescriptor, false)
+  }
+
+  private[this] def returns(mv: MethodVisitor, t: Type): Unit =
+    mv.visitInsn(if (t.getSort == Type.VOID) RETURN else t.getOpcode(IRETURN))
+
+  private[this] def frameType(t: Type): AnyRef = t.getSort match {
+    case Type.BOOLEAN | Type.CHAR | Type.BYTE | Type.SHORT | Type.INT => INTEGER
+    case Type.FLOAT  => FLOAT
+    case Type.LONG   => LONG
+    case Type.DOUBLE => DOUBLE
+    case Type.ARRAY  => t.getDescriptor
+    case _           => t.getInternalName
+  }
+}
@@ -22,13 +22,19 @@ import sbt.Cache.IntFormat
 import sbt.Cache.tuple2Format
 
 import language.postfixOps
-import com.hanhuy.android.protify.BuildInfo
+import com.hanhuy.android.protify.{BinaryDelta, BuildInfo, ContentHash, DeployManifest, DexStoreIndex, RTable, RawZip, ResourcePatch}
 
 import scala.util.Try
 
 object Keys {
   val protifyLayout = InputKey[Unit]("protify-layout", "prototype an android layout on device")
   val protify = TaskKey[Unit]("protify", "live-coding on-device")
+  val protifyDexDelta = SettingKey[Boolean]("protify-dex-delta", "send binary patches for changed dex shards instead of whole shards")
+  val protifyResourcesDelta = SettingKey[Boolean]("protify-resources-delta", "send only changed resource entries instead of the whole ap_")
+  val protifyDexStored = SettingKey[Boolean]("protify-dex-stored", "store dex shards uncompressed in the apk so they can be copied out without inflating, default false")
+  val protifyDeployConcurrency = SettingKey[Int]("protify-deploy-concurrency", "number of devices deployed to at once, default the number of processors")
+  val protifyDeployPerBus = SettingKey[Int]("protify-deploy-per-bus", "number of devices sharing a bus that push at once, default 2")
+  val protifyDeployBus = SettingKey[IDevice => String]("protify-deploy-bus", "groups devices by the bus they share, pushes are throttled per group")
   val Protify = config("protify") extend Compile
 
   @deprecated("use `enablePlugins(AndroidProtify)`", "1.4.0")
@@ -48,6 +54,12 @@ object AndroidProtify extends AutoPlugin {
     clean <<= clean dependsOn (clean in Protify),
     streams in update <<= (streams in update) dependsOn (protifyLibraryDependencies in Protify, protifyExtractAgent in Protify),
     protify <<= protifyTaskDef dependsOn protifyHasDevice dependsOn protifyHasInstall,
+    protifyDexDelta := true,
+    protifyResourcesDelta := true,
+    protifyDexStored := false,
+    protifyDeployConcurrency := Runtime.getRuntime.availableProcessors,
+    protifyDeployPerBus := 2,
+    protifyDeployBus := DeployScheduler.connectionOf _,
     protifyLayout <<= protifyLayoutTaskDef(),
     protifyLayout <<= protifyLayout dependsOn (packageResources in Protify, compile in Compile)
   ) ++ inConfig(Protify)(List(
@@ -73,10 +85,7 @@ object AndroidProtify extends AutoPlugin {
           android.fail(s"Application has not been installed to ${dev.getSerialNumber}, android:install first")
         ()
       }
-      if (all)
-        android.Commands.deviceList(sdk, st.log).par foreach execute
-      else
-        android.Commands.targetDevice(sdk, st.log) foreach execute
+      DeployScheduler.devices(sdk, all, st.log) foreach execute
     },
     protifyExtractAgent <<= protifyExtractAgentTaskDef,
     protifyDexAgent <<= protifyDexAgentTaskDef,
@@ -96,16 +105,10 @@ object AndroidProtify extends AutoPlugin {
       val s = streams.value
       FileFunction.cached(s.cacheDirectory / "protify-resapk",
           FilesInfo.hash, FilesInfo.exists) { in =>
-        IO.delete(layout.protifyResApkTemp)
-        layout.protifyResApkTemp.mkdirs()
-        IO.unzip(resapk, layout.protifyResApkTemp)
         IO.delete(layout.protifyResApk)
-        val mappings =
-          ((PathFinder(layout.protifyResApkTemp) ** android.FileOnlyFilter)
-            pair relativeTo(layout.protifyResApkTemp)) ++
-          ((PathFinder(layout.mergedAssets) ** android.FileOnlyFilter)
-            pair rebase(layout.mergedAssets, "assets"))
-        Zip.resources(mappings, layout.protifyResApk)
+        val assets = (PathFinder(layout.mergedAssets) ** android.FileOnlyFilter) pair
+          rebase(layout.mergedAssets, "assets")
+        Zip.resources(resapk, assets, layout.protifyResApk)
         Set(layout.protifyResApk)
       }(Set(resapk) ++ (layout.mergedAssets ** android.FileOnlyFilter).get)
       layout.protifyResApk
@@ -155,7 +158,17 @@ object AndroidProtify extends AutoPlugin {
         // always clean out dex on release builds (clear out shards/multi)
         (layout.dex * "*.dex" get) foreach (_.delete())
         opts
-      } else opts.copy(multi = true, mainClassesConfig = file("/"))
+      } else {
+        // the app's classes are dexed with the dispatch hooks hot swaps use
+        val (incremental, inputs) = opts.inputs
+        val instrumented = inputs map { f =>
+          if (f != layout.classesJar) f else {
+            HotSwap.instrument(f, layout.protifyInstrumentedClasses)
+            layout.protifyInstrumentedClasses
+          }
+        }
+        opts.copy(inputs = (incremental, instrumented), multi = true, mainClassesConfig = file("/"))
+      }
     },
     proguardOptions := {
       val debug = apkbuildDebug.value()
@@ -232,6 +245,10 @@ object AndroidProtify extends AutoPlugin {
       install.value
       def installed(d: IDevice): Unit = {
         IO.copyFile(layout.protifyDexHash, layout.protifyInstalledHash(d))
+        snapshotInstalledDex(layout.protifyDexJar, layout.protifyInstalledDex(d))
+        snapshotInstalledClasses(layout, d)
+        layout.protifyInstalledResources(d).delete()
+        layout.protifyDeviceStore(d).delete()
       }
 
       if (all) android.Commands.deviceList(sdkPath.value, s.log) foreach installed
@@ -491,8 +508,20 @@ object AndroidProtify extends AutoPlugin {
       val all = (allDevices in Android).value
       val sdk = (sdkPath in Android).value
       val layout = (projectLayout in Android).value
+      val scheduler = deployScheduler.value
       val rTxt = layout.gen / "R.txt"
       val rTxtHash = if (rTxt.isFile) Hash.toHex(Hash(rTxt)) else "no-r.txt"
+      // the viewer keeps unchanged resources loaded between previews
+      val resHash = ContentHash.of(res)
+      // the viewer maps the table and applies only what changed, it caches
+      // the table by rTxtHash so the table must be of exactly that R.txt
+      val rTable = layout.protifyRTable
+      val rTableHash = layout.protifyRTableHash
+      if (rTxt.isFile && (!rTable.isFile || !rTableHash.isFile || IO.read(rTableHash) != rTxtHash)) {
+        rTable.getParentFile.mkdirs()
+        RTable.write(rTxt, rTable)
+        IO.write(rTableHash, rTxtHash)
+      }
       val layouts = loadFromContext(protifyLayouts in Protify, sbt.Keys.resolvedScoped.value, state.value).getOrElse(Nil)
       val themes = loadFromContext(protifyThemes in Protify, sbt.Keys.resolvedScoped.value, state.value).getOrElse((Nil,Nil))
       if (layouts.isEmpty || themes._1.isEmpty) {
@@ -506,10 +535,9 @@ object AndroidProtify extends AutoPlugin {
       val theme = l.flatMap(_._2)
       val themeid = theme.fold(0)(themes._1.toMap.apply)
       log.debug("available layouts: " + layouts)
-      import android.Commands
       import com.hanhuy.android.protify.Intents._
       val isAppcompat = theme.fold(false)(appcompat.contains)
-      def execute(dev: IDevice): Unit = {
+      def execute(dev: IDevice, stages: DeployScheduler[IDevice]#Stages): Unit = {
         val f = java.io.File.createTempFile("resources", ".ap_")
         val f2 = java.io.File.createTempFile("RES", ".txt")
         f.delete()
@@ -518,6 +546,7 @@ object AndroidProtify extends AutoPlugin {
           "am"   :: "broadcast"     ::
             "-a"   :: LAYOUT_INTENT   ::
             "-e"   :: EXTRA_RESOURCES :: s"/data/local/tmp/protify/${f.getName}"  ::
+            "-e"   :: EXTRA_RESOURCES_HASH :: resHash                     ::
             "-e"   :: EXTRA_RTXT      :: s"/data/local/tmp/protify/${f2.getName}" ::
             "-e"   :: EXTRA_RTXT_HASH :: rTxtHash                         ::
             "--ez" :: EXTRA_APPCOMPAT :: isAppcompat                      ::
@@ -527,112 +556,455 @@ object AndroidProtify extends AutoPlugin {
             "com.hanhuy.android.protify/.LayoutReceiver"                  ::
             Nil
 
-        log.debug("Executing: " + cmdS.mkString(" "))
-        dev.executeShellCommand("rm -r /data/local/tmp/protify/*", new Commands.ShellResult)
-        android.Tasks.logRate(log, s"resources deployed to ${dev.getSerialNumber}:", res.length + rTxt.length) {
-          dev.pushFile(res.getAbsolutePath, s"/data/local/tmp/protify/${f.getName}")
-          if (rTxt.isFile)
-            dev.pushFile(rTxt.getAbsolutePath, s"/data/local/tmp/protify/${f2.getName}")
+        DeployTransport(dev, log) { t =>
+          // the viewer reads the pushed files lazily, clean up before pushing
+          t.shell("rm -r /data/local/tmp/protify/*")
+          stages("clean")(t.flush())
+          android.Tasks.logRate(log, s"resources deployed to ${dev.getSerialNumber}:", res.length + rTable.length) {
+            stages.throttled("push") {
+              t.push(res, s"/data/local/tmp/protify/${f.getName}")
+              if (rTxt.isFile)
+                t.push(rTable, s"/data/local/tmp/protify/${f2.getName}")
+            }
+          }
+          t.shell(cmdS.mkString(" "))
+          stages("broadcast")(t.flush())
         }
-        dev.executeShellCommand(cmdS.mkString(" "), new Commands.ShellResult)
       }
-      if (all)
-        Commands.deviceList(sdk, log).par foreach execute
-      else
-        Commands.targetDevice(sdk, log) foreach execute
+      scheduler.run(DeployScheduler.devices(sdk, all, log), log)(execute)
+    }
+  }
+
+  /** (dex file, shard name) pairs, shard names match the entries in protify-dex.jar */
+  private[this] def dexShards(dexfile: Seq[File], predexes: Seq[File]): Seq[(File,String)] = {
+    val enumRe = """classes(\d+).dex""".r
+    dexfile.map(f => (f,f.getName)) ++ predexes.map { f =>
+      val name = f.getParentFile.getName.dropRight(4) // ".jar"
+      val ext = f.getName match {
+        case enumRe(num) => s"_$num"
+        case _ => ""
+      }
+      (f, s"$name$ext.dex")
+    }
+  }
+
+  /**
+   * How `am start -W` reports a launch into a process that was already
+   * running, None for a cold start or when it cannot tell. Only a cold start
+   * runs the agent and writes a trace.
+   */
+  private[this] def runningLaunch(output: Seq[String]): Option[String] = {
+    val launchState = """\s*LaunchState: (\w+)\s*""".r
+    output collectFirst {
+      case launchState(state) if state != "COLD" => s"LaunchState: $state"
+      case l if l contains "current task has been brought to the front" => "brought to the front"
+    }
+  }
+
+  /**
+   * Copy the agent's startup trace off the device and log a summary, the
+   * trace is written shortly after the application is created
+   */
+  private[this] def pullStartupTrace(dev: IDevice, pkg: String, trace: String,
+                                     target: File, log: Logger): Unit = {
+    val event = """.*"name":"([^"]+)","ph":"X","ts":(\d+),"dur":(\d+),.*""".r
+    @tailrec
+    def pull(attempts: Int): Option[String] = {
+      val out = new com.android.ddmlib.CollectingOutputReceiver
+      dev.executeShellCommand(s"run-as $pkg cat $trace", out)
+      val json = out.getOutput
+      if (json.trim.endsWith("]}")) Some(json)
+      else if (attempts <= 1) None
+      else {
+        Thread.sleep(250)
+        pull(attempts - 1)
+      }
+    }
+    pull(8) match {
+      case Some(json) =>
+        IO.write(target, json)
+        val events = json.split("\n").toList collect {
+          case event(name, ts, dur) => (name, ts.toLong, dur.toLong)
+        }
+        log.info(s"Startup trace for ${dev.getSerialNumber} (${target.getAbsolutePath}):")
+        events.sortBy(_._2) foreach { case (name, ts, dur) =>
+          log.info(f"  $name%-28s ${dur / 1000.0}%8.1fms at ${ts / 1000.0}%.1fms")
+        }
+      case None =>
+        log.warn(s"No startup trace from ${dev.getSerialNumber} after a cold start, is the app debuggable?")
+    }
+  }
+
+  /** shard name to hash, from the `name:hash` lines written by protifyDexJar */
+  private[this] def readShardHashes(f: File): Map[String,String] = IO.readLines(f).flatMap { line =>
+    line.lastIndexOf(':') match {
+      case -1 => Nil
+      case i  => List((line.substring(0, i), line.substring(i + 1)))
+    }
+  }.toMap
+
+  /** keep a copy of the shards in `dexJar` as the delta base for a device */
+  private[this] def snapshotInstalledDex(dexJar: File, target: File): Unit = {
+    IO.delete(target)
+    target.mkdirs()
+    if (dexJar.isFile) IO.withTemporaryDirectory { tmp =>
+      IO.unzip(dexJar, tmp, "protify-dex/*")
+      IO.move((tmp / "protify-dex" * "*.dex").get pair flat(target))
     }
   }
 
+  /** keep a copy of the app's classes as the hot swap base for a device */
+  private[this] def snapshotInstalledClasses(layout: ProjectLayout, dev: IDevice)
+                                            (implicit m: ProjectLayout => BuildOutput): Unit = {
+    val base = layout.protifyInstalledClasses(dev)
+    if (layout.classesJar.isFile) IO.copyFile(layout.classesJar, base)
+    else IO.delete(base)
+  }
+
+  /**
+   * what a hot swap patch is built from: the app's classes as compiled, the
+   * classpath they link against and a dexer for the patch jar
+   */
+  private case class HotSwapInputs(classes: File, classpath: Seq[File], dex: File => File)
+
+  /**
+   * The hot swap patch for `dev`, a dex of the `$override` classes of the
+   * classes that changed since `base` was installed, and their names. None
+   * if nothing changed, or if anything changed but method bodies; the
+   * reason is logged and the process is restarted.
+   */
+  private[this] def hotSwapPatch(base: File, inputs: HotSwapInputs,
+                                 dev: IDevice, log: Logger): Option[(File, List[String])] = {
+    val before = HotSwap.classes(base)
+    val after = HotSwap.classes(inputs.classes)
+    def names(cs: List[String]) = cs.map(_.replace('/', '.')).mkString(", ")
+    HotSwap.classify(before, after) match {
+      case HotSwap.Structural(reasons) =>
+        log.info(s"Structural change for ${dev.getSerialNumber}, restart required: " +
+          reasons.take(3).mkString(", ") + (if (reasons.size > 3) s" and ${reasons.size - 3} more" else ""))
+        None
+      case HotSwap.BodyOnly(Nil) => None
+      case HotSwap.BodyOnly(changed) =>
+        val hash = new ContentHash
+        changed foreach { k =>
+          val b = after(k)
+          hash.update(b, 0, b.length)
+        }
+        HotSwap.withClasspath(inputs.classes +: inputs.classpath, after)(
+          HotSwap.overrides(before, after, changed, hash.toHex, _)) match {
+          case Left(reason) =>
+            log.info(s"Body-only change for ${dev.getSerialNumber} cannot be hot swapped, restart required: $reason")
+            None
+          case Right(overrides) =>
+            log.info(s"Body-only change for ${dev.getSerialNumber}, hot swapping ${names(changed)}")
+            val jar = File.createTempFile("protify-patch", ".jar")
+            try {
+              HotSwap.writeJar(jar, overrides)
+              Some((inputs.dex(jar), overrides.map(_._1.replace('/', '.'))))
+            } finally {
+              jar.delete()
+            }
+        }
+    }
+  }
+
+  /** @return a patch from `base` to `dex`, if it is worth sending */
+  private[this] def dexDelta(base: File, dex: File): Option[File] = {
+    val patch = File.createTempFile("protify", BinaryDelta.PATCH_SUFFIX)
+    patch.deleteOnExit()
+    BinaryDelta.create(base, dex, patch)
+    if (patch.length < dex.length / 2) Some(patch) else {
+      patch.delete()
+      None
+    }
+  }
+
+  /** patch of the resource entries that changed since `manifest` was recorded */
+  private[this] def resourcesDelta(manifest: File, res: File): Option[File] = {
+    val patch = File.createTempFile("protify", ResourcePatch.PATCH_SUFFIX)
+    patch.deleteOnExit()
+    ResourcePatch.create(manifest, res, patch)
+    if (patch.length < res.length / 2) Some(patch) else {
+      patch.delete()
+      None
+    }
+  }
+
+  /**
+   * names of the layouts changed since `manifest` was recorded, empty if
+   * anything other than the contents of existing layouts changed
+   */
+  private[this] def changedLayouts(manifest: File, res: File): List[String] = {
+    import collection.JavaConverters._
+    val changed = ResourcePatch.changedEntries(manifest, res).asScala.toList
+    if (changed.forall(n => n.startsWith("res/layout") && n.endsWith(".xml")))
+      changed.map(n => n.substring(n.lastIndexOf('/') + 1).stripSuffix(".xml")).distinct
+    else Nil
+  }
+
+  /** `Broadcast completed` line printed by `am broadcast` */
+  private[this] val broadcastResult = """Broadcast completed: result=(-?\d+)(?:, data="(.*)")?""".r
+
+  /** @return the result code and data of the receiver, code 0 if it never answered */
+  private[this] def parseBroadcastResult(output: String): (Int, String) =
+    broadcastResult.findFirstMatchIn(output) map { m =>
+      (m.group(1).toInt, Option(m.group(2)).getOrElse(""))
+    } getOrElse ((0, ""))
+
+  /**
+   * forget what was recorded as installed on `dev` so that the next deploy
+   * pushes every shard and the full resources
+   */
+  private[this] def resetInstalled(layout: ProjectLayout, dev: IDevice, cacheDirectory: File)
+                                  (implicit m: ProjectLayout => BuildOutput): Unit = {
+    IO.write(layout.protifyInstalledHash(dev), "")
+    IO.delete(layout.protifyInstalledDex(dev))
+    IO.delete(layout.protifyInstalledClasses(dev))
+    layout.protifyInstalledResources(dev).delete()
+    layout.protifyDeviceStore(dev).delete()
+    FileFunction.cached(cacheDirectory / dev.safeSerial / "res", FilesInfo.lastModified) { in =>
+      Set.empty
+    }(Set.empty)
+  }
+
   private[this] def doInstall(intent: String,
                               layout: ProjectLayout,
                               pkg: String,
                               res: File,
-                              dexfile: Seq[File],
-                              predexes: Seq[File],
-                              st: sbt.Keys.TaskStreams)(implicit m: ProjectLayout => BuildOutput): IDevice => Unit = {
-    val dexfiles = dexfile.map(f => (f,f.getName)) ++ predexes.map { f =>
-      val name = f.getParentFile.getName.dropRight(4) // ".jar"
-      (f, name + ".dex")
-    }
-    val dexfileHashes = dexfiles map (f => (f._1, Hash.toHex(Hash(f._1)), f._2))
+                              dexfiles: Seq[(File,String)],
+                              delta: Boolean,
+                              resDelta: Boolean,
+                              hotswap: HotSwapInputs,
+                              st: sbt.Keys.TaskStreams)(implicit m: ProjectLayout => BuildOutput): (IDevice, DeployScheduler[IDevice]#Stages) => Unit = {
+    val digests = ShardHashes(layout.protifyHashCache, dexfiles.map(_._1))
+    val dexfileHashes = dexfiles map (f => (f._1, digests(f._1), f._2))
     val cacheDirectory = st.cacheDirectory / "protify"
     val log = st.log
     import com.hanhuy.android.protify.Intents._
 
-    dev => {
+    // nothing is recorded as installed until the receiver confirms it, a
+    // failed deploy is retried once with everything pushed in full
+    def deploy(dev: IDevice, stages: DeployScheduler[IDevice]#Stages, retry: Boolean): Unit = {
       import java.io.File.createTempFile
+      import scala.concurrent.{Await, Future}
+      import scala.concurrent.duration.Duration
+      import stages.background
+      import collection.JavaConverters._
 
       val installHash = layout.protifyInstalledHash(dev)
       if (!installHash.isFile)
         android.fail(s"Application has not been installed to ${dev.getSerialNumber}, android:install first")
-      val installed = IO.readLines(installHash)
-      val hashes = installed.map(_.split(":")(1)).toSet
+      val installed = readShardHashes(installHash)
+      // nothing is known to be on the device, carry nothing over
+      val full = installed.isEmpty
+      val hashes = installed.values.toSet
       val topush = dexfileHashes.filterNot(d => hashes(d._2))
+      val installedDex = layout.protifyInstalledDex(dev)
+
+      val deviceStore = layout.protifyDeviceStore(dev)
+      val stored = DexStoreIndex.read(deviceStore)
+      // shard versions still on the device are referenced by key
+      val (reused, transfer) = topush partition (d => stored.contains(DexStoreIndex.key(d._2, d._1.length)))
+
+      // deltas are computed in the background while
+      // the resources and earlier shards are pushed
+      // (shard, hash, shard name, (file to push, remote path))
+      val dexlist = transfer map { case (p, h, n) =>
+        val base = installedDex / n
+        (p, h, n, Future {
+          val patch = if (delta && base.isFile) dexDelta(base, p) else None
+          val t = createTempFile("classes", if (patch.isDefined) BinaryDelta.PATCH_SUFFIX else ".dex")
+          t.delete()
+          (patch getOrElse p, s"/data/local/tmp/protify/$pkg/${t.getName}")
+        })
+      }
+      def await[A](f: Future[A]): A = stages("prepare")(Await.result(f, Duration.Inf))
 
-      val dexlist = topush map { case (p, _, n) =>
-        val t = createTempFile("classes", ".dex")
-        t.delete()
-        (p, s"/data/local/tmp/protify/$pkg/${t.getName}", n)
+      val installedRes = layout.protifyInstalledResources(dev)
+      val dexinfo = createTempFile("deploy-manifest", ".bin")
+      dexinfo.deleteOnExit()
+      var pushres = full
+      val pushdex = topush.nonEmpty
+      FileFunction.cached(cacheDirectory / dev.safeSerial / "res", FilesInfo.lastModified) { in =>
+        pushres = true
+        in
+      }(Set(res))
+      val (respatch, layouts) = stages("prepare") {
+        (if (pushres && resDelta && installedRes.isFile) resourcesDelta(installedRes, res) else None,
+          if (pushres && installedRes.isFile) changedLayouts(installedRes, res) else Nil)
       }
-      val restmp = createTempFile("resources", ".ap_")
+      val resfile = respatch getOrElse res
+      val restmp = createTempFile("resources",
+        if (respatch.isDefined) ResourcePatch.PATCH_SUFFIX else ".ap_")
       restmp.delete()
-      val dexinfo = createTempFile("dex-info", ".txt")
-      dexinfo.deleteOnExit()
+      if (layouts.nonEmpty)
+        log.debug("Only layouts changed: " + layouts.mkString(", "))
+      // method bodies are swapped into the running process; the shards are
+      // still installed so that the next cold start runs the same code
+      val installedClasses = layout.protifyInstalledClasses(dev)
+      val swap = if (intent == PROTIFY_INTENT && pushdex && !full &&
+        installedClasses.isFile && hotswap.classes.isFile)
+        stages("prepare")(hotSwapPatch(installedClasses, hotswap, dev, log)) else None
+      val swaptmp = createTempFile("patch", ".dex")
+      swaptmp.delete()
       val cmdS =
         "am"     :: "broadcast"     ::
           "-a"   :: intent          ::
           "-e"   :: EXTRA_RESOURCES :: s"/data/local/tmp/protify/$pkg/${restmp.getName}"  ::
           "-e"   :: EXTRA_DEX_INFO  :: s"/data/local/tmp/protify/$pkg/${dexinfo.getName}" ::
+          (if (layouts.isEmpty) Nil else
+            "-e" :: EXTRA_CHANGED_LAYOUTS :: layouts.mkString(",") :: Nil) :::
+          (if (full) "--ez" :: EXTRA_FULL :: "true" :: Nil else Nil) :::
+          // quoted, the device shell would expand the $ in the class names
+          swap.fold(List.empty[String]) { case (_, overrides) =>
+            "-e" :: EXTRA_HOTSWAP :: s"/data/local/tmp/protify/$pkg/${swaptmp.getName}" ::
+            "-e" :: EXTRA_HOTSWAP_CLASSES :: overrides.mkString("'", ",", "'") :: Nil
+          } :::
           "-n"   ::
           s"$pkg/com.hanhuy.android.protify.agent.internal.ProtifyReceiver"               ::
           Nil
 
-
-      IO.write(dexinfo, dexlist.map(d => d._2 + ":" + d._3).mkString("\n"))
-
-      log.debug("Executing: " + cmdS.mkString(" "))
-
-      dev.executeShellCommand(s"rm -r /data/local/tmp/protify/$pkg/*", new android.Commands.ShellResult)
-      var pushres = false
-      val pushdex = dexlist.nonEmpty
-      FileFunction.cached(cacheDirectory / dev.safeSerial / "res", FilesInfo.lastModified) { in =>
-        pushres = true
-        in
-      }(Set(res))
-      val pushlen = (if (pushres) res.length else 0) + (if (pushdex) topush.map(_._1.length).sum else 0)
-      if (pushres || pushdex) {
-        android.Tasks.logRate(log, s"code deployed to ${dev.getSerialNumber}:", pushlen) {
+      val output = try DeployTransport(dev, log) { t =>
+        if (pushres || pushdex) {
+          def push(f: File, remote: String, what: String): Unit = stages.throttled("push") {
+            android.Tasks.logRate(log, s"$what sent to ${dev.getSerialNumber}:", f.length)(t.push(f, remote))
+          }
           if (pushres) {
-            val resdest = s"/data/local/tmp/protify/$pkg/${restmp.getName}"
-            log.debug(s"Pushing ${res.getAbsolutePath} to $resdest")
-            log.info(s"Sending ${res.getName} (${android.Packaging.sizeString(res.length)})")
-            dev.pushFile(res.getAbsolutePath, resdest)
+            push(resfile, s"/data/local/tmp/protify/$pkg/${restmp.getName}",
+              if (respatch.isDefined) s"${res.getName} delta (of ${android.Packaging.sizeString(res.length)})"
+              else res.getName)
           }
           if (pushdex) {
-            dev.pushFile(dexinfo.getAbsolutePath, s"/data/local/tmp/protify/$pkg/${dexinfo.getName}")
-            dexlist.foreach { case (d, p, n) =>
-              log.debug(s"Pushing ${d.getAbsolutePath} to $p")
-              log.info(s"Sending ${d.getName} (${android.Packaging.sizeString(d.length)})")
-              dev.pushFile(d.getAbsolutePath, p)
+            reused foreach { case (_, h, n) =>
+              log.info(s"Reusing $n from device store ($h)")
+            }
+            dexlist.foreach { case (d, _, n, pending) =>
+              val (f, p) = await(pending)
+              push(f, p, if (d == f) n else s"$n delta (of ${android.Packaging.sizeString(d.length)})")
+            }
+            val pushed = dexlist map { case (d, _, _, pending) => (d, await(pending)._1) }
+            val deltas = pushed.filterNot(d => d._1 == d._2)
+            if (deltas.nonEmpty)
+              log.info(s"dex deltas sent ${android.Packaging.sizeString(deltas.map(_._2.length).sum)}" +
+                s" instead of ${android.Packaging.sizeString(deltas.map(_._1.length).sum)}")
+            DeployManifest.write(dexinfo, (dexlist.map { case (d, h, n, pending) =>
+              val (f, p) = await(pending)
+              new DeployManifest.Entry(if (d == f) DeployManifest.FULL else DeployManifest.DELTA,
+                n, p, ContentHash.fromHex(h), d.length, f.length)
+            } ++ reused.map { case (d, h, n) =>
+              new DeployManifest.Entry(DeployManifest.STORED, n, "", ContentHash.fromHex(h), d.length, 0)
+            }).asJava)
+            stages.throttled("push")(t.push(dexinfo, s"/data/local/tmp/protify/$pkg/${dexinfo.getName}"))
+            swap foreach { case (patch, overrides) =>
+              push(patch, s"/data/local/tmp/protify/$pkg/${swaptmp.getName}",
+                s"hot swap patch (${overrides.size} classes)")
             }
           }
+          t.shell(cmdS.mkString(" "))
+        }
+        // files are uniquely named per deploy; clean up once the receiver
+        // has copied them, in the same invocation as the broadcast
+        t.shell(s"rm -r /data/local/tmp/protify/$pkg/*")
+        stages("broadcast")(t.flush())
+      } finally {
+        dexinfo.delete()
+        respatch foreach (_.delete())
+        swap foreach (_._1.delete())
+        dexlist foreach { case (d, _, _, pending) =>
+          val f = Await.result(pending, Duration.Inf)._1
+          if (d != f) f.delete()
         }
-        dev.executeShellCommand(cmdS.mkString(" "), new android.Commands.ShellResult)
       }
-      dexinfo.delete()
 
-      val oldhashes = installed.map { i =>
-        val split = i.split(":")
-        (split(0),split(1))
-      }.toMap
+      if (pushres || pushdex) parseBroadcastResult(output) match {
+        case (code @ (RESULT_INSTALLED | RESULT_HOTSWAPPED), how) => stages("record") {
+          // as reported by the device, which knows its api level and whether
+          // an activity is in front
+          log.info(s"Deploy path for ${dev.getSerialNumber}: $how")
+          if (pushres) ResourcePatch.writeManifest(res, installedRes)
+          // hot swaps are built against the classes the process started with
+          if (code == RESULT_INSTALLED && pushdex && hotswap.classes.isFile)
+            IO.copyFile(hotswap.classes, installedClasses)
+          topush foreach { case (d, h, n) =>
+            IO.copyFile(d, installedDex / n)
+            stored.record(n, DexStoreIndex.key(h, d.length))
+          }
+          if (topush.nonEmpty) {
+            deviceStore.getParentFile.mkdirs()
+            stored.write(deviceStore)
+          }
 
-      val newhashes = topush.map { n =>
-        (n._3,n._2)
-      }.toMap
+          val newhashes = topush.map { n =>
+            (n._3,n._2)
+          }.toMap
 
-      IO.writeLines(layout.protifyInstalledHash(dev),
-        oldhashes ++ newhashes map { case (k,v) => s"$k:$v" } toList)
+          IO.writeLines(layout.protifyInstalledHash(dev),
+            installed ++ newhashes map { case (k,v) => s"$k:$v" } toList)
+        }
+        case (RESULT_FAILED, reason) =>
+          resetInstalled(layout, dev, cacheDirectory)
+          if (retry && !full) {
+            log.warn(s"Deploy to ${dev.getSerialNumber} failed ($reason), retrying with a full push")
+            deploy(dev, stages, false)
+          } else
+            android.fail(s"Deploy to ${dev.getSerialNumber} failed: $reason")
+        case (code, _) =>
+          resetInstalled(layout, dev, cacheDirectory)
+          log.warn(s"Deploy to ${dev.getSerialNumber} was not confirmed (result=$code)," +
+            " the next deploy pushes everything")
+      }
     }
+
+    (dev, stages) => deploy(dev, stages, true)
+  }
+
+  /** options to dex a single jar outside of the app's dex task */
+  private val standaloneDexOptions = Def.task {
+    val maxHeap      = (dexMaxHeap               in Android).value
+    val maxProcesses = (dexMaxProcessCount       in Android).value
+    val minimizeMain = (dexMinimizeMain          in Android).value
+    val inProcess    = (dexInProcess             in Android).value
+    val buildTools   = (buildToolInfo            in Android).value
+    val additional   = (dexAdditionalParams      in Android).value
+    (jar: File, mainDexList: File) => Aggregate.Dex(
+      (false,jar :: Nil),
+      maxHeap,
+      maxProcesses,
+      true, // enable multidex so that dexInProcess works correctly
+      mainDexList, // pass a bogus file for main dex list, unused
+      minimizeMain,
+      inProcess,
+      buildTools,
+      additional)
+  }
+  private val hotSwapInputsTaskDef = Def.task {
+    implicit val out = (outputLayout in Android).value
+    val layout  = (projectLayout  in Android).value
+    val bldr    = (builder        in Android).value
+    val lib     = (libraryProject in Android).value
+    val debug   = (apkbuildDebug  in Android).value()
+    val s       = streams.value
+    val options = standaloneDexOptions.value
+    val classpath = (bootClasspath in Android).value.map(_.data) ++
+      (dependencyClasspath in Compile).value.map(_.data)
+    // devices are deployed to concurrently, dex one patch at a time
+    val dexPatch = (jar: File) => synchronized {
+      val bin = IO.createTemporaryDirectory
+      val f = File.createTempFile("fake-maindex", ".lst")
+      try {
+        Dex.dex(bldr(s.log), options(jar, f), Nil, None, true, lib, bin, false, debug, s)
+        val patch = File.createTempFile("patch", ".dex")
+        IO.copyFile(bin / "classes.dex", patch)
+        patch
+      } finally {
+        f.delete()
+        IO.delete(bin)
+      }
+    }
+    HotSwapInputs(layout.classesJar, classpath, dexPatch)
+  }
+  private[this] val deployScheduler = Def.setting {
+    DeployScheduler(protifyDeployConcurrency.value, protifyDeployPerBus.value, protifyDeployBus.value)
   }
 
   val protifyTaskDef = Def.task {
@@ -645,15 +1017,16 @@ object AndroidProtify extends AutoPlugin {
     val st = streams.value
     val dexfile = (dex in Android).value * "*.dex" get
     val predexes = (predex in Android).value flatMap (_._2 * "*.dex" get)
+    val delta = protifyDexDelta.value
+    val resDelta = protifyResourcesDelta.value
+    val scheduler = deployScheduler.value
+    val hotswap = hotSwapInputsTaskDef.value
 
     import com.hanhuy.android.protify.Intents
-    val execute = doInstall(Intents.PROTIFY_INTENT, layout, pkg, res, dexfile, predexes, st)
-    import android.Commands
+    val execute = doInstall(Intents.PROTIFY_INTENT, layout, pkg, res,
+      dexShards(dexfile, predexes), delta, resDelta, hotswap, st)
 
-    if (all)
-      Commands.deviceList(sdk, st.log).par foreach execute
-    else
-      Commands.targetDevice(sdk, st.log) foreach execute
+    scheduler.run(DeployScheduler.devices(sdk, all, st.log), st.log)(execute)
   }
   val protifyInstallTaskDef = Def.task {
     val res = (packageResources in Protify).value
@@ -665,15 +1038,16 @@ object AndroidProtify extends AutoPlugin {
     val st = streams.value
     val dexfile = (dex in Android).value * "*.dex" get
     val predexes = (predex in Android).value flatMap (_._2 * "*.dex" get)
+    val delta = protifyDexDelta.value
+    val resDelta = protifyResourcesDelta.value
+    val scheduler = deployScheduler.value
+    val hotswap = hotSwapInputsTaskDef.value
 
     import com.hanhuy.android.protify.Intents
-    val execute = doInstall(Intents.INSTALL_INTENT, layout, pkg, res, dexfile, predexes, st)
-    import android.Commands
+    val execute = doInstall(Intents.INSTALL_INTENT, layout, pkg, res,
+      dexShards(dexfile, predexes), delta, resDelta, hotswap, st)
 
-    if (all)
-      Commands.deviceList(sdk, st.log).par foreach execute
-    else
-      Commands.targetDevice(sdk, st.log) foreach execute
+    scheduler.run(DeployScheduler.devices(sdk, all, st.log), st.log)(execute)
   }
   def protifyRunTaskDef(debug: Boolean): Def.Initialize[InputTask[Unit]] = Def.inputTask {
     val k = (sdkPath in Android).value
@@ -682,6 +1056,7 @@ object AndroidProtify extends AutoPlugin {
     val s = streams.value
     val all = (allDevices in Android).value
     val isLib = (libraryProject in Android).value
+    val scheduler = deployScheduler.value
     implicit val output = (outputLayout in Android).value
     if (isLib)
       android.fail("This project is not runnable, it has set 'libraryProject in Android := true")
@@ -704,18 +1079,30 @@ object AndroidProtify extends AutoPlugin {
       "%s/%s" format (p, if (name.indexOf(".") == -1) "." + name else name)
     }) match {
       case Some(intent) =>
-        val receiver = new Commands.ShellLogging(l => s.log.info(l))
-        val command = "am start %s -n %s" format (if (debug) "-D" else "", intent)
-        def execute(d: IDevice): Unit = {
+        // -W waits for the launch to complete, which never happens under -D
+        val command = "am start %s -n %s" format (if (debug) "-D" else "-W", intent)
+        // written by the agent's StartupTrace
+        val trace = "files/protify-trace.json"
+        def execute(d: IDevice, stages: DeployScheduler[IDevice]#Stages): Unit = {
           s.log.info(s"Running on ${d.getProperty(IDevice.PROP_DEVICE_MODEL)} (${d.getSerialNumber})...")
+          if (!debug)
+            d.executeShellCommand(s"run-as $p rm -f $trace", new com.android.ddmlib.NullOutputReceiver)
+          var launch = Vector.empty[String]
+          val receiver = new Commands.ShellLogging({ line =>
+            s.log.info(line)
+            launch :+= line
+          })
           s.log.debug("Executing [%s]" format command)
-          d.executeShellCommand(command, receiver)
+          stages("start")(d.executeShellCommand(command, receiver))
           s.log.debug("run command executed")
+          if (!debug) runningLaunch(launch) match {
+            case Some(how) =>
+              s.log.info(s"$p was already running on ${d.getSerialNumber} ($how), no startup to trace")
+            case None =>
+              stages("trace")(pullStartupTrace(d, p, trace, l.protifyStartupTrace(d), s.log))
+          }
         }
-        if (all)
-          Commands.deviceList(k, s.log).par foreach execute
-        else
-          Commands.targetDevice(k, s.log) foreach execute
+        scheduler.run(DeployScheduler.devices(k, all, s.log), s.log)(execute)
       case None =>
         android.fail(
           "No activity found with action 'android.intent.action.MAIN'")
@@ -733,11 +1120,11 @@ object AndroidProtify extends AutoPlugin {
       val pkg = (applicationId in Android).value
       implicit val out = (outputLayout in Android).value
       val layout = (projectLayout in Android).value
+      val scheduler = deployScheduler.value
       layout.protifyPublicXml.delete()
       layout.rTxt.delete()
-      import android.Commands
       import com.hanhuy.android.protify.Intents._
-      def execute(dev: IDevice): Unit = {
+      def execute(dev: IDevice, stages: DeployScheduler[IDevice]#Stages): Unit = {
         val cmdS =
           "am"   :: "broadcast"     ::
             "-a"   :: CLEAN_INTENT    ::
@@ -745,22 +1132,25 @@ object AndroidProtify extends AutoPlugin {
             s"$pkg/com.hanhuy.android.protify.agent.internal.ProtifyReceiver" ::
             Nil
 
-        log.debug("Executing: " + cmdS.mkString(" "))
-        dev.executeShellCommand(s"rm -r /data/local/tmp/protify/$pkg", new Commands.ShellResult)
         FileFunction.cached(cacheDirectory / dev.safeSerial / "res", FilesInfo.lastModified) { in =>
           Set.empty
         }(Set.empty)
         FileFunction.cached(cacheDirectory / dev.safeSerial / "dex", FilesInfo.lastModified) { in =>
           Set.empty
         }(Set.empty)
-        dev.executeShellCommand(cmdS.mkString(" "), new Commands.ShellResult)
+        DeployTransport(dev, log) { t =>
+          t.shell(s"rm -r /data/local/tmp/protify/$pkg")
+          t.shell(cmdS.mkString(" "))
+          stages("broadcast")(t.flush())
+        }
         IO.copyFile(layout.protifyDexHash, layout.protifyInstalledHash(dev))
+        snapshotInstalledDex(layout.protifyDexJar, layout.protifyInstalledDex(dev))
+        snapshotInstalledClasses(layout, dev)
+        layout.protifyInstalledResources(dev).delete()
+        layout.protifyDeviceStore(dev).delete()
       }
       Try {
-        if (all)
-          Commands.deviceList(sdk, log).par foreach execute
-        else
-          Commands.targetDevice(sdk, log) foreach execute
+        scheduler.run(DeployScheduler.devices(sdk, all, log), log)(execute)
       }
     }
     ()
@@ -787,16 +1177,8 @@ object AndroidProtify extends AutoPlugin {
 
     val f = File.createTempFile("fake-maindex", ".lst")
     f.deleteOnExit()
-    val dexOpts = Aggregate.Dex(
-      (false,agentJar :: Nil),
-      (dexMaxHeap               in Android).value,
-      (dexMaxProcessCount       in Android).value,
-      true, // enable multidex so that dexInProcess works correctly
-      f, // pass a bogus file for main dex list, unused
-      (dexMinimizeMain          in Android).value,
-      (dexInProcess             in Android).value,
-      (buildToolInfo            in Android).value,
-      (dexAdditionalParams      in Android).value)
+    val options = standaloneDexOptions.value
+    val dexOpts = options(agentJar, f)
     val d = Dex.dex(bldr(s.log), dexOpts, Nil, None, true, lib, bin, false, debug, s)
     f.delete()
     d
@@ -805,29 +1187,35 @@ object AndroidProtify extends AutoPlugin {
     implicit val out = (outputLayout in Android).value
     val layout = (projectLayout in Android).value
 
-    val dx = ((dex in Android).value * "*.dex" get) map { f =>
-      (f, s"protify-dex/${f.getName}")
-    }
-    val enumRe = """classes(\d+).dex""".r
-    val pd = (predex in Android).value.flatMap(_._2 * "*.dex" get) map { f =>
-      val name = f.getParentFile.getName.dropRight(4) // ".jar"
-    val ext = f.getName match {
-      case enumRe(num) ⇒ s"_$num"
-      case _ ⇒ ""
-    }
-      (f, s"protify-dex/$name$ext.dex")
-    }
+    val shards = dexShards((dex in Android).value * "*.dex" get,
+      (predex in Android).value.flatMap(_._2 * "*.dex" get))
 
-    // must check FilesInfo.hash because shardedDex copies into final location
-    FileFunction.cached(streams.value.cacheDirectory / "protify-dex.jar", FilesInfo.hash) { in =>
-      val prefixlen = "protify-dex/".length
-      val hashes = (dx ++ pd) map { case (f, path) =>
-        path.substring(prefixlen) + ":" + Hash.toHex(Hash(f))
-      }
+    val stored = protifyDexStored.value
+
+    // shardedDex copies shards into their final location, changing their
+    // mtimes but not their contents; key the jar on the shard digests
+    val digests = ShardHashes(layout.protifyHashCache, shards.map(_._1))
+    val hashes = shards map { case (f, name) =>
+      name + ":" + digests(f)
+    }
+    val key = streams.value.cacheDirectory /
+      (if (stored) "protify-dex-stored.key" else "protify-dex.key")
+    if (!layout.protifyDexJar.isFile || !layout.protifyDexHash.isFile ||
+      !key.isFile || IO.readLines(key) != hashes) {
       IO.writeLines(layout.protifyDexHash, hashes)
-      IO.jar(dx ++ pd, layout.protifyDexJar, new java.util.jar.Manifest)
-      Set(layout.protifyDexJar, layout.protifyDexHash)
-    }((dx ++ pd).map(_._1).toSet)
+      val entries = shards map { case (f, name) => (f, s"protify-dex/$name") }
+      if (stored) {
+        // page aligned so the shards can be copied out with transferTo
+        val jar = new RawZip.Writer(layout.protifyDexJar, 4096)
+        try {
+          entries foreach { case (f, name) => jar.add(name, f, false) }
+        } finally {
+          jar.close()
+        }
+      } else
+        IO.jar(entries, layout.protifyDexJar, new java.util.jar.Manifest)
+      IO.writeLines(key, hashes)
+    }
 
     layout.protifyDexJar
   }
@@ -907,6 +1295,7 @@ object AndroidProtify extends AutoPlugin {
     def protifyAgentAar = protify / "protify-agent.aar"
     def protifyDexJar = protify / "protify-dex.jar"
     def protifyDexHash = protify / "protify-dex-hash.txt"
+    def protifyHashCache = protify / "protify-hash-cache.txt"
     def protifyIdsXml = layout.generatedRes / "values" / "protify-ids.xml"
     def protifyPublicXml = layout.mergedRes / "values" / "protify-public.xml"
     def protifyInstalledHash(dev: IDevice) = {
@@ -914,7 +1303,15 @@ object AndroidProtify extends AutoPlugin {
       path.getParentFile.mkdirs()
       path
     }
-    def protifyResApkTemp = protify / "resapk-unpacked"
+    def protifyInstalledDex(dev: IDevice) = protify / "installed-dex" / dev.safeSerial
+    /** the classes last installed, not instrumented, that hot swap patches are built against */
+    def protifyInstalledClasses(dev: IDevice) = protify / "installed-classes" / (dev.safeSerial + ".jar")
+    def protifyInstrumentedClasses = protify / "instrumented" / "classes.jar"
+    def protifyInstalledResources(dev: IDevice) = protify / "installed-res" / dev.safeSerial
+    def protifyDeviceStore(dev: IDevice) = protify / "device-store" / dev.safeSerial
+    def protifyStartupTrace(dev: IDevice) = protify / "startup-trace" / (dev.safeSerial + ".json")
+    def protifyRTable = protify / "R.table"
+    def protifyRTableHash = protify / "R.table-hash.txt"
     def protifyResApk = protify / "protify-resources.ap_"
     def protifyAppInfoDescriptor = protify / "protify_application_info.txt"
     def protifyDescriptorJar = protify / "protify-descriptor.jar"
@@ -924,71 +1321,32 @@ object AndroidProtify extends AutoPlugin {
   }
 
   object Zip {
-    // copied from IO.zip and its implementations
-    import java.util.zip._
-
-    def resources(sources: Traversable[(File, String)], outputZip: File): Unit =
-      archive(sources.toSeq, outputZip)
+    import collection.JavaConverters._
 
-    private def archive(sources: Seq[(File, String)], outputFile: File) {
+    /**
+     * copy the entries of `source` into `outputZip` without recompressing
+     * them, followed by `sources`; a source replaces a same-named entry
+     */
+    def resources(source: File, sources: Traversable[(File, String)], outputZip: File): Unit = {
       val noCompress = PackagingUtils.getDefaultNoCompressPredicate
-      if (outputFile.isDirectory)
-        sys.error("Specified output file " + outputFile + " is a directory.")
-      else {
-        val outputDir = outputFile.getParentFile
-        IO.createDirectory(outputDir)
-        withZipOutput(outputFile) { output =>
-          val createEntry: (String => ZipEntry) = name => {
-            val ze = new ZipEntry(name)
-            ze.setMethod(if (noCompress.test(name)) ZipEntry.STORED else ZipEntry.DEFLATED)
-            ze
-          }
-          writeZip(sources, output)(createEntry)
-        }
+      if (outputZip.isDirectory)
+        sys.error("Specified output file " + outputZip + " is a directory.")
+      IO.createDirectory(outputZip.getParentFile)
+      val files = sources.toSeq.collect {
+        case (file, name) if file.isFile => (file, normalizeName(name))
       }
-    }
-    private def writeZip(sources: Seq[(File, String)], output: ZipOutputStream)(createEntry: String => ZipEntry) {
-      val files = sources.flatMap { case (file, name) => if (file.isFile) (file, normalizeName(name)) :: Nil else Nil }
-
-      val now = System.currentTimeMillis
-      // The CRC32 for an empty value, needed to store directories in zip files
-      val emptyCRC = new CRC32().getValue
-
-      def makeFileEntry(file: File, name: String, crc: Long) = {
-        //			log.debug("\tAdding " + file + " as " + name + " ...")
-        val e = createEntry(name)
-        e setTime file.lastModified
-        if (e.getMethod == ZipEntry.STORED) {
-          e.setSize(file.length)
-          e.setCrc(crc)
-        }
-        e
-      }
-      def addFileEntry(file: File, name: String) {
-        val baos = new java.io.ByteArrayOutputStream(file.length.toInt)
-        IO.transfer(file, baos)
-        val bs = baos.toByteArray
-        val crc = new CRC32()
-        crc.update(bs)
-
-        output putNextEntry makeFileEntry(file, name, crc.getValue)
-        val bais = new java.io.ByteArrayInputStream(bs)
-        IO.transfer(bais, output)
-        output.closeEntry()
-      }
-
-      //Add all files to the generated Zip
-      files foreach { case (file, name) => addFileEntry(file, name) }
-    }
-    private def withZipOutput(file: File)(f: ZipOutputStream => Unit) {
-      Using.fileOutputStream(false)(file) { fileOut =>
-        val (zipOut, ext) = (new ZipOutputStream(fileOut), "zip")
+      val replaced = files.map(_._2).toSet
+      val in = new RawZip.Reader(source)
+      try {
+        val out = new RawZip.Writer(outputZip, ResourcePatch.ALIGNMENT)
         try {
-          f(zipOut)
-        }
-        finally {
-          zipOut.close()
+          in.entries.asScala filterNot (e => replaced(e.name)) foreach (out.copy(in, _))
+          files foreach { case (file, name) => out.add(name, file, !noCompress.test(name)) }
+        } finally {
+          out.close()
         }
+      } finally {
+        in.close()
       }
     }
     private def normalizeName(name: String) = {
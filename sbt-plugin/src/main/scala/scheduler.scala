@@ -0,0 +1,131 @@
+package android.protify
+
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.android.ddmlib.IDevice
+import sbt.Logger
+
+import scala.concurrent.ExecutionContext
+
+/**
+ * Runs a deployment against several devices at once. At most `concurrency`
+ * devices are worked on at a time and at most `perBus` devices that share a
+ * bus push at the same time; preparing one device overlaps with pushing to
+ * another. Each device's time is broken down by stage and logged when it
+ * completes. Work that overlaps with a device's pushes runs on
+ * `Stages.background`, never on the device threads, so a device waiting on
+ * it cannot starve it. Devices are only identified through `bus` and
+ * `name`, so any stand-in for a device can be scheduled.
+ * @author pfnguyen
+ */
+class DeployScheduler[D](concurrency: Int, perBus: Int, bus: D => String, name: D => String) {
+  private[this] val buses = new ConcurrentHashMap[String,Semaphore]
+
+  private[this] def semaphore(key: String) = {
+    val s = buses.get(key)
+    if (s != null) s else {
+      val created = new Semaphore(math.max(1, perBus), true)
+      val existing = buses.putIfAbsent(key, created)
+      if (existing == null) created else existing
+    }
+  }
+
+  /** run `f` for each of `devices`, failing with the first failure once all have finished */
+  def run(devices: Seq[D], log: Logger)(f: (D, Stages) => Unit): Unit = if (devices.nonEmpty) {
+    val threads = math.max(1, math.min(concurrency, devices.size))
+    val pool = Executors.newFixedThreadPool(threads, DeployScheduler.threadFactory)
+    val background = ExecutionContext.fromExecutorService(Executors.newFixedThreadPool(
+      Runtime.getRuntime.availableProcessors, DeployScheduler.threadFactory))
+    try {
+      val futures = devices map { d =>
+        pool.submit(new Callable[Unit] {
+          override def call() = {
+            val stages = new Stages(d, background)
+            f(d, stages)
+            stages.report(log)
+          }
+        })
+      }
+      val failures = futures flatMap { future =>
+        try {
+          future.get()
+          None
+        } catch {
+          case e: ExecutionException => Some(e.getCause)
+        }
+      }
+      failures.headOption foreach (e => throw e)
+    } finally {
+      pool.shutdown()
+      background.shutdown()
+    }
+  }
+
+  /** the time spent on one device, by stage */
+  class Stages private[DeployScheduler](device: D, context: ExecutionContext) {
+    private[this] val start = System.nanoTime
+    private[this] var timings = Vector.empty[(String,Long)]
+
+    private[this] def record(stage: String, since: Long): Unit = synchronized {
+      val elapsed = System.nanoTime - since
+      timings.indexWhere(_._1 == stage) match {
+        case -1 => timings = timings :+ (stage -> elapsed)
+        case i  => timings = timings.updated(i, stage -> (timings(i)._2 + elapsed))
+      }
+    }
+
+    /** runs futures alongside the device's stages */
+    implicit def background: ExecutionContext = context
+
+    /** time `f` as part of `stage`, repeated stages are summed */
+    def apply[A](stage: String)(f: => A): A = {
+      val s = System.nanoTime
+      try f finally record(stage, s)
+    }
+
+    /** time `f` as part of `stage` while holding one of the device bus's permits */
+    def throttled[A](stage: String)(f: => A): A = {
+      val permits = semaphore(bus(device))
+      apply("wait")(permits.acquire())
+      try apply(stage)(f) finally permits.release()
+    }
+
+    private[DeployScheduler] def report(log: Logger): Unit = synchronized {
+      if (timings.nonEmpty) {
+        def ms(nanos: Long) = s"${nanos / 1000000}ms"
+        log.info(s"${name(device)}: " + timings.map { case (stage, t) =>
+          s"$stage ${ms(t)}"
+        }.mkString(", ") + s", total ${ms(System.nanoTime - start)}")
+      }
+    }
+  }
+}
+
+object DeployScheduler {
+  private val threadFactory = new ThreadFactory {
+    private[this] val count = new AtomicInteger
+    override def newThread(r: Runnable) = {
+      val t = new Thread(r, "protify-deploy-" + count.incrementAndGet)
+      t.setDaemon(true)
+      t
+    }
+  }
+
+  /**
+   * adb does not report which usb bus a device is on: emulators and network
+   * devices each get their own group, all usb devices share one
+   */
+  def connectionOf(dev: IDevice): String =
+    if (dev.isEmulator) dev.getSerialNumber
+    else if (dev.getSerialNumber contains ":") dev.getSerialNumber
+    else "usb"
+
+  def apply(concurrency: Int, perBus: Int, bus: IDevice => String): DeployScheduler[IDevice] =
+    new DeployScheduler[IDevice](concurrency, perBus, bus, _.getSerialNumber)
+
+  /** every connected device if `all`, otherwise the target device */
+  def devices(sdk: String, all: Boolean, log: Logger): Seq[IDevice] =
+    if (all) android.Commands.deviceList(sdk, log)
+    else android.Commands.targetDevice(sdk, log).toList
+}
@@ -0,0 +1,90 @@
+package android.protify
+
+import java.io.File
+
+import com.android.ddmlib.{CollectingOutputReceiver, IDevice, SyncService}
+import sbt.Logger
+
+/**
+ * Moves files onto and runs commands on a device for the duration of a
+ * single deployment. File transfers share one sync session, shell commands
+ * are queued and run together in a single shell invocation on `flush`
+ * @author pfnguyen
+ */
+trait DeployTransport {
+  def device: IDevice
+  /** push `local` to `remote` through the transport's sync session */
+  def push(local: File, remote: String): Unit
+  /** queue a shell command to be run on the next `flush` */
+  def shell(command: String): Unit
+  /** run all queued shell commands in a single invocation, @return their output */
+  def flush(): String
+  /** flush any queued commands and release the sync session */
+  def close(): Unit
+}
+
+object DeployTransport {
+  /** a sync session that files are pushed through */
+  trait Sync {
+    def push(local: File, remote: String): Unit
+    def close(): Unit
+  }
+
+  /** a ddmlib sync session to `dev` */
+  def sync(dev: IDevice): Sync = {
+    val s = dev.getSyncService
+    if (s == null)
+      android.fail(s"Unable to open sync session to ${dev.getSerialNumber}")
+    new Sync {
+      override def push(local: File, remote: String) =
+        s.pushFile(local.getAbsolutePath, remote, SyncService.getNullProgressMonitor)
+      override def close() = s.close()
+    }
+  }
+
+  def apply(dev: IDevice, log: Logger): DeployTransport = new AdbTransport(dev, log)
+
+  def apply[A](dev: IDevice, log: Logger)(f: DeployTransport => A): A = {
+    val t: DeployTransport = new AdbTransport(dev, log)
+    try f(t) finally t.close()
+  }
+}
+
+class AdbTransport(val device: IDevice, log: Logger,
+                   openSync: IDevice => DeployTransport.Sync = DeployTransport.sync)
+  extends DeployTransport {
+  private[this] var sync = Option.empty[DeployTransport.Sync]
+  private[this] var queued = List.empty[String]
+  private[this] var roundTrips = 0
+
+  private[this] def syncService = sync getOrElse {
+    val s = openSync(device)
+    roundTrips += 1
+    sync = Some(s)
+    s
+  }
+
+  override def push(local: File, remote: String) = {
+    log.debug(s"Pushing ${local.getAbsolutePath} to $remote")
+    syncService.push(local, remote)
+    roundTrips += 1
+  }
+
+  override def shell(command: String) = queued = command :: queued
+
+  override def flush() = if (queued.isEmpty) "" else {
+    val command = queued.reverse.mkString("; ")
+    queued = Nil
+    log.debug("Executing: " + command)
+    val out = new CollectingOutputReceiver
+    device.executeShellCommand(command, out)
+    roundTrips += 1
+    out.getOutput
+  }
+
+  override def close(): Unit = try flush() finally {
+    sync foreach (_.close())
+    sync = None
+    log.debug(s"${device.getSerialNumber}: $roundTrips adb round-trips")
+  }
+}
@@ -0,0 +1,102 @@
+package android.protify
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.junit.Assert._
+import org.junit.Test
+
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, Future}
+
+class DeploySchedulerTest {
+  private[this] class RecordingLogger extends sbt.Logger {
+    @volatile var infos = Vector.empty[String]
+    override def trace(t: => Throwable) = ()
+    override def success(message: => String) = ()
+    override def log(level: sbt.Level.Value, message: => String) =
+      if (level == sbt.Level.Info) synchronized { infos = infos :+ message }
+  }
+
+  /** the most callers seen inside at once */
+  private[this] class Peak {
+    private[this] val current = new AtomicInteger
+    private[this] val max = new AtomicInteger
+    def apply[A](f: => A): A = {
+      val n = current.incrementAndGet()
+      var m = max.get
+      while (n > m && !max.compareAndSet(m, n)) m = max.get
+      try f finally current.decrementAndGet()
+    }
+    def peak = max.get
+  }
+
+  private[this] def devices(serials: String*) = serials.map(new FakeDevice(_)).map(_.device)
+
+  @Test def runsAtMostConcurrencyDevices(): Unit = {
+    val scheduler = DeployScheduler(2, 8, DeployScheduler.connectionOf)
+    val inside = new Peak
+    val done = new AtomicInteger
+    scheduler.run(devices("a:5555", "b:5555", "c:5555", "d:5555", "e:5555"), new RecordingLogger) { (_, stages) =>
+      inside(stages("prepare")(Thread.sleep(50)))
+      done.incrementAndGet()
+    }
+    assertEquals(5, done.get)
+    assertEquals(2, inside.peak)
+  }
+
+  @Test def devicesOnOneBusPushOneAtATime(): Unit = {
+    val scheduler = DeployScheduler(4, 1, DeployScheduler.connectionOf)
+    val prepare = new Peak
+    val push = new Peak
+    // usb devices share a bus, emulators each have their own
+    val usb = devices("usb-1", "usb-2", "usb-3")
+    scheduler.run(usb ++ devices("emulator-5554"), new RecordingLogger) { (d, stages) =>
+      prepare(stages("prepare")(Thread.sleep(50)))
+      if (usb contains d)
+        stages.throttled("push")(push(Thread.sleep(30)))
+    }
+    assertEquals(1, push.peak)
+    assertTrue("preparing is not throttled", prepare.peak > 1)
+  }
+
+  @Test def reportsEachDeviceByStage(): Unit = {
+    val log = new RecordingLogger
+    DeployScheduler(2, 1, DeployScheduler.connectionOf).run(devices("usb-1", "usb-2"), log) { (_, stages) =>
+      stages("prepare")(())
+      stages.throttled("push")(())
+      stages("prepare")(())
+    }
+    assertEquals(2, log.infos.size)
+    log.infos foreach { line =>
+      assertTrue(line, line.matches("usb-\\d: prepare \\d+ms, wait \\d+ms, push \\d+ms, total \\d+ms"))
+    }
+  }
+
+  @Test def failsWithTheFirstFailureOnceAllFinish(): Unit = {
+    val finished = new AtomicInteger
+    try {
+      DeployScheduler(3, 1, DeployScheduler.connectionOf).run(
+          devices("a:5555", "b:5555", "c:5555"), new RecordingLogger) { (d, stages) =>
+        if (d.getSerialNumber == "a:5555") throw new IllegalStateException("a failed")
+        stages("prepare")(Thread.sleep(30))
+        finished.incrementAndGet()
+      }
+      fail("expected the failure of a:5555")
+    } catch {
+      case e: IllegalStateException => assertEquals("a failed", e.getMessage)
+    }
+    assertEquals(2, finished.get)
+  }
+
+  @Test def backgroundWorkDoesNotNeedADeviceThread(): Unit = {
+    val threads = new AtomicInteger
+    DeployScheduler(1, 1, DeployScheduler.connectionOf).run(devices("a:5555", "b:5555"), new RecordingLogger) { (_, stages) =>
+      import stages.background
+      val device = Thread.currentThread
+      // with one device thread, awaiting work queued behind it would never finish
+      val pending = Future(Thread.currentThread)
+      if (Await.result(pending, Duration(5, "s")) ne device) threads.incrementAndGet()
+    }
+    assertEquals(2, threads.get)
+  }
+}
@@ -0,0 +1,59 @@
+package android.protify
+
+import java.io.File
+
+import org.junit.Assert._
+import org.junit.Test
+
+class DeployTransportTest {
+  import FakeDevice._
+
+  private[this] val log = new sbt.Logger {
+    override def trace(t: => Throwable) = ()
+    override def success(message: => String) = ()
+    override def log(level: sbt.Level.Value, message: => String) = ()
+  }
+
+  @Test def pushesShareOneSyncSessionAndCommandsOneShell(): Unit = {
+    val fake = new FakeDevice("fake-1", _ => "Broadcast completed: result=1\n")
+    val t = new AdbTransport(fake.device, log, fake.sync)
+    t.push(new File("resources.ap_"), "/data/local/tmp/protify/pkg/resources.ap_")
+    t.push(new File("classes.dex"), "/data/local/tmp/protify/pkg/classes.dex")
+    t.shell("am broadcast -a PROTIFY")
+    t.shell("rm -r /data/local/tmp/protify/pkg/*")
+    assertEquals("Broadcast completed: result=1\n", t.flush())
+    t.close()
+
+    assertEquals(Vector(
+      OpenSync,
+      Push(new File("resources.ap_"), "/data/local/tmp/protify/pkg/resources.ap_"),
+      Push(new File("classes.dex"), "/data/local/tmp/protify/pkg/classes.dex"),
+      Shell("am broadcast -a PROTIFY; rm -r /data/local/tmp/protify/pkg/*"),
+      CloseSync), fake.calls)
+  }
+
+  @Test def cleanupRunsAfterTheBroadcast(): Unit = {
+    val fake = new FakeDevice("fake-1")
+    val t = new AdbTransport(fake.device, log, fake.sync)
+    t.push(new File("classes.dex"), "/data/local/tmp/protify/pkg/classes.dex")
+    t.shell("am broadcast -a PROTIFY")
+    t.shell("rm -r /data/local/tmp/protify/pkg/*")
+    t.close()
+
+    val shells = fake.calls collect { case Shell(c) => c }
+    assertEquals(1, shells.size)
+    val commands = shells.head.split("; ").toList
+    assertTrue(commands.indexWhere(_ startsWith "am broadcast") <
+      commands.indexWhere(_ startsWith "rm -r"))
+    assertTrue("files are pushed before they are used",
+      fake.calls.lastIndexWhere(_.isInstanceOf[Push]) < fake.calls.indexWhere(_.isInstanceOf[Shell]))
+  }
+
+  @Test def nothingQueuedRunsNothing(): Unit = {
+    val fake = new FakeDevice("fake-1")
+    val t = new AdbTransport(fake.device, log, fake.sync)
+    assertEquals("", t.flush())
+    t.close()
+    assertEquals(Vector.empty, fake.calls)
+  }
+}
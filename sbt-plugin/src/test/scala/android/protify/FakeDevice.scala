@@ -0,0 +1,59 @@
+package android.protify
+
+import java.io.File
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+
+import com.android.ddmlib.{IDevice, IShellOutputReceiver}
+
+/**
+ * A stand-in for a device that records the files pushed to it and the
+ * shell commands it runs, in order. `respond` supplies the output of
+ * each shell command. Any other IDevice method returns a default.
+ */
+class FakeDevice(serial: String, respond: String => String = _ => "") {
+  @volatile private[this] var recorded = Vector.empty[FakeDevice.Call]
+  private[this] def record(c: FakeDevice.Call): Unit = synchronized { recorded = recorded :+ c }
+
+  def calls: Vector[FakeDevice.Call] = recorded
+
+  val device: IDevice = Proxy.newProxyInstance(getClass.getClassLoader,
+    Array(classOf[IDevice]), new InvocationHandler {
+      override def invoke(proxy: Any, m: Method, args: Array[AnyRef]) = m.getName match {
+        case "getSerialNumber" => serial
+        case "toString"        => s"FakeDevice($serial)"
+        case "hashCode"        => Int.box(System.identityHashCode(proxy))
+        case "equals"          => Boolean.box(proxy.asInstanceOf[AnyRef] eq args(0))
+        case "executeShellCommand" =>
+          val command = args(0).asInstanceOf[String]
+          record(FakeDevice.Shell(command))
+          val out = respond(command).getBytes("utf-8")
+          val receiver = args(1).asInstanceOf[IShellOutputReceiver]
+          receiver.addOutput(out, 0, out.length)
+          receiver.flush()
+          null
+        case _ => m.getReturnType match {
+          case java.lang.Boolean.TYPE => Boolean.box(false)
+          case java.lang.Integer.TYPE => Int.box(0)
+          case java.lang.Long.TYPE    => Long.box(0)
+          case _                      => null
+        }
+      }
+    }).asInstanceOf[IDevice]
+
+  /** a sync session that records pushes to this device */
+  def sync(dev: IDevice): DeployTransport.Sync = {
+    record(FakeDevice.OpenSync)
+    new DeployTransport.Sync {
+      override def push(local: File, remote: String) = record(FakeDevice.Push(local, remote))
+      override def close() = record(FakeDevice.CloseSync)
+    }
+  }
+}
+
+object FakeDevice {
+  sealed trait Call
+  case object OpenSync extends Call
+  case object CloseSync extends Call
+  case class Push(local: File, remote: String) extends Call
+  case class Shell(command: String) extends Call
+}
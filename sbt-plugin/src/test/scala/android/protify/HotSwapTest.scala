@@ -0,0 +1,171 @@
+package android.protify
+
+import java.io.File
+import java.nio.file.Files
+import javax.tools.ToolProvider
+
+import org.junit.Assert._
+import org.junit.{Rule, Test}
+import org.junit.rules.TemporaryFolder
+
+import scala.annotation.meta.getter
+
+class HotSwapTest {
+  @(Rule @getter) val tmp = new TemporaryFolder
+
+  private[this] val base =
+    """package fixture.base;
+      |public class Base {
+      |    protected String tag() { return "base"; }
+      |    public String name() { return "base"; }
+      |}
+    """.stripMargin
+
+  private[this] val counter =
+    """package fixture;
+      |public class Counter extends fixture.base.Base {
+      |    private int count;
+      |    private static String prefix = "n=";
+      |    public Counter(int start) { count = start; }
+      |    public int next() { return ++count; }
+      |    public String describe() { return prefix + count; }
+      |    @Override public String name() { return super.name() + "?"; }
+      |    public static int twice(int i) { return 2 * i; }
+      |    private int doubled() { return count * 2; }
+      |    public long total(long a, double b) { return a + (long) b; }
+      |    public void reset() { count = 0; }
+      |}
+    """.stripMargin
+
+  /** every method body of counter changed */
+  private[this] val bodies = counter
+    .replace("return ++count;", "count += 10; return count;")
+    .replace("return prefix + count;", "return prefix + doubled() + \" \" + tag();")
+    .replace("super.name() + \"?\"", "super.name() + \"!\"")
+    .replace("2 * i", "3 * i")
+    .replace("a + (long) b", "a - (long) b")
+    .replace("count = 0;", "count = -1;")
+
+  /** compile `sources`, class name to source, @return internal name to bytes */
+  private[this] def compile(sources: (String,String)*): Map[String,Array[Byte]] = {
+    val src = tmp.newFolder()
+    val out = tmp.newFolder()
+    val files = sources map { case (name, source) =>
+      val f = new File(src, name.replace('.', '/') + ".java")
+      f.getParentFile.mkdirs()
+      Files.write(f.toPath, source.getBytes("utf-8"))
+      f.getAbsolutePath
+    }
+    val javac = ToolProvider.getSystemJavaCompiler
+    assertEquals(0, javac.run(null, null, null,
+      (Seq("-source", "1.7", "-target", "1.7", "-nowarn", "-d", out.getAbsolutePath) ++ files): _*))
+    def classes(dir: File, pkg: String): Seq[(String,Array[Byte])] = dir.listFiles.toSeq flatMap { f =>
+      if (f.isDirectory) classes(f, pkg + f.getName + "/")
+      else Seq((pkg + f.getName.stripSuffix(".class"), Files.readAllBytes(f.toPath)))
+    }
+    classes(out, "").toMap
+  }
+
+  private[this] def fixture(counterSource: String) =
+    compile("fixture.base.Base" -> base, "fixture.Counter" -> counterSource)
+
+  private[this] class Loader(classes: Map[String,Array[Byte]]) extends ClassLoader(getClass.getClassLoader) {
+    override def findClass(name: String) = classes.get(name.replace('.', '/')) match {
+      case Some(b) => defineClass(name, b, 0, b.length)
+      case None    => throw new ClassNotFoundException(name)
+    }
+    def define(name: String, b: Array[Byte]) = defineClass(name.replace('/', '.'), b, 0, b.length)
+  }
+
+  private[this] def call(o: AnyRef, name: String, args: (Class[_], AnyRef)*): AnyRef = {
+    val c = o match {
+      case c: Class[_] => c
+      case _ => o.getClass
+    }
+    c.getMethod(name, args.map(_._1): _*).invoke(o, args.map(_._2): _*)
+  }
+
+  private[this] def instrumented(classes: Map[String,Array[Byte]]) =
+    classes map { case (k, b) => (k, HotSwap.instrument(b)) }
+
+  private[this] def overrides(before: Map[String,Array[Byte]], after: Map[String,Array[Byte]]) = {
+    val HotSwap.BodyOnly(changed) = HotSwap.classify(before, after)
+    HotSwap.withClasspath(Nil, after)(HotSwap.overrides(before, after, changed, "0123abcd", _))
+  }
+
+  @Test def patchReplacesMethodBodies(): Unit = {
+    val v1 = fixture(counter)
+    val v2 = fixture(bodies)
+    assertEquals(HotSwap.BodyOnly(List("fixture/Counter")), HotSwap.classify(v1, v2))
+
+    val loader = new Loader(instrumented(v1))
+    val k = loader.loadClass("fixture.Counter")
+    val c = k.getConstructor(classOf[Int]).newInstance(Int.box(0)).asInstanceOf[AnyRef]
+    assertEquals(1, call(c, "next"))
+    assertEquals("n=1", call(c, "describe"))
+    assertEquals("base?", call(c, "name"))
+    assertEquals(4, call(k, "twice", classOf[Int] -> Int.box(2)))
+
+    val Right(List((name, bytes))) = overrides(v1, v2)
+    assertEquals("fixture/Counter$override$0123abcd", name)
+    val change = k.getField(HotSwap.CHANGE_FIELD)
+    change.set(null, loader.define(name, bytes).newInstance())
+
+    // private field and method, protected from another package, super call, statics
+    assertEquals(11, call(c, "next"))
+    assertEquals("n=22 base", call(c, "describe"))
+    assertEquals("base!", call(c, "name"))
+    assertEquals(6, call(k, "twice", classOf[Int] -> Int.box(2)))
+    assertEquals(3L, call(c, "total", classOf[Long] -> Long.box(5), classOf[Double] -> Double.box(2.5)))
+    assertNull(call(c, "reset"))
+    assertEquals("n=-2 base", call(c, "describe"))
+
+    change.set(null, null)
+    assertEquals(0, call(c, "next"))
+    assertEquals("n=0", call(c, "describe"))
+  }
+
+  @Test def instrumentingTwiceChangesNothing(): Unit = {
+    val v1 = instrumented(fixture(counter))
+    v1 foreach { case (k, b) => assertArrayEquals(k, b, HotSwap.instrument(b)) }
+    assertTrue(HotSwap.info(v1("fixture/Counter")).instrumented)
+  }
+
+  @Test def unchangedClassesAreNotPatched(): Unit = {
+    val v1 = fixture(counter)
+    assertEquals(HotSwap.BodyOnly(Nil), HotSwap.classify(v1, v1))
+    // only the line numbers moved
+    assertEquals(HotSwap.BodyOnly(Nil), HotSwap.classify(v1, fixture("\n\n" + counter)))
+  }
+
+  @Test def structuralChangesRestart(): Unit = {
+    val v1 = fixture(counter)
+    def structural(source: String) = HotSwap.classify(v1, fixture(source)) match {
+      case HotSwap.Structural(reasons) => reasons
+      case body => fail(s"classified as $body"); Nil
+    }
+    assertEquals(List("fixture/Counter changed its members"),
+      structural(counter.replace("private int count;", "private int count; int added;")))
+    assertEquals(List("fixture/Counter changed its members"),
+      structural(counter.replace("public void reset()", "public void reset(int to)")))
+    assertEquals(List("fixture/Counter.<init>(I)V cannot be swapped"),
+      structural(counter.replace("count = start;", "count = start + 1;")))
+    assertEquals(List("fixture/Counter.<clinit>()V cannot be swapped"),
+      structural(counter.replace("\"n=\"", "\"count=\"")))
+    assertEquals(List("fixture/Extra added"), HotSwap.classify(v1, v1 ++
+      compile("fixture.Extra" -> "package fixture; class Extra { }")) match {
+      case HotSwap.Structural(reasons) => reasons
+      case body => body
+    })
+  }
+
+  @Test def unreachableChangesRestart(): Unit = {
+    val v1 = fixture(counter)
+    assertEquals(Left("fixture/Counter adds a call to super.tag()Ljava/lang/String;"),
+      overrides(v1, fixture(counter.replace("return prefix + count;", "return super.tag();"))))
+    assertEquals(Left("fixture/Counter calls a private constructor of fixture/Counter"),
+      overrides(fixture(counter.replace("public Counter(", "private Counter(")),
+        fixture(counter.replace("public Counter(", "private Counter(")
+          .replace("count = 0;", "new Counter(0);"))))
+  }
+}